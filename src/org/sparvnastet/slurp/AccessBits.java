@@ -0,0 +1,123 @@
+/**
+ * Copyright (c) 2011 Anders Sundman <anders@4zm.org>
+ *
+ * This file is part of SLURP.
+ *
+ * SLURP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SLURP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with SLURP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sparvnastet.slurp;
+
+/**
+ * Decoding of the access condition bits in a sector trailer.
+ *
+ * The trailer layout is: [Key A|6 Bytes] [Access bits|3 Bytes] [User
+ * data|1 Byte] [Key B|6 Bytes]. Every access bit is stored twice, once
+ * inverted, which makes it possible to tell a real trailer from garbage.
+ */
+public class AccessBits {
+
+    /**
+     * Offset of the access bits in the sector trailer.
+     */
+    public final static int OFFSET = 6;
+
+    /**
+     * The block group of the sector trailer.
+     */
+    public final static int TRAILER_GROUP = 3;
+
+    /**
+     * Check that the inverted copies of the access bits match.
+     *
+     * @param data
+     *            Buffer containing the trailer.
+     * @param offset
+     *            Offset of the trailer (not of the access bits) in the buffer.
+     * @return true if the access bits are consistent.
+     */
+    public static boolean isValid(byte[] data, int offset) {
+        int b6 = data[offset + OFFSET] & 0xff;
+        int b7 = data[offset + OFFSET + 1] & 0xff;
+        int b8 = data[offset + OFFSET + 2] & 0xff;
+
+        return ((b6 ^ (b8 << 4 | b7 >> 4)) & 0xff) == 0xff && ((b7 ^ (b8 >> 4)) & 0x0f) == 0x0f;
+    }
+
+    /**
+     * Get the access condition of a block group.
+     *
+     * @param data
+     *            Buffer containing the trailer.
+     * @param offset
+     *            Offset of the trailer in the buffer.
+     * @param group
+     *            0-2 for the data blocks (groups of 5 blocks in 16 block
+     *            sectors), 3 for the trailer.
+     * @return The access condition as the bits C1 C2 C3 (C1 is bit 2).
+     */
+    public static int getCondition(byte[] data, int offset, int group) {
+        assert (group >= 0 && group <= TRAILER_GROUP);
+        int b7 = data[offset + OFFSET + 1] & 0xff;
+        int b8 = data[offset + OFFSET + 2] & 0xff;
+
+        int c1 = (b7 >> (4 + group)) & 1;
+        int c2 = (b8 >> group) & 1;
+        int c3 = (b8 >> (4 + group)) & 1;
+        return c1 << 2 | c2 << 1 | c3;
+    }
+
+    /**
+     * Check if Key B can be read from the trailer after authenticating with
+     * Key A. That's the case for the trailer access conditions 000, 010 and
+     * 001 (the transport configuration). Key A itself is never readable.
+     *
+     * @param data
+     *            Buffer containing the trailer.
+     * @param offset
+     *            Offset of the trailer in the buffer.
+     * @return false if Key B is read as zeros, or the access bits are invalid.
+     */
+    public static boolean isKeyBReadable(byte[] data, int offset) {
+        if (!isValid(data, offset))
+            return false;
+
+        int condition = getCondition(data, offset, TRAILER_GROUP);
+        return condition == 0x0 || condition == 0x2 || condition == 0x1;
+    }
+
+    /**
+     * Encode the access conditions of all four block groups.
+     *
+     * @param data
+     *            Buffer containing the trailer.
+     * @param offset
+     *            Offset of the trailer in the buffer.
+     * @param conditions
+     *            C1 C2 C3 of each group, see getCondition.
+     */
+    public static void setConditions(byte[] data, int offset, int[] conditions) {
+        assert (conditions.length == TRAILER_GROUP + 1);
+        int c1 = 0, c2 = 0, c3 = 0;
+        for (int group = 0; group <= TRAILER_GROUP; ++group) {
+            c1 |= ((conditions[group] >> 2) & 1) << group;
+            c2 |= ((conditions[group] >> 1) & 1) << group;
+            c3 |= (conditions[group] & 1) << group;
+        }
+
+        data[offset + OFFSET] = (byte) ((~c2 & 0x0f) << 4 | (~c1 & 0x0f));
+        data[offset + OFFSET + 1] = (byte) (c1 << 4 | (~c3 & 0x0f));
+        data[offset + OFFSET + 2] = (byte) (c3 << 4 | c2);
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright (c) 2011 Anders Sundman <anders@4zm.org>
+ *
+ * This file is part of SLURP.
+ *
+ * SLURP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SLURP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with SLURP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sparvnastet.slurp;
+
+/**
+ * A fingerprint of the card family of a tag: SAK, ATQA and number of sectors,
+ * packed into an int.
+ *
+ * The fingerprint of a tag is available before the first authentication,
+ * since SAK and ATQA are sent during anticollision. For a saved dump they are
+ * taken from the manufacturer block (block 0), which for tags with a 4 byte
+ * UID is: [UID|4 Bytes] [BCC|1 Byte] [SAK|1 Byte] [ATQA|2 Bytes]
+ * [Manufacturer data|8 Bytes].
+ */
+public class CardFamily {
+
+    /**
+     * The family of a dump that doesn't have a valid manufacturer block.
+     * Never a real fingerprint since the sector count is never 0xff.
+     */
+    public final static int UNKNOWN = -1;
+
+    private final static int UID_SIZE = 4;
+    private final static int BCC_OFFSET = 4;
+    private final static int SAK_OFFSET = 5;
+    private final static int ATQA_OFFSET = 6;
+
+    // The sector counts of the MifareClassic sizes (Mini, 1k, 2k, 4k)
+    private final static int[] SECTOR_COUNTS = { 5, 16, 32, 40 };
+
+    public static int fromTag(MifareTag tag) {
+        byte[] atqa = tag.getAtqa();
+        return pack(tag.getSak(), atqa[0], atqa[1], tag.getSectorCount());
+    }
+
+    /**
+     * @param dump
+     *            A dump in the DumpStore layout.
+     * @param length
+     *            Number of valid bytes in the dump.
+     * @return The family, or UNKNOWN if block 0 doesn't have a valid BCC.
+     */
+    public static int fromDump(byte[] dump, int length) {
+        if (length < DumpStore.BLOCK_SIZE || !isBccValid(dump, 0))
+            return UNKNOWN;
+
+        return pack(dump[SAK_OFFSET], dump[ATQA_OFFSET], dump[ATQA_OFFSET + 1], getSectorCount(dump, length));
+    }
+
+    /**
+     * Check the BCC (xor of the UID bytes) of a block 0 with a 4 byte UID.
+     *
+     * @param data
+     * @param offset
+     *            Offset of block 0 in data.
+     */
+    public static boolean isBccValid(byte[] data, int offset) {
+        int bcc = 0;
+        for (int i = 0; i < UID_SIZE; ++i)
+            bcc ^= data[offset + i];
+        return (byte) bcc == data[offset + BCC_OFFSET];
+    }
+
+    public static int getSak(int family) {
+        return family >>> 24;
+    }
+
+    public static byte[] getAtqa(int family) {
+        return new byte[] { (byte) (family >>> 16), (byte) (family >>> 8) };
+    }
+
+    public static int getSectorCount(int family) {
+        return family & 0xff;
+    }
+
+    public static String toString(int family) {
+        if (family == UNKNOWN)
+            return "Unknown";
+
+        return "SAK " + DataFormater.byteToHexString((byte) (family >>> 24)) + ", ATQA "
+                + DataFormater.byteToHexString((byte) (family >>> 16)) + " "
+                + DataFormater.byteToHexString((byte) (family >>> 8)) + ", " + (family & 0xff) + " sectors";
+    }
+
+    private static int pack(int sak, int atqa0, int atqa1, int sectorCount) {
+        return (sak & 0xff) << 24 | (atqa0 & 0xff) << 16 | (atqa1 & 0xff) << 8 | sectorCount;
+    }
+
+    /**
+     * A dump is padded to 4k, the sector count is taken from the last sector
+     * with a valid trailer, rounded up to a MifareClassic size.
+     */
+    public static int getSectorCount(byte[] dump, int length) {
+        int last = 0;
+        for (int sector = 0; sector < DumpStore.MAX_SECTORS; ++sector) {
+            int trailer = DumpStore.getTrailerOffset(sector);
+            if (trailer + DumpStore.BLOCK_SIZE <= length && AccessBits.isValid(dump, trailer))
+                last = sector;
+        }
+
+        for (int count : SECTOR_COUNTS) {
+            if (last < count)
+                return count;
+        }
+        return DumpStore.MAX_SECTORS;
+    }
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright (c) 2011 Anders Sundman <anders@4zm.org>
+ *
+ * This file is part of SLURP.
+ *
+ * SLURP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SLURP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with SLURP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sparvnastet.slurp;
+
+/**
+ * The Crypto1 stream cipher of MifareClassic, bit compatible with crapto1.
+ *
+ * The 48 bit LFSR is kept as its odd and even bits in two ints, which is how
+ * the filter function wants them. Doesn't allocate, one instance is reused
+ * for every authentication.
+ */
+public class Crypto1 {
+    public final static int LF_POLY_ODD = 0x29ce5c;
+    public final static int LF_POLY_EVEN = 0x870804;
+
+    private int mOdd;
+    private int mEven;
+
+    /**
+     * Load a key into the LFSR.
+     *
+     * @param key
+     *            A packed key, see MifareKeyChain.packKey.
+     */
+    public void init(long key) {
+        int odd = 0, even = 0;
+        for (int i = 47; i > 0; i -= 2) {
+            odd = odd << 1 | bit(key, (i - 1) ^ 7);
+            even = even << 1 | bit(key, i ^ 7);
+        }
+        mOdd = odd;
+        mEven = even;
+    }
+
+    /**
+     * Clock the cipher one bit.
+     *
+     * @param in
+     *            Bit fed into the LFSR.
+     * @param encrypted
+     *            If in is encrypted, it's then decrypted with the keystream
+     *            bit before it's fed in.
+     * @return The keystream bit.
+     */
+    public int bit(int in, boolean encrypted) {
+        int ret = filter(mOdd);
+
+        int feedin = encrypted ? ret : 0;
+        feedin ^= in & 1;
+        feedin ^= LF_POLY_ODD & mOdd;
+        feedin ^= LF_POLY_EVEN & mEven;
+
+        int t = mOdd;
+        mOdd = mEven << 1 | Integer.bitCount(feedin) & 1;
+        mEven = t;
+        return ret;
+    }
+
+    /**
+     * Clock the cipher 8 bits, least significant bit first.
+     *
+     * @return The keystream byte.
+     */
+    public int crypt8(int in, boolean encrypted) {
+        int ret = 0;
+        for (int i = 0; i < 8; ++i)
+            ret |= bit(in >>> i, encrypted) << i;
+        return ret;
+    }
+
+    /**
+     * Clock the cipher 32 bits. Nonces are sent most significant byte first,
+     * each byte least significant bit first.
+     *
+     * @return The keystream word.
+     */
+    public int crypt32(int in, boolean encrypted) {
+        int ret = 0;
+        for (int i = 0; i < 32; ++i)
+            ret |= bit(in >>> (i ^ 24), encrypted) << (i ^ 24);
+        return ret;
+    }
+
+    /**
+     * @return The LFSR as a 48 bit value, like crypto1_get_lfsr.
+     */
+    public long getState() {
+        long state = 0;
+        for (int i = 23; i >= 0; --i)
+            state = state << 2 | (mOdd >>> (i ^ 3) & 1) << 1 | (mEven >>> (i ^ 3) & 1);
+        return state;
+    }
+
+    /**
+     * Step the 16 bit nonce PRNG of the tag n times.
+     */
+    public static int prngSuccessor(int x, int n) {
+        x = Integer.reverseBytes(x);
+        while (n-- > 0)
+            x = x >>> 1 | (x >>> 16 ^ x >>> 18 ^ x >>> 19 ^ x >>> 21) << 31;
+        return Integer.reverseBytes(x);
+    }
+
+    /**
+     * The non-linear filter function over 20 bits of the odd half.
+     */
+    static int filter(int x) {
+        int f;
+        f = 0xf22c0 >>> (x & 0xf) & 16;
+        f |= 0x6c9c0 >>> (x >>> 4 & 0xf) & 8;
+        f |= 0x3c8b0 >>> (x >>> 8 & 0xf) & 4;
+        f |= 0x1e458 >>> (x >>> 12 & 0xf) & 2;
+        f |= 0x0d938 >>> (x >>> 16 & 0xf) & 1;
+        return 0xec57e80a >>> f & 1;
+    }
+
+    private static int bit(long x, int n) {
+        return (int) (x >>> n) & 1;
+    }
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright (c) 2011 Anders Sundman <anders@4zm.org>
+ *
+ * This file is part of SLURP.
+ *
+ * SLURP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SLURP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with SLURP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sparvnastet.slurp;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Measures the throughput of the Crypto1 model: raw keystream, authentication
+ * handshakes on a simulated tag with the right and a wrong key, and encrypted
+ * block reads. Every measurement is warmed up before it's timed, and the
+ * results are folded into a checksum so nothing can be optimized away. Runs on
+ * a desktop JVM.
+ *
+ * The model is first checked against a known authentication, a broken cipher
+ * is just as fast.
+ */
+public class Crypto1Benchmark {
+    private final static long KEY = 0xa0a1a2a3a4a5L;
+    private final static long WRONG_KEY = 0xffffffffffffL;
+
+    // A sniffed authentication, the sample of mfkey64
+    private final static long SAMPLE_KEY = 0xffffffffffffL;
+    private final static int SAMPLE_UID = 0x9c599b32;
+    private final static int SAMPLE_NT = 0x82a4166c;
+    private final static int SAMPLE_NR = 0xa1e458ce; // Encrypted
+    private final static int SAMPLE_AR = 0x6eea41e0; // Encrypted
+    private final static int SAMPLE_AT = 0x5cadf439; // Encrypted
+
+    private static int sSink;
+
+    private interface Operation {
+        int run(int iterations) throws IOException;
+    }
+
+    private static void measure(String name, String unit, int iterations, Operation operation)
+            throws IOException {
+        // Warm up until the JIT has compiled the loop
+        for (int i = 0; i < 5; ++i)
+            sSink ^= operation.run(iterations / 5);
+
+        long start = System.nanoTime();
+        sSink ^= operation.run(iterations);
+        long nanos = System.nanoTime() - start;
+        System.out.println(String.format("%-16s %12.0f %s/s, %8.1f ns each", name, iterations * 1e9 / nanos,
+                unit, (double) nanos / iterations));
+    }
+
+    /**
+     * @return null if the cipher matches the known authentication, otherwise
+     *         what's wrong.
+     */
+    private static String verify() {
+        Crypto1 cipher = new Crypto1();
+        cipher.init(KEY);
+        if (cipher.getState() != KEY)
+            return "getState() " + Long.toHexString(cipher.getState()) + " after init(" + Long.toHexString(KEY) + ")";
+
+        cipher.init(SAMPLE_KEY);
+        cipher.crypt32(SAMPLE_UID ^ SAMPLE_NT, false);
+        cipher.crypt32(SAMPLE_NR, true);
+        int ar = SAMPLE_AR ^ cipher.crypt32(0, false);
+        int at = SAMPLE_AT ^ cipher.crypt32(0, false);
+        if (ar != Crypto1.prngSuccessor(SAMPLE_NT, 64))
+            return "reader answer " + Integer.toHexString(ar);
+        if (at != Crypto1.prngSuccessor(SAMPLE_NT, 96))
+            return "tag answer " + Integer.toHexString(at);
+        return null;
+    }
+
+    private static SimulatedMifareTag createTag() {
+        byte[] uid = { (byte) 0x9c, 0x59, (byte) 0x9b, 0x32 };
+        long[] keys = new long[16];
+        Arrays.fill(keys, KEY);
+        return new SimulatedMifareTag(uid, 0x08, new byte[] { 0x00, 0x04 }, keys, keys, false);
+    }
+
+    /**
+     * Usage: Crypto1Benchmark [-n iterations]
+     */
+    public static void main(String[] args) throws IOException {
+        int count = 1000000;
+        for (int i = 0; i < args.length; ++i) {
+            if (args[i].equals("-n") && i + 1 < args.length)
+                count = Integer.parseInt(args[++i]);
+        }
+
+        String error = verify();
+        if (error != null) {
+            System.err.println("Crypto1 doesn't match the known authentication: " + error);
+            System.exit(1);
+        }
+
+        final Crypto1 cipher = new Crypto1();
+        cipher.init(KEY);
+        measure("keystream", "bytes", 16 * count, new Operation() {
+            public int run(int iterations) {
+                int x = 0;
+                for (int i = 0; i < iterations; ++i)
+                    x ^= cipher.crypt8(0, false);
+                return x;
+            }
+        });
+
+        final SimulatedMifareTag tag = createTag();
+        tag.connect();
+        measure("auth", "auths", count, new Operation() {
+            public int run(int iterations) throws IOException {
+                int x = 0;
+                for (int i = 0; i < iterations; ++i)
+                    x += tag.authenticateSectorWithKeyA(i & 15, KEY) ? 1 : 0;
+                return x;
+            }
+        });
+        measure("failed auth", "auths", count, new Operation() {
+            public int run(int iterations) throws IOException {
+                int x = 0;
+                for (int i = 0; i < iterations; ++i)
+                    x += tag.authenticateSectorWithKeyA(i & 15, WRONG_KEY) ? 1 : 0;
+                return x;
+            }
+        });
+        tag.authenticateSectorWithKeyA(1, KEY);
+        measure("encrypted read", "reads", count, new Operation() {
+            public int run(int iterations) throws IOException {
+                int x = 0;
+                for (int i = 0; i < iterations; ++i)
+                    x ^= tag.readBlock(4 + (i & 3))[0];
+                return x;
+            }
+        });
+
+        System.out.println("Modelled tag time " + tag.getModelledNanos() / 1000000 + " ms, checksum " + sSink);
+    }
+}
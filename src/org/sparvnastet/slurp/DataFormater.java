@@ -48,4 +48,64 @@ public class DataFormater {
         }
         return sb.toString();
     }
+
+    /**
+     * Format a packed key (see MifareKeyChain.packKey) like bytesToString.
+     */
+    public static String keyToString(long key) {
+        if (key == MifareKeyChain.NO_KEY)
+            return "-- -- -- -- -- --";
+
+        StringBuilder sb = new StringBuilder();
+        for (int shift = 8 * (MifareKeyChain.KEY_SIZE - 1); shift >= 0; shift -= 8) {
+            if (sb.length() > 0)
+                sb.append(" ");
+            sb.append(byteToHexString((byte) (key >>> shift)));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Parse a key written as 12 hex digits into a packed key.
+     */
+    public static long keyFromHexString(final String encoded) {
+        if (encoded.length() != 2 * MifareKeyChain.KEY_SIZE)
+            throw new IllegalArgumentException("Key must be " + 2 * MifareKeyChain.KEY_SIZE + " hex digits");
+
+        // Long.parseLong would accept a sign, and "-00000000001" is NO_KEY
+        long key = 0;
+        for (int i = 0; i < encoded.length(); ++i) {
+            int digit = Character.digit(encoded.charAt(i), 16);
+            if (digit < 0)
+                throw new IllegalArgumentException("Not a hex digit in key: " + encoded);
+            key = (key << 4) | digit;
+        }
+        return key;
+    }
+
+    /**
+     * Format the keys of all sectors, one sector per line.
+     */
+    public static String keyChainToString(MifareKeyChain keys) {
+        StringBuilder sb = new StringBuilder();
+        for (int sector = 0; sector < keys.getSectorCount(); ++sector) {
+            sb.append("Sector ").append(sector < 10 ? ("0" + sector) : sector).append(": ");
+            sb.append(keyToString(keys.getKeyA(sector))).append(" | ");
+            sb.append(keyToString(keys.getKeyB(sector))).append("\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Format the data of all sectors, one block per line.
+     */
+    public static String tagDataToString(TagData data) {
+        StringBuilder sb = new StringBuilder();
+        for (int sector = 0; sector < data.getSectorCount(); ++sector) {
+            sb.append("Sector ").append(sector).append(":\n");
+            for (int blockIndex = 0; blockIndex < data.getBlockInSectorCount(sector); ++blockIndex)
+                sb.append(bytesToString(data.getSector(sector)[blockIndex])).append("\n");
+        }
+        return sb.toString();
+    }
 }
\ No newline at end of file
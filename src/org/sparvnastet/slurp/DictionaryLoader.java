@@ -0,0 +1,115 @@
+/**
+ * Copyright (c) 2011 Anders Sundman <anders@4zm.org>
+ *
+ * This file is part of SLURP.
+ *
+ * SLURP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SLURP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with SLURP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sparvnastet.slurp;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import android.content.Context;
+import android.content.res.XmlResourceParser;
+import android.nfc.tech.MifareClassic;
+import android.util.Log;
+
+/**
+ * Compiles the search dictionary: the default keys from the resources merged
+ * with the keys harvested from the dump store, partitioned by card family.
+ *
+ * This is slow enough (XML parsing and a scan of all saved dumps) that it's
+ * run in the background and only waited on by the key search.
+ */
+public class DictionaryLoader implements Callable<KeyDictionary> {
+    private final Context mContext;
+
+    /**
+     * @param context
+     *            Should be the application context, the loader may outlive
+     *            an activity.
+     */
+    public DictionaryLoader(Context context) {
+        assert (context != null);
+        mContext = context;
+    }
+
+    public KeyDictionary call() {
+        long start = System.nanoTime();
+        KeyDictionary dictionary = new KeyDictionary(getDefaultKeys());
+
+        // Null if the external storage isn't available
+        File dumpDirectory = mContext.getExternalFilesDir(null);
+        if (dumpDirectory == null)
+            return dictionary;
+
+        KeyHarvester harvester = new KeyHarvester();
+        LongKeySet harvested = harvester.harvest(new DumpStore(dumpDirectory));
+        dictionary.merge(harvested);
+        dictionary.addPartitions(harvester.getFamilyKeys());
+
+        Log.i(SLURPActivity.LOGTAG, "Harvested " + harvested.size() + " unique keys from "
+                + harvester.getTrailerCount() + " trailers in " + harvester.getDumpCount() + " dumps ("
+                + (System.nanoTime() - start) / 1000000 + " ms). Dictionary size: " + dictionary.size()
+                + ", card families: " + dictionary.getPartitionCount());
+
+        return dictionary;
+    }
+
+    /**
+     * @return The built in keys followed by the keys from the resources.
+     */
+    public long[] getDefaultKeys() {
+        long[] keys = new long[64];
+        int count = 0;
+        keys[count++] = MifareKeyChain.packKey(MifareClassic.KEY_DEFAULT, 0);
+        keys[count++] = MifareKeyChain.packKey(MifareClassic.KEY_MIFARE_APPLICATION_DIRECTORY, 0);
+        keys[count++] = MifareKeyChain.packKey(MifareClassic.KEY_NFC_FORUM, 0);
+
+        XmlResourceParser xpp = mContext.getResources().getXml(R.xml.mifare_default_keys);
+        try {
+            final String KEY_TAG = "key";
+            int eventType;
+            eventType = xpp.next();
+            while (eventType != XmlPullParser.END_DOCUMENT) {
+                if (eventType == XmlPullParser.START_TAG && xpp.getName().equals(KEY_TAG)) {
+                    eventType = xpp.next();
+                    if (eventType == XmlPullParser.TEXT) {
+                        if (count == keys.length)
+                            keys = Arrays.copyOf(keys, 2 * count);
+                        keys[count++] = DataFormater.keyFromHexString(xpp.getText().trim());
+                    }
+                } else {
+                    eventType = xpp.next();
+                }
+            }
+        } catch (XmlPullParserException e) {
+            e.printStackTrace();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            xpp.close();
+        }
+
+        Log.i(SLURPActivity.LOGTAG, "Read " + count + " default keys");
+        return Arrays.copyOf(keys, count);
+    }
+}
@@ -0,0 +1,489 @@
+/**
+ * Copyright (c) 2011 Anders Sundman <anders@4zm.org>
+ *
+ * This file is part of SLURP.
+ *
+ * SLURP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SLURP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with SLURP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sparvnastet.slurp;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compares a set of dumps, typically all dumps of one tag, to find out which
+ * bytes change between taps.
+ *
+ * The dumps are grouped by tag (the UID in the file name) and ordered by the
+ * time they were saved. For every pair of consecutive dumps of the same tag
+ * the changed bytes are counted, giving a heatmap over the dump layout, dumps
+ * of different tags are never compared. Blocks that are value blocks in every
+ * dump are flagged, and if the value only moves in one direction the block is
+ * flagged as a counter.
+ *
+ * The counts are kept per pair of consecutive dumps, so adding dumps only
+ * compares the pairs the new dumps take part in. The dumps are read into a
+ * single flat buffer, and large batches are split over the executor by block
+ * range. Plain reads are used, memory mappings of the whole store would only
+ * be released by the garbage collector.
+ *
+ * A desktop tool for now, see main(). The app doesn't use it.
+ */
+public class DumpCorpus {
+    public final static int FLAG_CHANGED = 1;
+    public final static int FLAG_VALUE_BLOCK = 2;
+    public final static int FLAG_COUNTER = 4;
+
+    private final static int DUMP_SIZE = DumpStore.DUMP_SIZE;
+    private final static int BLOCK_SIZE = DumpStore.BLOCK_SIZE;
+    private final static int BLOCK_COUNT = DUMP_SIZE / BLOCK_SIZE;
+
+    // Fewer dumps to compare than this isn't worth splitting over threads
+    private final static int MIN_PARALLEL_DUMPS = 16;
+    private final static int INITIAL_CAPACITY = 16;
+
+    private final ExecutorService mExecutor;
+    private final int mParts;
+
+    // DUMP_SIZE bytes per slot, slots in the order the dumps were added
+    private byte[] mData = new byte[INITIAL_CAPACITY * DUMP_SIZE];
+    private String[] mNames = new String[INITIAL_CAPACITY];
+    private String[] mUids = new String[INITIAL_CAPACITY];
+    private long[] mTimestamps = new long[INITIAL_CAPACITY];
+    private int mSlotCount;
+    private final HashSet<String> mNameSet = new HashSet<String>();
+
+    // Slots by UID, then time
+    private int[] mOrder = new int[INITIAL_CAPACITY];
+
+    // Number of consecutive dump pairs (of the same tag) where the byte/block
+    // changed
+    private final int[] mByteChanges = new int[DUMP_SIZE];
+    private final int[] mBlockChanges = new int[BLOCK_COUNT];
+
+    // Number of dumps where the block is a value block, and number of pairs
+    // where the value went up or down
+    private final int[] mValueDumps = new int[BLOCK_COUNT];
+    private final int[] mValueUp = new int[BLOCK_COUNT];
+    private final int[] mValueDown = new int[BLOCK_COUNT];
+
+    /**
+     * @param executor
+     *            Used to load and compare large batches of dumps in parallel.
+     *            May be null, then everything runs on the calling thread.
+     */
+    public DumpCorpus(ExecutorService executor) {
+        mExecutor = executor;
+        mParts = executor == null ? 1 : Runtime.getRuntime().availableProcessors();
+    }
+
+    public synchronized int size() {
+        return mSlotCount;
+    }
+
+    public boolean add(File dump) {
+        return addAll(new File[] { dump }) == 1;
+    }
+
+    /**
+     * Add dumps to the corpus. Dumps already in the corpus (by file name) and
+     * dumps that can't be read are skipped.
+     *
+     * @param dumps
+     * @return Number of dumps added.
+     */
+    public synchronized int addAll(File[] dumps) {
+        final List<File> files = new ArrayList<File>();
+        for (File dump : dumps) {
+            if (!mNameSet.contains(dump.getName()) && !containsName(files, dump.getName()))
+                files.add(dump);
+        }
+        if (files.isEmpty())
+            return 0;
+
+        ensureCapacity(mSlotCount + files.size());
+        final int firstSlot = mSlotCount;
+        final boolean[] loaded = new boolean[files.size()];
+        runParts(files.size(), new Part() {
+            public void run(int from, int to) {
+                byte[] buffer = new byte[DUMP_SIZE];
+                for (int i = from; i < to; ++i) {
+                    try {
+                        int length = DumpStore.readDump(files.get(i), buffer);
+                        Arrays.fill(buffer, length, DUMP_SIZE, (byte) 0);
+                        System.arraycopy(buffer, 0, mData, (firstSlot + i) * DUMP_SIZE, DUMP_SIZE);
+                        loaded[i] = true;
+                    } catch (IOException e) {
+                        // Skipped, like the key harvester does
+                    }
+                }
+            }
+        });
+
+        // Compact the loaded dumps into consecutive slots
+        int slot = firstSlot;
+        for (int i = 0; i < files.size(); ++i) {
+            if (!loaded[i])
+                continue;
+            if (slot != firstSlot + i)
+                System.arraycopy(mData, (firstSlot + i) * DUMP_SIZE, mData, slot * DUMP_SIZE, DUMP_SIZE);
+            mNames[slot] = files.get(i).getName();
+            mUids[slot] = DumpStore.getUid(mNames[slot]);
+            mTimestamps[slot] = DumpStore.getTimestamp(mNames[slot]);
+            mNameSet.add(mNames[slot]);
+            ++slot;
+        }
+        Arrays.fill(mData, slot * DUMP_SIZE, (firstSlot + files.size()) * DUMP_SIZE, (byte) 0);
+
+        int added = slot - firstSlot;
+        if (added > 0)
+            insert(firstSlot, added);
+        return added;
+    }
+
+    /**
+     * @return Number of changes of the byte between consecutive dumps of the
+     *         same tag.
+     */
+    public synchronized int getChangeCount(int offset) {
+        return mByteChanges[offset];
+    }
+
+    /**
+     * @return The change count of every byte in the dump layout.
+     */
+    public synchronized int[] getHeatmap() {
+        return mByteChanges.clone();
+    }
+
+    /**
+     * @return A bitset (bit n of word n / 64) of the bytes that changed
+     *         between any two consecutive dumps of the same tag.
+     */
+    public synchronized long[] getChangedBits() {
+        long[] bits = new long[DUMP_SIZE / 64];
+        for (int i = 0; i < DUMP_SIZE; ++i) {
+            if (mByteChanges[i] > 0)
+                bits[i >> 6] |= 1L << i;
+        }
+        return bits;
+    }
+
+    /**
+     * @param index
+     *            Index of a dump in corpus order, > 0.
+     * @return A bitset of the bytes that changed since the previous dump of
+     *         the same tag, no bits for the first dump of a tag.
+     */
+    public synchronized long[] getChangedBits(int index) {
+        assert (index > 0 && index < mSlotCount);
+        long[] bits = new long[DUMP_SIZE / 64];
+        if (!isSameTag(mOrder[index - 1], mOrder[index]))
+            return bits;
+
+        byte[] data = mData;
+        int a = mOrder[index - 1] * DUMP_SIZE;
+        int b = mOrder[index] * DUMP_SIZE;
+        for (int i = 0; i < DUMP_SIZE; ++i) {
+            if (data[a + i] != data[b + i])
+                bits[i >> 6] |= 1L << i;
+        }
+        return bits;
+    }
+
+    /**
+     * @return FLAG_* bits of the block.
+     */
+    public synchronized int getBlockFlags(int block) {
+        int flags = 0;
+        if (mBlockChanges[block] > 0)
+            flags |= FLAG_CHANGED;
+
+        if (mSlotCount > 0 && mValueDumps[block] == mSlotCount) {
+            flags |= FLAG_VALUE_BLOCK;
+            if ((mValueUp[block] > 0) != (mValueDown[block] > 0))
+                flags |= FLAG_COUNTER;
+        }
+        return flags;
+    }
+
+    /**
+     * @param index
+     *            Index of a dump in corpus order.
+     */
+    public synchronized String getDumpName(int index) {
+        return mNames[mOrder[index]];
+    }
+
+    /**
+     * Copy a dump into a buffer of at least DUMP_SIZE bytes.
+     *
+     * @param index
+     *            Index of a dump in corpus order.
+     */
+    public synchronized void getDump(int index, byte[] buffer) {
+        System.arraycopy(mData, mOrder[index] * DUMP_SIZE, buffer, 0, DUMP_SIZE);
+    }
+
+    /**
+     * Put new slots into the corpus order and update the counts for the
+     * consecutive pairs that were broken up or created.
+     */
+    private void insert(int firstSlot, int count) {
+        Integer[] newSlots = new Integer[count];
+        for (int i = 0; i < count; ++i)
+            newSlots[i] = firstSlot + i;
+        Arrays.sort(newSlots, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return compareSlots(a, b);
+            }
+        });
+
+        int oldCount = firstSlot;
+        int[] order = new int[mOrder.length];
+        int i = 0, j = 0, n = 0;
+        while (i < oldCount || j < count) {
+            if (j == count || (i < oldCount && compareSlots(mOrder[i], newSlots[j]) < 0))
+                order[n++] = mOrder[i++];
+            else
+                order[n++] = newSlots[j++];
+        }
+
+        LongKeySet oldPairs = getPairs(mOrder, oldCount);
+        LongKeySet newPairs = getPairs(order, n);
+
+        final long[] pairs = new long[oldCount + n];
+        final int[] signs = new int[pairs.length];
+        int pairCount = 0;
+        for (long pair : oldPairs.toArray()) {
+            if (!newPairs.contains(pair)) {
+                pairs[pairCount] = pair;
+                signs[pairCount++] = -1;
+            }
+        }
+        for (long pair : newPairs.toArray()) {
+            if (!oldPairs.contains(pair)) {
+                pairs[pairCount] = pair;
+                signs[pairCount++] = 1;
+            }
+        }
+
+        mOrder = order;
+        mSlotCount = n;
+
+        final int pairTotal = pairCount;
+        final int slotStart = firstSlot;
+        final int slotEnd = firstSlot + count;
+        Part compare = new Part() {
+            public void run(int from, int to) {
+                compare(pairs, signs, pairTotal, slotStart, slotEnd, from, to);
+            }
+        };
+
+        if (pairCount + count < MIN_PARALLEL_DUMPS)
+            compare.run(0, BLOCK_COUNT);
+        else
+            runParts(BLOCK_COUNT, compare);
+    }
+
+    /**
+     * Update the counts of a range of blocks. Different block ranges can be
+     * updated at the same time.
+     */
+    private void compare(long[] pairs, int[] signs, int pairCount, int slotStart, int slotEnd, int fromBlock,
+            int toBlock) {
+        byte[] data = mData; // Local variable optimization
+        int[] byteChanges = mByteChanges;
+
+        for (int p = 0; p < pairCount; ++p) {
+            int a = (int) (pairs[p] >>> 32) * DUMP_SIZE;
+            int b = (int) pairs[p] * DUMP_SIZE;
+            int sign = signs[p];
+
+            for (int block = fromBlock; block < toBlock; ++block) {
+                int base = block * BLOCK_SIZE;
+                boolean changed = false;
+                for (int i = base; i < base + BLOCK_SIZE; ++i) {
+                    if (data[a + i] != data[b + i]) {
+                        byteChanges[i] += sign;
+                        changed = true;
+                    }
+                }
+                if (!changed)
+                    continue;
+
+                mBlockChanges[block] += sign;
+                if (ValueBlock.isValid(data, a + base) && ValueBlock.isValid(data, b + base)) {
+                    int before = ValueBlock.getValue(data, a + base);
+                    int after = ValueBlock.getValue(data, b + base);
+                    if (after > before)
+                        mValueUp[block] += sign;
+                    else if (after < before)
+                        mValueDown[block] += sign;
+                }
+            }
+        }
+
+        for (int slot = slotStart; slot < slotEnd; ++slot) {
+            for (int block = fromBlock; block < toBlock; ++block) {
+                if (ValueBlock.isValid(data, slot * DUMP_SIZE + block * BLOCK_SIZE))
+                    ++mValueDumps[block];
+            }
+        }
+    }
+
+    /**
+     * Order slots by UID, then by time. Dumps without a time are ordered by
+     * name.
+     */
+    private int compareSlots(int a, int b) {
+        int uid = mUids[a].compareTo(mUids[b]);
+        if (uid != 0)
+            return uid;
+        if (mTimestamps[a] != mTimestamps[b])
+            return mTimestamps[a] < mTimestamps[b] ? -1 : 1;
+        return mNames[a].compareTo(mNames[b]);
+    }
+
+    private boolean isSameTag(int slotA, int slotB) {
+        return mUids[slotA].equals(mUids[slotB]);
+    }
+
+    /**
+     * @return The consecutive pairs of dumps of the same tag, as slot pairs.
+     */
+    private LongKeySet getPairs(int[] order, int count) {
+        LongKeySet pairs = new LongKeySet(count);
+        for (int i = 1; i < count; ++i) {
+            if (isSameTag(order[i - 1], order[i]))
+                pairs.add((long) order[i - 1] << 32 | order[i]);
+        }
+        return pairs;
+    }
+
+    private static boolean containsName(List<File> files, String name) {
+        for (File file : files) {
+            if (file.getName().equals(name))
+                return true;
+        }
+        return false;
+    }
+
+    private void ensureCapacity(int slots) {
+        if (slots <= mNames.length)
+            return;
+
+        int capacity = mNames.length;
+        while (capacity < slots)
+            capacity <<= 1;
+
+        mData = Arrays.copyOf(mData, capacity * DUMP_SIZE);
+        mNames = Arrays.copyOf(mNames, capacity);
+        mUids = Arrays.copyOf(mUids, capacity);
+        mTimestamps = Arrays.copyOf(mTimestamps, capacity);
+        mOrder = Arrays.copyOf(mOrder, capacity);
+    }
+
+    private interface Part {
+        void run(int from, int to);
+    }
+
+    /**
+     * Split [0, count) into ranges and run them on the executor, waiting for
+     * all of them to finish.
+     */
+    private void runParts(int count, final Part part) {
+        int parts = Math.min(mParts, count);
+        if (parts <= 1) {
+            part.run(0, count);
+            return;
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(parts);
+        for (int i = 0; i < parts; ++i) {
+            final int from = (int) ((long) count * i / parts);
+            final int to = (int) ((long) count * (i + 1) / parts);
+            tasks.add(new Callable<Void>() {
+                public Void call() {
+                    part.run(from, to);
+                    return null;
+                }
+            });
+        }
+
+        try {
+            for (Future<Void> future : mExecutor.invokeAll(tasks))
+                future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while comparing dumps");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Comparing dumps failed", e.getCause());
+        }
+    }
+
+    /**
+     * Print the blocks that change in the dumps of a directory, optionally only
+     * the dumps of one UID.
+     *
+     * Usage: DumpCorpus directory [uid]
+     */
+    public static void main(String[] args) {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: DumpCorpus directory [uid]");
+            System.exit(1);
+        }
+
+        DumpStore store = new DumpStore(new File(args[0]));
+        File[] dumps = args.length == 2 ? store.listDumps(args[1]) : store.listDumps();
+
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            DumpCorpus corpus = new DumpCorpus(executor);
+            long start = System.nanoTime();
+            int added = corpus.addAll(dumps);
+            System.out.println(added + " dumps compared in " + (System.nanoTime() - start) / 1000000 + " ms");
+
+            for (int block = 0; block < BLOCK_COUNT; ++block) {
+                int flags = corpus.getBlockFlags(block);
+                if ((flags & FLAG_CHANGED) == 0)
+                    continue;
+
+                StringBuilder sb = new StringBuilder();
+                sb.append("Block ").append(block);
+                if ((flags & FLAG_COUNTER) != 0)
+                    sb.append(" [counter]");
+                else if ((flags & FLAG_VALUE_BLOCK) != 0)
+                    sb.append(" [value]");
+                sb.append(":");
+                for (int i = 0; i < BLOCK_SIZE; ++i)
+                    sb.append(" ").append(corpus.getChangeCount(block * BLOCK_SIZE + i));
+                System.out.println(sb);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
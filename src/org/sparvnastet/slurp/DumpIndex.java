@@ -0,0 +1,647 @@
+/**
+ * Copyright (c) 2011 Anders Sundman <anders@4zm.org>
+ *
+ * This file is part of SLURP.
+ *
+ * SLURP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SLURP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with SLURP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sparvnastet.slurp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * An index for finding the dumps in the store that contain a byte pattern.
+ *
+ * Every trigram (three consecutive bytes) of a dump is hashed into one of
+ * 2^16 buckets, and every bucket has a sorted list of the dumps that have a
+ * trigram in it. A query intersects the lists of the trigrams in the pattern,
+ * starting with the shortest, and only reads the remaining candidate dumps to
+ * verify the match. Hash collisions only cost an extra verification.
+ *
+ * The lists are stored as the varint encoded differences between consecutive
+ * dump ids, most of them fit in a byte. Dumps are added incrementally, a dump
+ * already in the index (by file name) isn't added again, and the index can be
+ * saved and loaded so the store doesn't have to be read again at startup.
+ *
+ * A pattern that is in most dumps (e.g. the transport keys) leaves many
+ * candidates, so at most a given number of them are read, newest first by the
+ * time in their names. Dumps that have been deleted from the store are
+ * dropped from the index when they are found missing.
+ */
+public class DumpIndex {
+    private final static int GRAM_SIZE = 3;
+    private final static int BUCKET_BITS = 16;
+    private final static int BUCKETS = 1 << BUCKET_BITS;
+    private final static int MIN_POSTING_BYTES = 4;
+    private final static int MAGIC = 0x44494458;
+    private final static int VERSION = 1;
+    private final static String TMP_SUFFIX = ".tmp";
+
+    /**
+     * A dump containing the pattern.
+     */
+    public static class Match {
+        private final File mFile;
+        private final String mUid;
+        private final long mTimestamp;
+        private final int mOffset;
+
+        Match(File file, String uid, long timestamp, int offset) {
+            mFile = file;
+            mUid = uid;
+            mTimestamp = timestamp;
+            mOffset = offset;
+        }
+
+        public File getFile() {
+            return mFile;
+        }
+
+        public String getUid() {
+            return mUid;
+        }
+
+        /**
+         * @return When the dump was saved, -1 if unknown.
+         */
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        /**
+         * @return Offset of the first match in the dump.
+         */
+        public int getOffset() {
+            return mOffset;
+        }
+
+        public int getBlock() {
+            return mOffset / DumpStore.BLOCK_SIZE;
+        }
+    }
+
+    /**
+     * The matches of a search.
+     */
+    public static class Result {
+        private final List<Match> mMatches;
+        private final int mCandidates;
+        private final int mVerified;
+
+        Result(List<Match> matches, int candidates, int verified) {
+            mMatches = matches;
+            mCandidates = candidates;
+            mVerified = verified;
+        }
+
+        /**
+         * @return The matching dumps, oldest first.
+         */
+        public List<Match> getMatches() {
+            return mMatches;
+        }
+
+        /**
+         * @return Number of dumps the index couldn't rule out.
+         */
+        public int getCandidateCount() {
+            return mCandidates;
+        }
+
+        /**
+         * @return Number of candidates that were read. Fewer than the
+         *         candidates if the search hit its limit.
+         */
+        public int getVerifiedCount() {
+            return mVerified;
+        }
+
+        public boolean isComplete() {
+            return mVerified == mCandidates;
+        }
+    }
+
+    // Posting lists, varint encoded differences of increasing dump ids
+    private final byte[][] mPostings = new byte[BUCKETS][];
+    private final int[] mPostingBytes = new int[BUCKETS];
+    private final int[] mPostingCounts = new int[BUCKETS];
+    private final int[] mLastIds = new int[BUCKETS];
+
+    // Dump ids are indexes into these. Only the names are kept, the files
+    // and UIDs are made for the matches.
+    private File mDirectory;
+    private String[] mFileNames = new String[16];
+    private long[] mTimestamps = new long[16];
+    private int mCount;
+    private final HashSet<String> mNames = new HashSet<String>();
+    private boolean mDirty;
+
+    // Reused when adding and verifying
+    private final long[] mSeen = new long[BUCKETS / 64];
+    private final byte[] mBuffer = new byte[DumpStore.DUMP_SIZE];
+
+    public synchronized int size() {
+        return mCount;
+    }
+
+    /**
+     * @return true if dumps have been added since the index was loaded or
+     *         saved.
+     */
+    public synchronized boolean isDirty() {
+        return mDirty;
+    }
+
+    /**
+     * @return Bytes used by the posting lists.
+     */
+    public synchronized long getPostingBytes() {
+        long bytes = 0;
+        for (byte[] postings : mPostings) {
+            if (postings != null)
+                bytes += postings.length;
+        }
+        return bytes;
+    }
+
+    /**
+     * Index the dumps in the store that aren't indexed yet.
+     *
+     * @param store
+     * @return Number of dumps added.
+     */
+    public int addAll(DumpStore store) {
+        int added = 0;
+        for (File dump : store.listDumps()) {
+            if (add(dump))
+                ++added;
+        }
+        if (added > 0)
+            trim();
+        return added;
+    }
+
+    /**
+     * Drop the room the posting lists have grown into but not used.
+     */
+    private synchronized void trim() {
+        for (int bucket = 0; bucket < BUCKETS; ++bucket) {
+            if (mPostings[bucket] != null && mPostings[bucket].length > mPostingBytes[bucket])
+                mPostings[bucket] = Arrays.copyOf(mPostings[bucket], mPostingBytes[bucket]);
+        }
+    }
+
+    /**
+     * Index a dump.
+     *
+     * @param dump
+     * @return false if the dump was already indexed or can't be read.
+     */
+    public synchronized boolean add(File dump) {
+        if (mNames.contains(dump.getName()))
+            return false;
+
+        int length;
+        try {
+            length = DumpStore.readDump(dump, mBuffer);
+        } catch (IOException e) {
+            return false;
+        }
+
+        int id = addFile(dump);
+        byte[] data = mBuffer; // Local variable optimization
+        long[] seen = mSeen;
+        Arrays.fill(seen, 0);
+        for (int i = 0; i + GRAM_SIZE <= length; ++i) {
+            int bucket = bucket(data, i);
+            if ((seen[bucket >> 6] & (1L << bucket)) == 0) {
+                seen[bucket >> 6] |= 1L << bucket;
+                addPosting(bucket, id);
+            }
+        }
+
+        mDirty = true;
+        return true;
+    }
+
+    /**
+     * Find the dumps containing a byte sequence.
+     *
+     * @param pattern
+     * @param maxVerified
+     *            Max number of candidate dumps to read, the newest are read
+     *            first.
+     * @return The matches.
+     */
+    public synchronized Result search(byte[] pattern, int maxVerified) {
+        List<Match> matches = new ArrayList<Match>();
+        if (pattern.length == 0 || pattern.length > DumpStore.DUMP_SIZE)
+            return new Result(matches, 0, 0);
+
+        int[] candidates = getCandidates(pattern);
+        if (candidates == null) {
+            candidates = new int[mCount];
+            for (int id = 0; id < mCount; ++id)
+                candidates[id] = id;
+        }
+        int candidateCount = candidates.length;
+        if (candidateCount > maxVerified)
+            candidates = getNewest(candidates, maxVerified);
+
+        boolean[] missing = null;
+        int missingCount = 0;
+        for (int id : candidates) {
+            File file = new File(mDirectory, mFileNames[id]);
+            int length;
+            try {
+                length = DumpStore.readDump(file, mBuffer);
+            } catch (IOException e) {
+                // Deleted from the store since it was indexed
+                if (!file.exists()) {
+                    if (missing == null)
+                        missing = new boolean[mCount];
+                    missing[id] = true;
+                    ++missingCount;
+                }
+                continue;
+            }
+
+            int offset = indexOf(mBuffer, length, pattern);
+            if (offset >= 0)
+                matches.add(new Match(file, DumpStore.getUid(mFileNames[id]), mTimestamps[id], offset));
+        }
+        if (missing != null)
+            remove(missing);
+
+        Collections.sort(matches, new Comparator<Match>() {
+            public int compare(Match a, Match b) {
+                return a.mTimestamp < b.mTimestamp ? -1 : (a.mTimestamp == b.mTimestamp ? 0 : 1);
+            }
+        });
+        return new Result(matches, candidateCount - missingCount, candidates.length - missingCount);
+    }
+
+    /**
+     * Drop the dumps that have been deleted from the store.
+     *
+     * @return Number of dumps dropped.
+     */
+    public synchronized int removeMissing() {
+        boolean[] missing = new boolean[mCount];
+        int missingCount = 0;
+        for (int id = 0; id < mCount; ++id) {
+            if (!new File(mDirectory, mFileNames[id]).exists()) {
+                missing[id] = true;
+                ++missingCount;
+            }
+        }
+        if (missingCount > 0)
+            remove(missing);
+        return missingCount;
+    }
+
+    /**
+     * Save the index. Written to a temporary file that is then renamed.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public synchronized void save(File file) throws IOException {
+        File tmpFile = new File(file.getPath() + TMP_SUFFIX);
+        DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+        try {
+            os.writeInt(MAGIC);
+            os.writeInt(VERSION);
+            os.writeInt(mCount);
+            for (int id = 0; id < mCount; ++id)
+                os.writeUTF(mFileNames[id]);
+
+            for (int bucket = 0; bucket < BUCKETS; ++bucket) {
+                os.writeInt(mPostingCounts[bucket]);
+                if (mPostingCounts[bucket] == 0)
+                    continue;
+                os.writeInt(mLastIds[bucket]);
+                os.writeInt(mPostingBytes[bucket]);
+                os.write(mPostings[bucket], 0, mPostingBytes[bucket]);
+            }
+        } finally {
+            os.close();
+        }
+
+        if (!tmpFile.renameTo(file)) {
+            tmpFile.delete();
+            throw new IOException("Can't rename " + tmpFile + " to " + file);
+        }
+        mDirty = false;
+    }
+
+    /**
+     * Load a saved index into an empty index.
+     *
+     * @param file
+     * @param store
+     *            The store the dumps of the index are in.
+     * @throws IOException
+     *             If the file isn't a saved index. The index is left empty.
+     */
+    public synchronized void load(File file, DumpStore store) throws IOException {
+        assert (mCount == 0);
+
+        DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (is.readInt() != MAGIC || is.readInt() != VERSION)
+                throw new IOException("Not a dump index: " + file);
+
+            int count = is.readInt();
+            for (int id = 0; id < count; ++id)
+                addFile(new File(store.getDirectory(), is.readUTF()));
+
+            for (int bucket = 0; bucket < BUCKETS; ++bucket) {
+                int postingCount = is.readInt();
+                if (postingCount == 0)
+                    continue;
+                mPostingCounts[bucket] = postingCount;
+                mLastIds[bucket] = is.readInt();
+                mPostingBytes[bucket] = is.readInt();
+                mPostings[bucket] = new byte[mPostingBytes[bucket]];
+                is.readFully(mPostings[bucket]);
+            }
+        } catch (IOException e) {
+            clear();
+            throw e;
+        } finally {
+            is.close();
+        }
+        mDirty = false;
+    }
+
+    private void clear() {
+        Arrays.fill(mPostings, null);
+        Arrays.fill(mPostingBytes, 0);
+        Arrays.fill(mPostingCounts, 0);
+        Arrays.fill(mLastIds, 0);
+        Arrays.fill(mFileNames, null);
+        mCount = 0;
+        mNames.clear();
+    }
+
+    /**
+     * Drop dumps from the index. The remaining dumps get new ids, so every
+     * posting list is rewritten.
+     *
+     * @param removed
+     *            Flag per dump id.
+     */
+    private void remove(boolean[] removed) {
+        int[] newIds = new int[mCount];
+        int n = 0;
+        for (int id = 0; id < mCount; ++id) {
+            if (removed[id]) {
+                newIds[id] = -1;
+                mNames.remove(mFileNames[id]);
+                continue;
+            }
+            newIds[id] = n;
+            mFileNames[n] = mFileNames[id];
+            mTimestamps[n++] = mTimestamps[id];
+        }
+        Arrays.fill(mFileNames, n, mCount, null);
+        mCount = n;
+
+        int[] ids = new int[n];
+        for (int bucket = 0; bucket < BUCKETS; ++bucket) {
+            int count = mPostingCounts[bucket];
+            if (count == 0)
+                continue;
+            if (ids.length < count)
+                ids = new int[count];
+            decode(bucket, ids);
+
+            mPostingBytes[bucket] = 0;
+            mPostingCounts[bucket] = 0;
+            mLastIds[bucket] = 0;
+            for (int i = 0; i < count; ++i) {
+                if (newIds[ids[i]] >= 0)
+                    addPosting(bucket, newIds[ids[i]]);
+            }
+            if (mPostingCounts[bucket] == 0)
+                mPostings[bucket] = null;
+        }
+        trim();
+        mDirty = true;
+    }
+
+    /**
+     * @return The count newest of the ids, newest first. Dumps without a time
+     *         are the oldest.
+     */
+    private int[] getNewest(int[] ids, int count) {
+        Integer[] sorted = new Integer[ids.length];
+        for (int i = 0; i < ids.length; ++i)
+            sorted[i] = ids[i];
+
+        final long[] timestamps = mTimestamps; // Local variable optimization
+        Arrays.sort(sorted, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                long ta = timestamps[a];
+                long tb = timestamps[b];
+                if (ta != tb)
+                    return ta > tb ? -1 : 1;
+                return b - a;
+            }
+        });
+
+        int[] newest = new int[count];
+        for (int i = 0; i < count; ++i)
+            newest[i] = sorted[i];
+        return newest;
+    }
+
+    /**
+     * @return The id of a new dump.
+     */
+    private int addFile(File dump) {
+        assert (mDirectory == null || mDirectory.equals(dump.getParentFile()));
+        if (mCount == mFileNames.length) {
+            mFileNames = Arrays.copyOf(mFileNames, 2 * mCount);
+            mTimestamps = Arrays.copyOf(mTimestamps, 2 * mCount);
+        }
+
+        String name = dump.getName();
+        int id = mCount++;
+        mDirectory = dump.getParentFile();
+        mFileNames[id] = name;
+        mTimestamps[id] = DumpStore.getTimestamp(name);
+        mNames.add(name);
+        return id;
+    }
+
+    /**
+     * @return The ids of the dumps that may contain the pattern, in
+     *         increasing order. null if every dump may (the pattern is
+     *         shorter than a trigram).
+     */
+    private int[] getCandidates(byte[] pattern) {
+        if (pattern.length < GRAM_SIZE)
+            return null;
+
+        // The distinct buckets of the pattern, shortest posting list first
+        int[] buckets = new int[pattern.length - GRAM_SIZE + 1];
+        int n = 0;
+        for (int i = 0; i < buckets.length; ++i) {
+            int bucket = bucket(pattern, i);
+            if (mPostingCounts[bucket] == 0)
+                return new int[0];
+
+            boolean found = false;
+            for (int j = 0; j < n && !found; ++j)
+                found = buckets[j] == bucket;
+            if (!found)
+                buckets[n++] = bucket;
+        }
+        sortByPostingCount(buckets, n);
+
+        int[] candidates = new int[mPostingCounts[buckets[0]]];
+        int candidateCount = decode(buckets[0], candidates);
+        for (int i = 1; i < n && candidateCount > 0; ++i)
+            candidateCount = intersect(candidates, candidateCount, buckets[i]);
+
+        return Arrays.copyOf(candidates, candidateCount);
+    }
+
+    /**
+     * Decode the posting list of a bucket.
+     *
+     * @return Number of ids.
+     */
+    private int decode(int bucket, int[] ids) {
+        byte[] postings = mPostings[bucket];
+        int end = mPostingBytes[bucket];
+        int id = 0;
+        int n = 0;
+        for (int pos = 0; pos < end;) {
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = postings[pos++];
+                delta |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            id += delta;
+            ids[n++] = id;
+        }
+        return n;
+    }
+
+    /**
+     * Keep the ids in a that are also in the posting list of a bucket, both
+     * sorted. The list is decoded while it's merged.
+     *
+     * @return The new number of ids in a.
+     */
+    private int intersect(int[] a, int aCount, int bucket) {
+        byte[] postings = mPostings[bucket];
+        int end = mPostingBytes[bucket];
+        int i = 0, n = 0, pos = 0, id = 0;
+        while (i < aCount && pos < end) {
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = postings[pos++];
+                delta |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            id += delta;
+
+            while (i < aCount && a[i] < id)
+                ++i;
+            if (i < aCount && a[i] == id)
+                a[n++] = a[i++];
+        }
+        return n;
+    }
+
+    private void sortByPostingCount(int[] buckets, int n) {
+        // Insertion sort, a pattern has few trigrams
+        for (int i = 1; i < n; ++i) {
+            int bucket = buckets[i];
+            int j = i - 1;
+            while (j >= 0 && mPostingCounts[buckets[j]] > mPostingCounts[bucket]) {
+                buckets[j + 1] = buckets[j];
+                --j;
+            }
+            buckets[j + 1] = bucket;
+        }
+    }
+
+    private void addPosting(int bucket, int id) {
+        byte[] postings = mPostings[bucket];
+        int pos = mPostingBytes[bucket];
+        if (postings == null)
+            postings = mPostings[bucket] = new byte[MIN_POSTING_BYTES];
+        else if (pos + 5 > postings.length)
+            postings = mPostings[bucket] = Arrays.copyOf(postings, Math.max(pos + 5, pos + (pos >> 1)));
+
+        // The first id is stored as it is, the rest as the difference to the
+        // previous one
+        int delta = id - mLastIds[bucket];
+        while ((delta & ~0x7f) != 0) {
+            postings[pos++] = (byte) (delta | 0x80);
+            delta >>>= 7;
+        }
+        postings[pos++] = (byte) delta;
+
+        mPostingBytes[bucket] = pos;
+        mPostingCounts[bucket]++;
+        mLastIds[bucket] = id;
+    }
+
+    private static int bucket(byte[] data, int offset) {
+        int gram = (data[offset] & 0xff) << 16 | (data[offset + 1] & 0xff) << 8 | (data[offset + 2] & 0xff);
+        // Fibonacci hashing, the top bits are the best mixed
+        return (gram * 0x9e3779b1) >>> (32 - BUCKET_BITS);
+    }
+
+    private static int indexOf(byte[] data, int length, byte[] pattern) {
+        byte first = pattern[0];
+        int last = length - pattern.length;
+        for (int i = 0; i <= last; ++i) {
+            if (data[i] != first)
+                continue;
+
+            int j = 1;
+            while (j < pattern.length && data[i + j] == pattern[j])
+                ++j;
+            if (j == pattern.length)
+                return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,175 @@
+/**
+ * Copyright (c) 2011 Anders Sundman <anders@4zm.org>
+ *
+ * This file is part of SLURP.
+ *
+ * SLURP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SLURP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with SLURP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sparvnastet.slurp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+
+/**
+ * The directory where tag dumps (*.card files) are saved.
+ *
+ * A dump is the raw block data of the tag, padded to the size of a 4k tag
+ * (nfc-mfclassic compatible). The block layout of the dump file is therefore
+ * always the 4k layout: 32 sectors of 4 blocks followed by 8 sectors of 16
+ * blocks.
+ */
+public class DumpStore {
+
+    public final static String DUMP_SUFFIX = ".card";
+    public final static String DATE_FORMAT = "yyyyMMdd.HHmmss";
+    public final static int DUMP_SIZE = 4096;
+    public final static int BLOCK_SIZE = 16;
+    public final static int MAX_SECTORS = 40;
+
+    private final static int SMALL_SECTORS = 32;
+    private final static int SMALL_SECTOR_BLOCKS = 4;
+    private final static int LARGE_SECTOR_BLOCKS = 16;
+
+    private final File mDirectory;
+
+    public DumpStore(File directory) {
+        assert (directory != null);
+        mDirectory = directory;
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * @return All dump files in the store, an empty array if the store can't
+     *         be accessed.
+     */
+    public File[] listDumps() {
+        return listDumps("");
+    }
+
+    /**
+     * @param uid
+     *            UID as hex string, see getUid. Empty for all dumps.
+     * @return The dump files of one tag.
+     */
+    public File[] listDumps(String uid) {
+        final String match = uid.toLowerCase();
+        File[] files = mDirectory.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                String name = file.getName();
+                return file.isFile() && name.endsWith(DUMP_SUFFIX)
+                        && (match.length() == 0 || getUid(name).equals(match));
+            }
+        });
+
+        return files == null ? new File[0] : files;
+    }
+
+    /**
+     * Dump files are named [Block 0].[Date].[Time].card, see
+     * TagData.getDumpFileName. Block 0 starts with the UID, either 4 bytes
+     * followed by their BCC or 7 bytes.
+     *
+     * @param fileName
+     * @return The UID as lower case hex, or the whole first part of the name
+     *         if it isn't a block 0 (e.g. dumps from other tools).
+     */
+    public static String getUid(String fileName) {
+        int dot = fileName.indexOf('.');
+        String block = (dot < 0 ? fileName : fileName.substring(0, dot)).toLowerCase();
+        if (block.length() != 2 * BLOCK_SIZE)
+            return block;
+
+        byte[] data;
+        try {
+            data = DataFormater.fromHexString(block);
+        } catch (IllegalArgumentException e) {
+            return block;
+        }
+        return block.substring(0, CardFamily.isBccValid(data, 0) ? 2 * 4 : 2 * 7);
+    }
+
+    /**
+     * @param fileName
+     * @return The time the dump was saved, in ms since the epoch. -1 if the
+     *         name doesn't contain a time (e.g. dumps from other tools).
+     */
+    public static long getTimestamp(String fileName) {
+        int dot = fileName.indexOf('.');
+        int end = dot + 1 + DATE_FORMAT.length();
+        if (dot < 0 || end > fileName.length())
+            return -1;
+
+        try {
+            return new SimpleDateFormat(DATE_FORMAT).parse(fileName.substring(dot + 1, end)).getTime();
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Read a dump file into a buffer.
+     *
+     * @param dumpFile
+     * @param buffer
+     *            At least DUMP_SIZE bytes. Reused between calls to avoid
+     *            allocations when scanning the store.
+     * @return Number of bytes read (dumps from other tools may be shorter).
+     * @throws IOException
+     */
+    public static int readDump(File dumpFile, byte[] buffer) throws IOException {
+        assert (buffer.length >= DUMP_SIZE);
+
+        InputStream is = new FileInputStream(dumpFile);
+        try {
+            int total = 0;
+            int n;
+            while (total < DUMP_SIZE && (n = is.read(buffer, total, DUMP_SIZE - total)) > 0)
+                total += n;
+            return total;
+        } finally {
+            is.close();
+        }
+    }
+
+    public static int getBlockCountInSector(int sector) {
+        assert (sector >= 0 && sector < MAX_SECTORS);
+        return sector < SMALL_SECTORS ? SMALL_SECTOR_BLOCKS : LARGE_SECTOR_BLOCKS;
+    }
+
+    /**
+     * @return Index of the first block of the sector in the dump.
+     */
+    public static int getFirstBlock(int sector) {
+        assert (sector >= 0 && sector < MAX_SECTORS);
+        if (sector < SMALL_SECTORS)
+            return sector * SMALL_SECTOR_BLOCKS;
+        return SMALL_SECTORS * SMALL_SECTOR_BLOCKS + (sector - SMALL_SECTORS) * LARGE_SECTOR_BLOCKS;
+    }
+
+    /**
+     * @return Byte offset of the sector trailer in the dump.
+     */
+    public static int getTrailerOffset(int sector) {
+        return (getFirstBlock(sector) + getBlockCountInSector(sector) - 1) * BLOCK_SIZE;
+    }
+}
@@ -0,0 +1,190 @@
+/**
+ * Copyright (c) 2011 Anders Sundman <anders@4zm.org>
+ *
+ * This file is part of SLURP.
+ *
+ * SLURP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SLURP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with SLURP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sparvnastet.slurp;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Finds corrupt blocks in flat block data, a whole dump or a single sector as
+ * it's read from the tag.
+ *
+ * Checks, in one sweep over the data, the BCC of block 0, the inverted copies
+ * of the access bits of every sector trailer, and the value block format of
+ * the data blocks whose access conditions allow value operations. Those
+ * conditions don't require the block to be a value block, so only blocks that
+ * look like damaged value blocks are flagged, see ValueBlock.isCorrupt. A
+ * sector with invalid access bits doesn't get its data blocks checked, since
+ * their access conditions can't be trusted. Only block 0 of a tag with a 4
+ * byte UID has a BCC, it's skipped for other UID lengths.
+ */
+public class DumpValidator {
+
+    /**
+     * Error flags of a block.
+     */
+    public final static int ERROR_BCC = 1;
+    public final static int ERROR_ACCESS_BITS = 2;
+    public final static int ERROR_VALUE_BLOCK = 4;
+
+    // Access conditions (C1 C2 C3) of the data block groups that allow value
+    // operations: 110 and 001
+    private final static int VALUE_CONDITIONS = 1 << 6 | 1 << 1;
+
+    // The only UID length block 0 has a BCC for
+    private final static int BCC_UID_LENGTH = 4;
+
+    /**
+     * Validate the sectors of a dump.
+     *
+     * @param dump
+     *            The dump, in the DumpStore block layout.
+     * @param sectorCount
+     *            Number of sectors to check, the dump may be padded beyond
+     *            them.
+     * @param uidLength
+     *            UID length of the tag in bytes, 0 if it isn't known.
+     * @param errors
+     *            Receives the error flags of every block, may be null.
+     * @return Number of corrupt blocks.
+     */
+    public static int validate(byte[] dump, int sectorCount, int uidLength, int[] errors) {
+        int corrupt = 0;
+        for (int sector = 0; sector < sectorCount; ++sector)
+            corrupt += validateSector(dump, DumpStore.getFirstBlock(sector) * DumpStore.BLOCK_SIZE, sector,
+                    uidLength, errors, DumpStore.getFirstBlock(sector));
+        return corrupt;
+    }
+
+    /**
+     * Validate one sector.
+     *
+     * @param data
+     *            Buffer containing the blocks of the sector.
+     * @param offset
+     *            Offset of the first block of the sector in data.
+     * @param sector
+     * @param uidLength
+     *            UID length of the tag in bytes, 0 if it isn't known.
+     * @param errors
+     *            Receives the error flags of the blocks, may be null.
+     * @param errorsOffset
+     *            Index in errors of the first block of the sector.
+     * @return Number of corrupt blocks in the sector.
+     */
+    public static int validateSector(byte[] data, int offset, int sector, int uidLength, int[] errors,
+            int errorsOffset) {
+        int blocks = DumpStore.getBlockCountInSector(sector);
+        int trailer = offset + (blocks - 1) * DumpStore.BLOCK_SIZE;
+        boolean accessBitsValid = AccessBits.isValid(data, trailer);
+
+        int corrupt = 0;
+        for (int i = 0; i < blocks; ++i) {
+            int block = offset + i * DumpStore.BLOCK_SIZE;
+            int error = 0;
+            if (i == blocks - 1) {
+                if (!accessBitsValid)
+                    error = ERROR_ACCESS_BITS;
+            } else {
+                if (sector == 0 && i == 0 && uidLength == BCC_UID_LENGTH && !CardFamily.isBccValid(data, block))
+                    error = ERROR_BCC;
+                else if (accessBitsValid && isValueCondition(data, trailer, getGroup(i, blocks))
+                        && ValueBlock.isCorrupt(data, block))
+                    error = ERROR_VALUE_BLOCK;
+            }
+
+            if (errors != null)
+                errors[errorsOffset + i] = error;
+            if (error != 0)
+                ++corrupt;
+        }
+        return corrupt;
+    }
+
+    /**
+     * @return The access condition group of a block in a sector: the block
+     *         itself in 4 block sectors, groups of 5 blocks in 16 block
+     *         sectors.
+     */
+    private static int getGroup(int blockInSector, int blocks) {
+        return blocks == 4 ? blockInSector : blockInSector / 5;
+    }
+
+    private static boolean isValueCondition(byte[] trailer, int offset, int group) {
+        return (VALUE_CONDITIONS >> AccessBits.getCondition(trailer, offset, group) & 1) != 0;
+    }
+
+    public static String toString(int error) {
+        StringBuilder sb = new StringBuilder();
+        if ((error & ERROR_BCC) != 0)
+            sb.append("[bcc]");
+        if ((error & ERROR_ACCESS_BITS) != 0)
+            sb.append("[access bits]");
+        if ((error & ERROR_VALUE_BLOCK) != 0)
+            sb.append("[value block]");
+        return sb.toString();
+    }
+
+    /**
+     * Validate the dumps in a directory, or dump files, and print the corrupt
+     * blocks.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: DumpValidator directory|dump...");
+            System.exit(1);
+        }
+
+        File[] dumps;
+        if (args.length == 1 && new File(args[0]).isDirectory()) {
+            dumps = new DumpStore(new File(args[0])).listDumps();
+        } else {
+            dumps = new File[args.length];
+            for (int i = 0; i < args.length; ++i)
+                dumps[i] = new File(args[i]);
+        }
+
+        byte[] dump = new byte[DumpStore.DUMP_SIZE];
+        int[] errors = new int[DumpStore.DUMP_SIZE / DumpStore.BLOCK_SIZE];
+        int corruptDumps = 0;
+        long start = System.nanoTime();
+        for (File file : dumps) {
+            int length = DumpStore.readDump(file, dump);
+            // Only the blocks of the validated sectors are written
+            Arrays.fill(errors, 0);
+
+            // The name of a saved dump has block 0 as read, it tells the UID
+            // length even if the data has been corrupted since
+            int uidLength = DumpStore.getUid(file.getName()).length() / 2;
+            if (validate(dump, CardFamily.getSectorCount(dump, length), uidLength, errors) == 0)
+                continue;
+
+            ++corruptDumps;
+            System.out.println(file.getName() + ":");
+            for (int block = 0; block < errors.length; ++block) {
+                if (errors[block] != 0)
+                    System.out.println("  Block " + block + " " + toString(errors[block]));
+            }
+        }
+        System.out.println(corruptDumps + " of " + dumps.length + " dumps corrupt, "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+}
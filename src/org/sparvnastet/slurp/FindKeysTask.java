@@ -20,115 +20,184 @@
 package org.sparvnastet.slurp;
 
 import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import android.app.ProgressDialog;
-import android.nfc.tech.MifareClassic;
 import android.os.AsyncTask;
 import android.util.Log;
 import android.widget.Toast;
 
-public class FindKeysTask extends AsyncTask<MifareClassic, Integer, MifareKeyChain> {
-    private enum SECTOR_KEY {
-        KEY_A, KEY_B
-    };
-
-    private MifareClassic mTag;
+public class FindKeysTask extends AsyncTask<MifareTag, Integer, MifareKeyChain> implements KeySearch.Listener {
+    private MifareTag mTag;
     private int mSectorCount;
-    private byte[][] mDefaultKeys;
+    private Future<KeyDictionary> mDictionaryFuture;
+    private SessionMetrics mMetrics;
+    private NegativeKeyCache mRejectedKeys;
 
     ProgressDialog mProgressDialog;
     SLURPActivity mActivity;
 
+    // UI state kept while no activity is attached
+    private int mProgress;
+    private boolean mFinished;
+    private MifareKeyChain mResult;
+
     public FindKeysTask(SLURPActivity activity) {
         assert (activity != null);
         mActivity = activity;
-        mDefaultKeys = mActivity.getDefaultKeys();
+        mDictionaryFuture = activity.getSession().getDictionary();
+        mMetrics = activity.getSession().getMetrics();
+        mRejectedKeys = activity.getSession().getRejectedKeys();
+    }
+
+    /**
+     * Attach a (new) activity, e.g. after a configuration change. Shows the
+     * progress again, or delivers the result if the task finished while no
+     * activity was attached.
+     *
+     * @param activity
+     */
+    public void attach(SLURPActivity activity) {
+        mActivity = activity;
+        if (mFinished)
+            deliverResult();
+        else
+            showProgress();
+    }
+
+    /**
+     * Detach from the activity. The task keeps running.
+     */
+    public void detach() {
+        if (mProgressDialog != null)
+            mProgressDialog.dismiss();
+        mProgressDialog = null;
+        mActivity = null;
     }
 
     @Override
     protected void onPreExecute() {
+        showProgress();
+    }
+
+    private void showProgress() {
         mActivity.setProgressBarIndeterminateVisibility(true);
 
         mProgressDialog = new ProgressDialog(mActivity);
         mProgressDialog.setProgressStyle(ProgressDialog.STYLE_SPINNER);
         mProgressDialog.setTitle("Trying keys...");
         mProgressDialog.setCancelable(false);
+        if (mSectorCount > 0)
+            mProgressDialog.setMessage("Sector:  " + mProgress + " / " + (mSectorCount - 1));
         mProgressDialog.show();
     }
 
     @Override
-    protected MifareKeyChain doInBackground(MifareClassic... tagParam) {
+    protected MifareKeyChain doInBackground(MifareTag... tagParam) {
         if (tagParam == null || tagParam.length != 1)
             return null;
 
         mTag = tagParam[0];
+        mSectorCount = mTag.getSectorCount();
 
         Log.i(SLURPActivity.LOGTAG, "TestKeysTask: doInBackground");
+        KeyDictionary dictionary;
         try {
-            mTag.connect();
-
-            mSectorCount = mTag.getSectorCount();
-            MifareKeyChain keyChain = new MifareKeyChain(mSectorCount);
-
-            byte[] keyA, keyB;
-            for (int i = 0; i < mSectorCount; ++i) {
-                publishProgress(i);
-
-                keyA = probeKey(mTag, i, SECTOR_KEY.KEY_A);
-                keyB = probeKey(mTag, i, SECTOR_KEY.KEY_B);
-                if (keyA == null || keyB == null) // Require both keys
-                    return null;
-
-                keyChain.setKeyA(i, keyA);
-                keyChain.setKeyB(i, keyB);
-            }
+            // Usually compiled long before the tag is detected
+            dictionary = mDictionaryFuture.get();
+        } catch (InterruptedException e) {
+            return null;
+        } catch (ExecutionException e) {
+            Log.e(SLURPActivity.LOGTAG, "TestKeysTask: No dictionary: " + e.getCause());
+            return null;
+        }
 
-            mTag.close();
+        int family = CardFamily.fromTag(mTag);
+        Log.i(SLURPActivity.LOGTAG, "TestKeysTask: Card family: " + CardFamily.toString(family) + ", "
+                + (dictionary.forFamily(family) != dictionary ? "has partition" : "no partition"));
+
+        mMetrics.clearAttempts();
+        KeySearchStrategy strategy = new KeyReuseKeySearchStrategy();
+        NegativeKeyCache rejectedKeys = mRejectedKeys;
+        TraceRecorder recorder = null;
+        if (mTag instanceof TraceRecorder) {
+            // Skipped attempts wouldn't be in the trace, the replay couldn't
+            // make the same ones
+            recorder = (TraceRecorder) mTag;
+            rejectedKeys = new NegativeKeyCache();
+            recorder.setSearch(strategy, dictionary);
+        }
 
-            return keyChain;
+        KeySearch search = new KeySearch(dictionary, rejectedKeys, strategy, this);
+        search.setClock(recorder);
+        try {
+            return search.search(mTag);
         } catch (IOException e) {
             Log.e(SLURPActivity.LOGTAG, "TestKeysTask: Auth IOException");
-            mTag = null;
             return null;
         }
     }
 
+    /** KeySearch.Listener, called on the background thread */
+
+    public void onSector(int sector, int sectorCount) {
+        publishProgress(sector);
+    }
+
+    public void onAttempt(int sector, boolean keyB, long key) {
+        Log.i(SLURPActivity.LOGTAG, "Sector: " + sector + ", Key (" + (keyB ? "KEY_B" : "KEY_A") + "): "
+                + DataFormater.keyToString(key));
+    }
+
+    public void onAttemptResult(int sector, boolean keyB, long key, boolean found, long nanos) {
+        mMetrics.addAttempt(KeySearch.attempt(sector, keyB, key), found, nanos);
+    }
+
+    public void onKeyFound(int sector, boolean keyB, long key, boolean fromTrailer) {
+        if (!fromTrailer)
+            mMetrics.mark(SessionMetrics.Event.FIRST_AUTH);
+        Log.i(SLURPActivity.LOGTAG, (fromTrailer ? "** READ ** Sector: " : "** SUCCESS ** Sector: ") + sector
+                + ", Key (" + (keyB ? "KEY_B" : "KEY_A") + "): " + DataFormater.keyToString(key));
+    }
+
     @Override
     protected void onProgressUpdate(Integer... progress) {
-        mProgressDialog.setMessage("Sector:  " + progress[0] + " / " + (mSectorCount - 1));
+        mProgress = progress[0];
+        if (mProgressDialog != null)
+            mProgressDialog.setMessage("Sector:  " + progress[0] + " / " + (mSectorCount - 1));
         Log.i(SLURPActivity.LOGTAG, "TestKeysTask: progress update " + progress[0]);
     }
 
     @Override
     protected void onPostExecute(MifareKeyChain keyChain) {
         Log.i(SLURPActivity.LOGTAG, "TestKeysTask: onPostExecute");
+        Log.i(SLURPActivity.LOGTAG, "TestKeysTask: " + mMetrics.getAttemptSummary());
+
+        mResult = keyChain;
+        mFinished = true;
+        if (mActivity != null)
+            deliverResult();
+    }
+
+    private void deliverResult() {
+        MifareKeyChain keyChain = mResult;
 
         mActivity.setProgressBarIndeterminateVisibility(false);
-        mProgressDialog.dismiss();
+        if (mProgressDialog != null)
+            mProgressDialog.dismiss();
+        mProgressDialog = null;
 
+        mActivity.getSession().onTaskFinished(this);
         mActivity.setKeys(keyChain);
+        mActivity.saveRejectedKeys();
 
         if (keyChain == null) {
             Toast.makeText(mActivity, "Keys Not Found", Toast.LENGTH_SHORT).show();
+            mActivity.saveTrace(mTag);
         } else {
             Toast.makeText(mActivity, "Keys Found", Toast.LENGTH_SHORT).show();
             mActivity.readTag(mTag);
         }
     }
-
-    private byte[] probeKey(MifareClassic tag, int sector, FindKeysTask.SECTOR_KEY keyType) throws IOException {
-        for (byte[] key : mDefaultKeys) {
-            Log.i(SLURPActivity.LOGTAG,
-                    "Sector: " + sector + ", Key (" + keyType + "): " + DataFormater.bytesToString(key));
-
-            if ((keyType == SECTOR_KEY.KEY_A && tag.authenticateSectorWithKeyA(sector, key))
-                    || (keyType == SECTOR_KEY.KEY_B && tag.authenticateSectorWithKeyB(sector, key))) {
-                Log.i(SLURPActivity.LOGTAG, "** SUCCESS ** Sector: " + sector + ", Key (" + keyType + "): "
-                        + DataFormater.bytesToString(key));
-                return key;
-            }
-        }
-
-        return null;
-    }
 }
\ No newline at end of file
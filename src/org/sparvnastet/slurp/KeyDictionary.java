@@ -0,0 +1,235 @@
+/**
+ * Copyright (c) 2011 Anders Sundman <anders@4zm.org>
+ *
+ * This file is part of SLURP.
+ *
+ * SLURP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SLURP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with SLURP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sparvnastet.slurp;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The compiled dictionary of keys to try when searching for the keys of a tag.
+ *
+ * Keys are stored packed (see MifareKeyChain.packKey) and unique, in the order
+ * they should be tried. Each key has a hit count, the number of times it has
+ * been seen in a saved dump.
+ *
+ * The dictionary can have partitions per card family (see CardFamily). A
+ * partition has the same keys, but the keys seen in dumps of that family come
+ * first.
+ */
+public class KeyDictionary {
+    private long[] mKeys;
+    private int[] mHits;
+    private HashMap<Integer, KeyDictionary> mPartitions = new HashMap<Integer, KeyDictionary>();
+    // The harvested keys each partition was made from
+    private HashMap<Integer, LongKeySet> mFamilyKeys = new HashMap<Integer, LongKeySet>();
+
+    /**
+     * Create a dictionary from a list of keys. Duplicates are removed, the
+     * first occurrence determines the order.
+     *
+     * @param keys
+     */
+    public KeyDictionary(long[] keys) {
+        LongKeySet seen = new LongKeySet(keys.length);
+        long[] unique = new long[keys.length];
+        int n = 0;
+
+        for (long key : keys) {
+            if (seen.add(key))
+                unique[n++] = key;
+        }
+
+        mKeys = Arrays.copyOf(unique, n);
+        mHits = new int[n];
+    }
+
+    /**
+     * Create a dictionary from unique keys and their hit counts, e.g. a
+     * recorded one.
+     */
+    KeyDictionary(long[] keys, int[] hits) {
+        mKeys = keys;
+        mHits = hits;
+    }
+
+    public int size() {
+        return mKeys.length;
+    }
+
+    public long getKey(int index) {
+        return mKeys[index];
+    }
+
+    public int getHits(int index) {
+        return mHits[index];
+    }
+
+    /**
+     * @param family
+     * @return The partition of the card family, or the whole dictionary if
+     *         there is no partition for it.
+     */
+    public KeyDictionary forFamily(int family) {
+        KeyDictionary partition = mPartitions.get(family);
+        return partition == null ? this : partition;
+    }
+
+    public int getPartitionCount() {
+        return mPartitions.size();
+    }
+
+    /**
+     * Add a partition for a card family. The keys harvested from dumps of the
+     * family are moved first, ordered by their hit count in the family, and
+     * the rest of the dictionary follows in its normal order. Should be called
+     * after all keys have been merged.
+     *
+     * @param family
+     * @param familyKeys
+     *            Keys harvested from dumps of the family.
+     */
+    public void addPartition(int family, LongKeySet familyKeys) {
+        int n = mKeys.length;
+
+        // Sort the family keys on (descending family hit count, position in
+        // the dictionary). The rest keep their position.
+        long[] order = new long[n];
+        int familyCount = 0;
+        for (int i = 0; i < n; ++i) {
+            int hits = familyKeys.getCount(mKeys[i]);
+            if (hits > 0)
+                order[familyCount++] = ((long) (Integer.MAX_VALUE - hits) << 32) | i;
+        }
+        Arrays.sort(order, 0, familyCount);
+
+        long[] keys = new long[n];
+        int[] hits = new int[n];
+        for (int i = 0; i < familyCount; ++i) {
+            int index = (int) order[i];
+            keys[i] = mKeys[index];
+            hits[i] = mHits[index];
+        }
+
+        int pos = familyCount;
+        for (int i = 0; i < n; ++i) {
+            if (!familyKeys.contains(mKeys[i])) {
+                keys[pos] = mKeys[i];
+                hits[pos++] = mHits[i];
+            }
+        }
+
+        mPartitions.put(family, new KeyDictionary(keys, hits));
+        mFamilyKeys.put(family, familyKeys);
+    }
+
+    /**
+     * Add a partition for every card family, see addPartition.
+     *
+     * @param familyKeys
+     *            Keys harvested from dumps, per card family.
+     */
+    public void addPartitions(Map<Integer, LongKeySet> familyKeys) {
+        for (Map.Entry<Integer, LongKeySet> family : familyKeys.entrySet())
+            addPartition(family.getKey(), family.getValue());
+    }
+
+    /**
+     * Make a new dictionary with more harvested keys, e.g. from a dump that
+     * was just saved, without harvesting the whole store again. This
+     * dictionary isn't changed since searches may be using it.
+     *
+     * @param harvested
+     *            Keys to merge, see merge.
+     * @param familyKeys
+     *            The harvested keys per card family, added to the keys the
+     *            partitions were made from.
+     * @return The new dictionary.
+     */
+    public KeyDictionary withHarvested(LongKeySet harvested, Map<Integer, LongKeySet> familyKeys) {
+        KeyDictionary dictionary = new KeyDictionary(mKeys, mHits);
+        dictionary.merge(harvested);
+
+        // The order of the whole dictionary may have changed, so every
+        // partition is made again
+        HashMap<Integer, LongKeySet> families = new HashMap<Integer, LongKeySet>(mFamilyKeys);
+        for (Map.Entry<Integer, LongKeySet> family : familyKeys.entrySet()) {
+            LongKeySet keys = family.getValue();
+            LongKeySet old = mFamilyKeys.get(family.getKey());
+            if (old != null) {
+                LongKeySet sum = new LongKeySet(old.size() + keys.size());
+                for (long key : old.toArray())
+                    sum.add(key, old.getCount(key));
+                for (long key : keys.toArray())
+                    sum.add(key, keys.getCount(key));
+                keys = sum;
+            }
+            families.put(family.getKey(), keys);
+        }
+        dictionary.addPartitions(families);
+
+        return dictionary;
+    }
+
+    /**
+     * Merge harvested keys into the dictionary.
+     *
+     * Hit counts are added to the keys already in the dictionary and new keys
+     * are appended. The dictionary is then ordered by hit count (most seen
+     * first). Keys with the same hit count keep their relative order, so the
+     * order of the default keys is preserved.
+     *
+     * @param harvested
+     */
+    public void merge(LongKeySet harvested) {
+        long[] keys = Arrays.copyOf(mKeys, mKeys.length + harvested.size());
+        int[] hits = new int[keys.length];
+        int n = mKeys.length;
+
+        for (int i = 0; i < n; ++i)
+            hits[i] = mHits[i] + harvested.getCount(keys[i]);
+
+        LongKeySet known = new LongKeySet(n);
+        for (int i = 0; i < n; ++i)
+            known.add(keys[i]);
+
+        for (long key : harvested.toArray()) {
+            if (!known.contains(key)) {
+                keys[n] = key;
+                hits[n++] = harvested.getCount(key);
+            }
+        }
+
+        // Sort on (descending hit count, original position). Both fit in a
+        // long, so a primitive sort gives a stable order without boxing.
+        long[] order = new long[n];
+        for (int i = 0; i < n; ++i)
+            order[i] = ((long) (Integer.MAX_VALUE - hits[i]) << 32) | i;
+        Arrays.sort(order);
+
+        mKeys = new long[n];
+        mHits = new int[n];
+        for (int i = 0; i < n; ++i) {
+            int index = (int) order[i];
+            mKeys[i] = keys[index];
+            mHits[i] = hits[index];
+        }
+    }
+}
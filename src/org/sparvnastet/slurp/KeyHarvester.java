@@ -0,0 +1,122 @@
+/**
+ * Copyright (c) 2011 Anders Sundman <anders@4zm.org>
+ *
+ * This file is part of SLURP.
+ *
+ * SLURP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SLURP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with SLURP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sparvnastet.slurp;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Collects the keys from the sector trailers of the saved dumps.
+ *
+ * Since ReadTagTask writes the keys that were used into the trailers, every
+ * dump in the store holds a working key pair for each sector.
+ */
+public class KeyHarvester {
+
+    private int mDumpCount;
+    private int mTrailerCount;
+    private final HashMap<Integer, LongKeySet> mFamilyKeys = new HashMap<Integer, LongKeySet>();
+
+    public int getDumpCount() {
+        return mDumpCount;
+    }
+
+    public int getTrailerCount() {
+        return mTrailerCount;
+    }
+
+    /**
+     * @return The keys found by harvest(DumpStore), per card family (see
+     *         CardFamily). Dumps of an unknown family are only in the global
+     *         set.
+     */
+    public HashMap<Integer, LongKeySet> getFamilyKeys() {
+        return mFamilyKeys;
+    }
+
+    /**
+     * Scan all dumps in the store.
+     *
+     * @param store
+     * @return The unique keys found, with the number of trailers each key was
+     *         found in as hit count.
+     */
+    public LongKeySet harvest(DumpStore store) {
+        File[] dumps = store.listDumps();
+        LongKeySet keys = new LongKeySet(4 * dumps.length);
+        byte[] buffer = new byte[DumpStore.DUMP_SIZE];
+
+        for (File dump : dumps) {
+            int length;
+            try {
+                length = DumpStore.readDump(dump, buffer);
+            } catch (IOException e) {
+                continue;
+            }
+
+            harvest(buffer, length, keys);
+        }
+
+        return keys;
+    }
+
+    /**
+     * Add the keys of all sector trailers in a dump to the key set, and to the
+     * keys of the card family of the dump.
+     *
+     * The remainder of a dump from a tag with fewer sectors is zero padding,
+     * which doesn't pass the access bits check and is skipped.
+     */
+    public void harvest(byte[] dump, int length, LongKeySet keys) {
+        ++mDumpCount;
+        mTrailerCount += addTrailerKeys(dump, length, keys);
+
+        int family = CardFamily.fromDump(dump, length);
+        if (family != CardFamily.UNKNOWN) {
+            LongKeySet familyKeys = mFamilyKeys.get(family);
+            if (familyKeys == null) {
+                familyKeys = new LongKeySet();
+                mFamilyKeys.put(family, familyKeys);
+            }
+            addTrailerKeys(dump, length, familyKeys);
+        }
+    }
+
+    /**
+     * @return Number of trailers the keys were taken from.
+     */
+    private static int addTrailerKeys(byte[] dump, int length, LongKeySet keys) {
+        int trailers = 0;
+        for (int sector = 0; sector < DumpStore.MAX_SECTORS; ++sector) {
+            int trailer = DumpStore.getTrailerOffset(sector);
+            if (trailer + DumpStore.BLOCK_SIZE > length)
+                break;
+
+            if (!AccessBits.isValid(dump, trailer))
+                continue;
+
+            ++trailers;
+            keys.add(MifareKeyChain.packKey(dump, trailer));
+            keys.add(MifareKeyChain.packKey(dump, trailer + MifareKeyChain.TRAILER_KEY_B_OFFSET));
+        }
+        return trailers;
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright (c) 2011 Anders Sundman <anders@4zm.org>
+ *
+ * This file is part of SLURP.
+ *
+ * SLURP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SLURP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with SLURP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sparvnastet.slurp;
+
+/**
+ * Tries each key of the dictionary on every sector whose key is still
+ * missing before moving on to the next key. Finds all keys with few attempts
+ * when a tag uses the same key in many sectors, but always goes through the
+ * whole dictionary if some key isn't in it.
+ */
+public class KeyMajorKeySearchStrategy implements KeySearchStrategy {
+    private KeyDictionary mDictionary;
+    private int mSectorCount;
+    private boolean[] mFound;
+    private int mMissing;
+
+    private int mIndex;
+    private int mSlot; // 2 * sector + key type
+
+    public void start(KeyDictionary dictionary, int sectorCount) {
+        mDictionary = dictionary;
+        mSectorCount = sectorCount;
+        mFound = new boolean[2 * sectorCount];
+        mMissing = 2 * sectorCount;
+        mIndex = 0;
+        mSlot = 0;
+    }
+
+    public long next() {
+        while (mMissing > 0 && mIndex < mDictionary.size()) {
+            if (mSlot == 2 * mSectorCount) {
+                mSlot = 0;
+                ++mIndex;
+                continue;
+            }
+
+            int slot = mSlot++;
+            if (!mFound[slot])
+                return KeySearch.attempt(slot >> 1, (slot & 1) != 0, mDictionary.getKey(mIndex));
+        }
+
+        return KeySearch.NO_ATTEMPT;
+    }
+
+    public void onResult(long attempt, boolean found) {
+        int slot = 2 * KeySearch.getSector(attempt) + (KeySearch.isKeyB(attempt) ? 1 : 0);
+        if (found && !mFound[slot]) {
+            mFound[slot] = true;
+            --mMissing;
+        }
+    }
+}
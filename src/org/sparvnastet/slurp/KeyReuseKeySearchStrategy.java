@@ -0,0 +1,146 @@
+/**
+ * Copyright (c) 2011 Anders Sundman <anders@4zm.org>
+ *
+ * This file is part of SLURP.
+ *
+ * SLURP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SLURP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with SLURP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sparvnastet.slurp;
+
+/**
+ * Tries the keys already found on the tag on the other sectors before going on
+ * with the dictionary, tags often use the same key in many sectors.
+ *
+ * The candidates for a key are ordered by how likely they are to succeed. How
+ * likely a found key is to open another sector is learnt during the search,
+ * so on tags with a key per sector the dictionary soon takes over again. The
+ * dictionary keys are estimated from their hit counts.
+ *
+ * A failed attempt costs more than a successful one (the tag halts and has to
+ * be reselected), but every candidate fails the same way and every key has to
+ * be found, so the expected cost is lowest with the most likely key first
+ * whatever the costs are.
+ *
+ * Key A of all sectors is searched before Key B, since Key B can often be read
+ * from the trailer once Key A is known.
+ */
+public class KeyReuseKeySearchStrategy implements KeySearchStrategy {
+    // Found keys reused on other sectors, at most one bit per key in mTried
+    private final static int MAX_REUSED_KEYS = 64;
+
+    private KeyDictionary mDictionary;
+    private double mTotalHits;
+    private int mSectorCount;
+    private boolean[] mFound;
+    private int[] mCursors; // Next dictionary index per slot
+    private long[] mTried; // Reused keys tried per slot
+
+    private long[] mReusedKeys = new long[MAX_REUSED_KEYS];
+    private int[] mOpened = new int[MAX_REUSED_KEYS];
+    private int[] mFailed = new int[MAX_REUSED_KEYS];
+    private int mReusedCount;
+
+    private int mSlot; // Slot of the current key, Key A slots come first
+
+    public void start(KeyDictionary dictionary, int sectorCount) {
+        mDictionary = dictionary;
+        mSectorCount = sectorCount;
+        mFound = new boolean[2 * sectorCount];
+        mCursors = new int[2 * sectorCount];
+        mTried = new long[2 * sectorCount];
+        mReusedCount = 0;
+        mSlot = 0;
+
+        mTotalHits = 0;
+        for (int i = 0; i < dictionary.size(); ++i)
+            mTotalHits += dictionary.getHits(i);
+    }
+
+    public long next() {
+        while (mSlot < 2 * mSectorCount && mFound[mSlot])
+            ++mSlot;
+        if (mSlot == 2 * mSectorCount)
+            return KeySearch.NO_ATTEMPT;
+
+        int slot = mSlot;
+        int sector = slot % mSectorCount;
+        boolean keyB = slot >= mSectorCount;
+
+        // The most likely found key not tried on this slot
+        int reuse = -1;
+        double reuseProbability = 0;
+        for (int i = 0; i < mReusedCount; ++i) {
+            if ((mTried[slot] & (1L << i)) != 0)
+                continue;
+            double p = getReuseProbability(i);
+            if (p > reuseProbability) {
+                reuse = i;
+                reuseProbability = p;
+            }
+        }
+
+        int cursor = mCursors[slot];
+        boolean hasDictionaryKey = cursor < mDictionary.size();
+        if (reuse >= 0 && (!hasDictionaryKey || reuseProbability >= getDictionaryProbability(cursor))) {
+            mTried[slot] |= 1L << reuse;
+            return KeySearch.attempt(sector, keyB, mReusedKeys[reuse]);
+        }
+
+        if (!hasDictionaryKey) // Require both keys
+            return KeySearch.NO_ATTEMPT;
+
+        mCursors[slot] = cursor + 1;
+        return KeySearch.attempt(sector, keyB, mDictionary.getKey(cursor));
+    }
+
+    public void onResult(long attempt, boolean found) {
+        int sector = KeySearch.getSector(attempt);
+        int slot = KeySearch.isKeyB(attempt) ? mSectorCount + sector : sector;
+        long key = KeySearch.getKey(attempt);
+
+        int reused = indexOfReusedKey(key);
+        if (found) {
+            mFound[slot] = true;
+            if (reused >= 0) {
+                ++mOpened[reused];
+            } else if (mReusedCount < MAX_REUSED_KEYS) {
+                mReusedKeys[mReusedCount] = key;
+                mOpened[mReusedCount] = 1;
+                mFailed[mReusedCount++] = 0;
+            }
+        } else if (reused >= 0 && (mTried[slot] & (1L << reused)) != 0) {
+            ++mFailed[reused];
+        }
+    }
+
+    private double getReuseProbability(int reused) {
+        // Laplace smoothed share of the sectors the key was tried on
+        return (mOpened[reused] + 1.0) / (mOpened[reused] + mFailed[reused] + 2.0);
+    }
+
+    private double getDictionaryProbability(int index) {
+        // Laplace smoothed share of the hits, the hits only say how often a
+        // key was seen, so it's at most a guess
+        return (mDictionary.getHits(index) + 1.0) / (mTotalHits + mDictionary.size());
+    }
+
+    private int indexOfReusedKey(long key) {
+        for (int i = 0; i < mReusedCount; ++i) {
+            if (mReusedKeys[i] == key)
+                return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,257 @@
+/**
+ * Copyright (c) 2011 Anders Sundman <anders@4zm.org>
+ *
+ * This file is part of SLURP.
+ *
+ * SLURP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SLURP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with SLURP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sparvnastet.slurp;
+
+import java.io.IOException;
+
+/**
+ * Searches the dictionary for the keys of all sectors of a tag.
+ *
+ * The order of the attempts is decided by a KeySearchStrategy, by default
+ * sector by sector, Key A then Key B. After a successful authentication with
+ * Key A the sector trailer is read, and Key B is taken from it when the access
+ * conditions make it readable. Keys the tag has rejected before are skipped,
+ * and the rejections of a search are added to the NegativeKeyCache only when
+ * the search completes, a search aborted by a communication error may have
+ * had wrong rejections.
+ * The dictionary partition of the card family of the tag is used, so keys seen
+ * on similar cards are tried first.
+ *
+ * Doesn't depend on Android, progress is reported through a Listener.
+ */
+public class KeySearch {
+
+    public interface Listener {
+        void onSector(int sector, int sectorCount);
+
+        void onAttempt(int sector, boolean keyB, long key);
+
+        /**
+         * @param nanos
+         *            Time the authentication took.
+         */
+        void onAttemptResult(int sector, boolean keyB, long key, boolean found, long nanos);
+
+        /**
+         * @param fromTrailer
+         *            true if the key was read from the sector trailer.
+         */
+        void onKeyFound(int sector, boolean keyB, long key, boolean fromTrailer);
+    }
+
+    /**
+     * The time the attempts are measured with.
+     */
+    public interface Clock {
+        long nanoTime();
+    }
+
+    /**
+     * Returned by a strategy when there are no more attempts to make.
+     */
+    public final static long NO_ATTEMPT = -1L;
+
+    private final static int SECTOR_SHIFT = 8 * MifareKeyChain.KEY_SIZE;
+    private final static long KEY_MASK = (1L << SECTOR_SHIFT) - 1;
+    private final static long KEY_B_FLAG = 1L << (SECTOR_SHIFT + 8);
+
+    private final KeyDictionary mDictionary;
+    private final NegativeKeyCache mRejectedKeys;
+    private final KeySearchStrategy mStrategy;
+    private final Listener mListener;
+    private Clock mClock;
+
+    /**
+     * Search with the default strategy, see LinearKeySearchStrategy.
+     */
+    public KeySearch(KeyDictionary dictionary, NegativeKeyCache rejectedKeys, Listener listener) {
+        this(dictionary, rejectedKeys, new LinearKeySearchStrategy(), listener);
+    }
+
+    /**
+     * @param dictionary
+     * @param rejectedKeys
+     * @param strategy
+     * @param listener
+     *            May be null.
+     */
+    public KeySearch(KeyDictionary dictionary, NegativeKeyCache rejectedKeys, KeySearchStrategy strategy,
+            Listener listener) {
+        assert (dictionary != null && rejectedKeys != null && strategy != null);
+        mDictionary = dictionary;
+        mRejectedKeys = rejectedKeys;
+        mStrategy = strategy;
+        mListener = listener;
+    }
+
+    /**
+     * Measure the attempts with another clock than System.nanoTime(), e.g. the
+     * recorded tag time when replaying a trace.
+     *
+     * @param clock
+     *            May be null.
+     */
+    public void setClock(Clock clock) {
+        mClock = clock;
+    }
+
+    /**
+     * Pack an attempt: [Key type|1 Bit] [Sector|8 Bits] [Key|48 Bits].
+     */
+    public static long attempt(int sector, boolean keyB, long key) {
+        assert (sector >= 0 && sector < 256 && (key & ~KEY_MASK) == 0);
+        return (keyB ? KEY_B_FLAG : 0) | (long) sector << SECTOR_SHIFT | key;
+    }
+
+    public static int getSector(long attempt) {
+        return (int) (attempt >>> SECTOR_SHIFT) & 0xff;
+    }
+
+    public static boolean isKeyB(long attempt) {
+        return (attempt & KEY_B_FLAG) != 0;
+    }
+
+    public static long getKey(long attempt) {
+        return attempt & KEY_MASK;
+    }
+
+    /**
+     * Find both keys of every sector. The tag is connected and closed again.
+     *
+     * @param tag
+     * @return The keys, null if a key of some sector wasn't found.
+     * @throws IOException
+     *             If the communication with the tag fails.
+     */
+    public MifareKeyChain search(MifareTag tag) throws IOException {
+        KeyDictionary dictionary = mDictionary.forFamily(CardFamily.fromTag(tag));
+        KeySearchStrategy strategy = mStrategy; // Local variable optimization
+        NegativeKeyCache rejected = mRejectedKeys;
+        Listener listener = mListener;
+        Clock clock = mClock;
+
+        tag.connect();
+        try {
+            byte[] uid = tag.getUid();
+            int sectorCount = tag.getSectorCount();
+            MifareKeyChain keyChain = new MifareKeyChain(sectorCount);
+            int missing = 2 * sectorCount;
+            int currentSector = -1;
+            LongKeySet rejectedAttempts = new LongKeySet();
+            LongKeySet acceptedAttempts = new LongKeySet(2 * sectorCount);
+
+            strategy.start(dictionary, sectorCount);
+            long attempt;
+            while (missing > 0 && (attempt = strategy.next()) != NO_ATTEMPT) {
+                int sector = getSector(attempt);
+                boolean keyB = isKeyB(attempt);
+                long key = getKey(attempt);
+
+                if (sector != currentSector) {
+                    currentSector = sector;
+                    if (listener != null)
+                        listener.onSector(sector, sectorCount);
+                }
+
+                if (rejectedAttempts.contains(attempt) || rejected.isRejected(uid, sector, keyB, key)) {
+                    strategy.onResult(attempt, false);
+                    continue;
+                }
+
+                if (listener != null)
+                    listener.onAttempt(sector, keyB, key);
+
+                long start = clock != null ? clock.nanoTime() : System.nanoTime();
+                boolean found = keyB ? tag.authenticateSectorWithKeyB(sector, key) : tag.authenticateSectorWithKeyA(
+                        sector, key);
+                long nanos = (clock != null ? clock.nanoTime() : System.nanoTime()) - start;
+
+                if (listener != null)
+                    listener.onAttemptResult(sector, keyB, key, found, nanos);
+
+                strategy.onResult(attempt, found);
+                if (!found) {
+                    rejectedAttempts.add(attempt);
+                    continue;
+                }
+                acceptedAttempts.add(attempt);
+
+                if (listener != null)
+                    listener.onKeyFound(sector, keyB, key, false);
+                missing -= setKey(keyChain, sector, keyB, key);
+
+                // Still authenticated with Key A, Key B might be readable
+                if (!keyB && keyChain.getKeyB(sector) == MifareKeyChain.NO_KEY) {
+                    long trailerKeyB = readKeyB(tag, sector);
+                    if (trailerKeyB != MifareKeyChain.NO_KEY) {
+                        strategy.onResult(attempt(sector, true, trailerKeyB), true);
+                        acceptedAttempts.add(attempt(sector, true, trailerKeyB));
+                        missing -= setKey(keyChain, sector, true, trailerKeyB);
+                    }
+                }
+            }
+
+            rejected.addSearch(uid, rejectedAttempts, acceptedAttempts);
+            return missing == 0 ? keyChain : null;
+        } finally {
+            tag.close();
+        }
+    }
+
+    /**
+     * @return Number of keys that were added (0 if the key was already known).
+     */
+    private static int setKey(MifareKeyChain keyChain, int sector, boolean keyB, long key) {
+        if (keyB) {
+            if (keyChain.getKeyB(sector) != MifareKeyChain.NO_KEY)
+                return 0;
+            keyChain.setKeyB(sector, key);
+        } else {
+            if (keyChain.getKeyA(sector) != MifareKeyChain.NO_KEY)
+                return 0;
+            keyChain.setKeyA(sector, key);
+        }
+        return 1;
+    }
+
+    /**
+     * Read Key B from the sector trailer. Must be called right after a
+     * successful authentication with Key A.
+     *
+     * @return Key B, or NO_KEY if the access conditions doesn't allow Key B to
+     *         be read.
+     */
+    private long readKeyB(MifareTag tag, int sector) {
+        byte[] trailer;
+        try {
+            trailer = tag.readBlock(tag.sectorToBlock(sector) + tag.getBlockCountInSector(sector) - 1);
+        } catch (IOException e) {
+            return MifareKeyChain.NO_KEY;
+        }
+
+        if (!AccessBits.isKeyBReadable(trailer, 0))
+            return MifareKeyChain.NO_KEY;
+
+        long key = MifareKeyChain.packKey(trailer, MifareKeyChain.TRAILER_KEY_B_OFFSET);
+        if (mListener != null)
+            mListener.onKeyFound(sector, true, key, true);
+        return key;
+    }
+}
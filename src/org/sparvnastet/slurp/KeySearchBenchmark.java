@@ -0,0 +1,205 @@
+/**
+ * Copyright (c) 2011 Anders Sundman <anders@4zm.org>
+ *
+ * This file is part of SLURP.
+ *
+ * SLURP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SLURP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with SLURP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sparvnastet.slurp;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Runs a corpus of simulated tags through each key search strategy and
+ * reports the number of authentication attempts, reselects and the modelled
+ * time on a real tag.
+ *
+ * The corpus is either generated (a mix of transport configured tags, tags
+ * with site keys and 4k tags with a key per sector), or made from the dumps in
+ * a directory. Runs on a desktop JVM.
+ */
+public class KeySearchBenchmark {
+    private final static long[] COMMON_KEYS = { 0xffffffffffffL, 0xa0a1a2a3a4a5L, 0xd3f7d3f7d3f7L,
+            0x000000000000L, 0xb0b1b2b3b4b5L, 0x4d3a99c351ddL, 0x1a982c7e459aL, 0xaabbccddeeffL };
+    private final static int SITE_KEYS = 64;
+
+    /**
+     * The totals of one strategy over the corpus.
+     */
+    public static class Result {
+        private final String mName;
+        private int mCards;
+        private int mFound;
+        private long mAttempts;
+        private long mFailedAttempts;
+        private long mReselects;
+        private long mReads;
+        private long mModelledNanos;
+        private long mCpuNanos;
+
+        public Result(String name) {
+            mName = name;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-12s found %d/%d, auths %d (%.1f/card), failed %d, reselects %d, reads %d, "
+                    + "modelled %.1f s (%.0f ms/card), cpu %d ms", mName, mFound, mCards, mAttempts,
+                    (double) mAttempts / mCards, mFailedAttempts, mReselects, mReads, mModelledNanos / 1e9,
+                    mModelledNanos / 1e6 / mCards, mCpuNanos / 1000000);
+        }
+    }
+
+    /**
+     * Search the keys of every tag in the corpus with one strategy.
+     */
+    public static Result run(String name, KeySearchStrategy strategy, KeyDictionary dictionary,
+            List<SimulatedMifareTag> corpus) {
+        Result result = new Result(name);
+        for (SimulatedMifareTag tag : corpus) {
+            tag.reset();
+            long start = System.nanoTime();
+            MifareKeyChain keys;
+            try {
+                keys = new KeySearch(dictionary, new NegativeKeyCache(), strategy, null).search(tag);
+            } catch (IOException e) {
+                keys = null;
+            }
+            result.mCpuNanos += System.nanoTime() - start;
+
+            ++result.mCards;
+            if (keys != null)
+                ++result.mFound;
+            result.mAttempts += tag.getAuthCount();
+            result.mFailedAttempts += tag.getFailedAuthCount();
+            result.mReselects += tag.getReselectCount();
+            result.mReads += tag.getReadCount();
+            result.mModelledNanos += tag.getModelledNanos();
+        }
+        return result;
+    }
+
+    /**
+     * Generate a corpus. The keys of about one tag in 50 aren't all in the
+     * dictionary.
+     *
+     * @param seed
+     * @param count
+     * @param siteKeys
+     *            Keys used by the tags, that are also in the dictionary.
+     */
+    public static List<SimulatedMifareTag> generateCorpus(long seed, int count, long[] siteKeys) {
+        Random random = new Random(seed);
+        List<SimulatedMifareTag> corpus = new ArrayList<SimulatedMifareTag>(count);
+        for (int n = 0; n < count; ++n) {
+            byte[] uid = new byte[4];
+            random.nextBytes(uid);
+
+            int kind = random.nextInt(10);
+            boolean large = kind >= 8;
+            int sectorCount = large ? 40 : 16;
+            long[] keysA = new long[sectorCount];
+            long[] keysB = new long[sectorCount];
+
+            // Site tags use a few keys, the first sectors often left as shipped
+            long siteA = siteKeys[random.nextInt(siteKeys.length)];
+            long siteB = siteKeys[random.nextInt(siteKeys.length)];
+            int defaultSectors = random.nextInt(4);
+            for (int i = 0; i < sectorCount; ++i) {
+                if (kind < 3 || (kind < 8 && i < defaultSectors)) {
+                    keysA[i] = keysB[i] = COMMON_KEYS[0];
+                } else if (kind < 8) {
+                    keysA[i] = siteA;
+                    keysB[i] = siteB;
+                } else {
+                    keysA[i] = siteKeys[random.nextInt(siteKeys.length)];
+                    keysB[i] = siteKeys[random.nextInt(siteKeys.length)];
+                }
+            }
+
+            if (random.nextInt(50) == 0)
+                keysB[random.nextInt(sectorCount)] = random.nextLong() & 0xffffffffffffL;
+
+            corpus.add(new SimulatedMifareTag(uid, large ? 0x18 : 0x08, new byte[] { (byte) (large ? 0x02 : 0x04),
+                    0 }, keysA, keysB, kind < 3));
+        }
+        return corpus;
+    }
+
+    /**
+     * Load a corpus from the dumps in a directory. Dumps without a valid block
+     * 0 or trailers are skipped.
+     */
+    public static List<SimulatedMifareTag> loadCorpus(DumpStore store) {
+        List<SimulatedMifareTag> corpus = new ArrayList<SimulatedMifareTag>();
+        byte[] buffer = new byte[DumpStore.DUMP_SIZE];
+        for (File dump : store.listDumps()) {
+            try {
+                SimulatedMifareTag tag = SimulatedMifareTag.fromDump(buffer, DumpStore.readDump(dump, buffer));
+                if (tag != null)
+                    corpus.add(tag);
+            } catch (IOException e) {
+                continue;
+            }
+        }
+        return corpus;
+    }
+
+    /**
+     * Usage: KeySearchBenchmark [-n tags] [-seed seed] [dump directory]
+     */
+    public static void main(String[] args) {
+        int count = 1000;
+        long seed = 1;
+        String directory = null;
+        for (int i = 0; i < args.length; ++i) {
+            if (args[i].equals("-n") && i + 1 < args.length)
+                count = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-seed") && i + 1 < args.length)
+                seed = Long.parseLong(args[++i]);
+            else
+                directory = args[i];
+        }
+
+        KeyDictionary dictionary = new KeyDictionary(COMMON_KEYS);
+        List<SimulatedMifareTag> corpus;
+        if (directory != null) {
+            // Like the app, the dictionary has the keys harvested from the dumps
+            DumpStore store = new DumpStore(new File(directory));
+            KeyHarvester harvester = new KeyHarvester();
+            dictionary.merge(harvester.harvest(store));
+            dictionary.addPartitions(harvester.getFamilyKeys());
+            corpus = loadCorpus(store);
+        } else {
+            Random random = new Random(seed);
+            long[] siteKeys = new long[SITE_KEYS];
+            long[] keys = new long[COMMON_KEYS.length + SITE_KEYS];
+            System.arraycopy(COMMON_KEYS, 0, keys, 0, COMMON_KEYS.length);
+            for (int i = 0; i < SITE_KEYS; ++i)
+                keys[COMMON_KEYS.length + i] = siteKeys[i] = random.nextLong() & 0xffffffffffffL;
+            dictionary = new KeyDictionary(keys);
+            corpus = generateCorpus(seed, count, siteKeys);
+        }
+
+        System.out.println(corpus.size() + " tags, " + dictionary.size() + " keys");
+        System.out.println(run("linear", new LinearKeySearchStrategy(), dictionary, corpus));
+        System.out.println(run("key-major", new KeyMajorKeySearchStrategy(), dictionary, corpus));
+        System.out.println(run("key-reuse", new KeyReuseKeySearchStrategy(), dictionary, corpus));
+    }
+}
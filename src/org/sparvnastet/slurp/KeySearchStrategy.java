@@ -0,0 +1,57 @@
+/**
+ * Copyright (c) 2011 Anders Sundman <anders@4zm.org>
+ *
+ * This file is part of SLURP.
+ *
+ * SLURP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SLURP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with SLURP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sparvnastet.slurp;
+
+/**
+ * Decides the order of the authentication attempts of a key search.
+ *
+ * An attempt is a (sector, key type, key) triple packed into a long, see
+ * KeySearch.attempt. The search asks for the next attempt until the strategy
+ * returns KeySearch.NO_ATTEMPT, and reports the result of every attempt back.
+ * A strategy is reused for several searches, start() resets it.
+ */
+public interface KeySearchStrategy {
+
+    /**
+     * Start a new search.
+     *
+     * @param dictionary
+     *            The keys to try.
+     * @param sectorCount
+     *            Number of sectors of the tag.
+     */
+    void start(KeyDictionary dictionary, int sectorCount);
+
+    /**
+     * @return The next attempt, or KeySearch.NO_ATTEMPT when the search should
+     *         stop (all keys found, or a key can't be found).
+     */
+    long next();
+
+    /**
+     * The result of an attempt. Also called with found == true when Key B
+     * was read from the sector trailer instead of probed.
+     *
+     * @param attempt
+     * @param found
+     *            true if the key is the key of the sector.
+     */
+    void onResult(long attempt, boolean found);
+}
@@ -0,0 +1,68 @@
+/**
+ * Copyright (c) 2011 Anders Sundman <anders@4zm.org>
+ *
+ * This file is part of SLURP.
+ *
+ * SLURP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SLURP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with SLURP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sparvnastet.slurp;
+
+/**
+ * The default key search order: sector by sector, Key A then Key B, each
+ * through the dictionary in order. The search stops at the first key that
+ * isn't in the dictionary.
+ */
+public class LinearKeySearchStrategy implements KeySearchStrategy {
+    private KeyDictionary mDictionary;
+    private int mSectorCount;
+    private boolean[] mFound;
+
+    private int mSector;
+    private boolean mKeyB;
+    private int mIndex;
+
+    public void start(KeyDictionary dictionary, int sectorCount) {
+        mDictionary = dictionary;
+        mSectorCount = sectorCount;
+        mFound = new boolean[2 * sectorCount];
+        mSector = 0;
+        mKeyB = false;
+        mIndex = 0;
+    }
+
+    public long next() {
+        while (mSector < mSectorCount) {
+            if (mFound[2 * mSector + (mKeyB ? 1 : 0)]) {
+                if (mKeyB)
+                    ++mSector;
+                mKeyB = !mKeyB;
+                mIndex = 0;
+                continue;
+            }
+
+            if (mIndex == mDictionary.size()) // Require both keys
+                return KeySearch.NO_ATTEMPT;
+
+            return KeySearch.attempt(mSector, mKeyB, mDictionary.getKey(mIndex++));
+        }
+
+        return KeySearch.NO_ATTEMPT;
+    }
+
+    public void onResult(long attempt, boolean found) {
+        if (found)
+            mFound[2 * KeySearch.getSector(attempt) + (KeySearch.isKeyB(attempt) ? 1 : 0)] = true;
+    }
+}
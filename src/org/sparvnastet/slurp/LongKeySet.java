@@ -0,0 +1,150 @@
+/**
+ * Copyright (c) 2011 Anders Sundman <anders@4zm.org>
+ *
+ * This file is part of SLURP.
+ *
+ * SLURP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SLURP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with SLURP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sparvnastet.slurp;
+
+import java.util.Arrays;
+
+/**
+ * A set of packed 48 bit keys (or other longs) with a hit count per key.
+ *
+ * Open addressing with linear probing over primitive arrays, so adding a key
+ * never allocates (except when the table grows). Since a packed key only uses
+ * the lower 48 bits, -1 can never be a key and is used to mark empty slots. It
+ * can't be added to the set.
+ */
+public class LongKeySet {
+    private final static long EMPTY = -1L;
+    private final static int MIN_CAPACITY = 16;
+
+    private long[] mKeys;
+    private int[] mCounts;
+    private int mSize;
+    private int mMask;
+
+    public LongKeySet() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize
+     *            Number of keys that can be added before the table grows.
+     */
+    public LongKeySet(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < 2 * expectedSize)
+            capacity <<= 1;
+        allocate(capacity);
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Add a key, or increase the hit count if it's already in the set.
+     *
+     * @return true if the key was not in the set before.
+     */
+    public boolean add(long key) {
+        return add(key, 1);
+    }
+
+    public boolean add(long key, int hits) {
+        assert (key != EMPTY);
+
+        int slot = find(key);
+        if (mKeys[slot] == key) {
+            mCounts[slot] += hits;
+            return false;
+        }
+
+        mKeys[slot] = key;
+        mCounts[slot] = hits;
+        if (++mSize * 2 > mKeys.length)
+            rehash(mKeys.length << 1);
+        return true;
+    }
+
+    public boolean contains(long key) {
+        return mKeys[find(key)] == key;
+    }
+
+    /**
+     * @return The hit count of the key, 0 if it's not in the set.
+     */
+    public int getCount(long key) {
+        int slot = find(key);
+        return mKeys[slot] == key ? mCounts[slot] : 0;
+    }
+
+    /**
+     * @return All keys in the set, in no particular order.
+     */
+    public long[] toArray() {
+        long[] keys = new long[mSize];
+        long[] table = mKeys; // Local variable optimization
+        int n = 0;
+        for (int slot = 0; slot < table.length; ++slot) {
+            if (table[slot] != EMPTY)
+                keys[n++] = table[slot];
+        }
+        return keys;
+    }
+
+    /**
+     * @return Slot of the key, or the empty slot where it would be inserted.
+     */
+    private int find(long key) {
+        long[] table = mKeys;
+        int slot = hash(key) & mMask;
+        while (table[slot] != EMPTY && table[slot] != key)
+            slot = (slot + 1) & mMask;
+        return slot;
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new long[capacity];
+        mCounts = new int[capacity];
+        mMask = capacity - 1;
+        Arrays.fill(mKeys, EMPTY);
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = mKeys;
+        int[] oldCounts = mCounts;
+        allocate(capacity);
+
+        for (int i = 0; i < oldKeys.length; ++i) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = find(oldKeys[i]);
+                mKeys[slot] = oldKeys[i];
+                mCounts[slot] = oldCounts[i];
+            }
+        }
+    }
+
+    private static int hash(long key) {
+        // Finalizer from MurmurHash3, spreads the key bits over the low bits
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+}
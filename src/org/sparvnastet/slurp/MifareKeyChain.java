@@ -19,158 +19,155 @@
 
 package org.sparvnastet.slurp;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-
-import android.os.Environment;
-import android.os.Parcel;
-import android.os.Parcelable;
+import java.util.Arrays;
 
 /**
  * This class represents the keys used to read and write a MifareClassic tag.
  *
  * It's a mapping between the sectors of a card and access keys. There are two
  * keys (A & B) per sector.
+ *
+ * Doesn't depend on Android, the key search and the trace replay run on a
+ * desktop JVM. See ParcelableKeyChain for keeping a key chain in a Bundle.
  */
-public class MifareKeyChain implements Parcelable {
+public class MifareKeyChain {
 
     /**
      * Size of a key in bytes.
      */
     public final static int KEY_SIZE = 6;
 
+    /**
+     * Offsets of the keys in a sector trailer.
+     */
+    public final static int TRAILER_KEY_A_OFFSET = 0;
+    public final static int TRAILER_KEY_B_OFFSET = 10;
+
+    /**
+     * Marks a sector key that isn't known. A packed key only uses the lower 48
+     * bits so this can never be a real key.
+     */
+    public final static long NO_KEY = -1L;
+
     private final static int A_KEY = 0;
     private final static int B_KEY = 1;
 
-    private byte[][][] mKeys;
+    // Packed keys, [Sector 0 A key] [Sector 0 B key] [Sector 1 A key] ...
+    private long[] mKeys;
 
     public MifareKeyChain(int sectors) {
         assert (sectors > 0);
-        mKeys = new byte[sectors][2][];
+        mKeys = new long[2 * sectors];
+        Arrays.fill(mKeys, NO_KEY);
     }
 
-    private MifareKeyChain(byte[][][] keyData) {
-        assert (keyData != null);
+    MifareKeyChain(long[] keyData) {
+        assert (keyData != null && keyData.length % 2 == 0);
         mKeys = keyData;
     }
 
     public int getSectorCount() {
-        return mKeys.length;
+        return mKeys.length / 2;
+    }
+
+    public long getKeyA(int sector) {
+        return mKeys[2 * sector + A_KEY];
+    }
+
+    public long getKeyB(int sector) {
+        return mKeys[2 * sector + B_KEY];
     }
 
-    public byte[] getKeyA(int sector) {
-        return mKeys[sector][A_KEY];
+    public void setKeyA(int sector, long key) {
+        assert (key == NO_KEY || (key >>> (8 * KEY_SIZE)) == 0);
+        mKeys[2 * sector + A_KEY] = key;
     }
 
-    public byte[] getKeyB(int sector) {
-        return mKeys[sector][B_KEY];
+    public void setKeyB(int sector, long key) {
+        assert (key == NO_KEY || (key >>> (8 * KEY_SIZE)) == 0);
+        mKeys[2 * sector + B_KEY] = key;
     }
 
-    public void setKeyA(int sector, byte[] key) {
-        assert (key == null || key.length == KEY_SIZE);
-        mKeys[sector][A_KEY] = key;
+    /**
+     * Pack a key into the lower 48 bits of a long (big endian, the first key
+     * byte is the most significant).
+     *
+     * @param data
+     * @param offset
+     *            Offset of the key in data.
+     * @return
+     */
+    public static long packKey(byte[] data, int offset) {
+        long key = 0;
+        for (int i = 0; i < KEY_SIZE; ++i)
+            key = (key << 8) | (data[offset + i] & 0xff);
+        return key;
     }
 
-    public void setKeyB(int sector, byte[] key) {
-        assert (key == null || key.length == KEY_SIZE);
-        mKeys[sector][B_KEY] = key;
+    public static byte[] unpackKey(long key) {
+        byte[] data = new byte[KEY_SIZE];
+        unpackKey(key, data, 0);
+        return data;
     }
 
     /**
-     * Factory method. Read keys from a file on the external storage and create
-     * a key chain instance.
+     * Unpack a key into an existing buffer, e.g. a buffer that is reused for
+     * every authentication attempt or a sector trailer.
+     */
+    public static void unpackKey(long key, byte[] data, int offset) {
+        assert (key != NO_KEY);
+        for (int i = KEY_SIZE - 1; i >= 0; --i) {
+            data[offset + i] = (byte) key;
+            key >>>= 8;
+        }
+    }
+
+    /**
+     * Factory method. Create a key chain from the content of a key file.
      * 
      * The file format (binary) is: [Sector 0 A key|6 Bytes] [Sector 0 B key|6
      * Bytes] [Sector 1 A key|6 Bytes] ... [Sector N B key|6 Bytes]
      * 
-     * @param keyFile
+     * @param data
      * @return
      * @throws IOException
      */
-    public static MifareKeyChain LoadKeys(File keyFile) throws IOException {
-        assert (keyFile != null);
-
-        String state = Environment.getExternalStorageState();
-
-        if (!Environment.MEDIA_MOUNTED.equals(state) && !Environment.MEDIA_MOUNTED_READ_ONLY.equals(state))
-            throw new IOException("Can't access external storage");
+    public static MifareKeyChain fromByteArray(byte[] data) throws IOException {
+        assert (data != null);
 
-        if (!keyFile.exists())
-            return null;
-
-        InputStream is = new FileInputStream(keyFile);
-        int totalBytes = is.available();
-
-        if ((totalBytes % (2 * KEY_SIZE)) != 0)
+        if (data.length == 0 || (data.length % (2 * KEY_SIZE)) != 0)
             throw new IOException("Invalid format of keyfile");
 
-        int totalSectors = totalBytes / (2 * KEY_SIZE);
-        byte[][][] keys = new byte[totalSectors][2][];
-        for (int sector = 0; sector < totalSectors; ++sector) {
-            keys[sector][A_KEY] = new byte[KEY_SIZE];
-            is.read(keys[sector][A_KEY]);
-            keys[sector][B_KEY] = new byte[KEY_SIZE];
-            is.read(keys[sector][B_KEY]);
-        }
-
-        is.close();
+        long[] keys = new long[data.length / KEY_SIZE];
+        for (int i = 0; i < keys.length; ++i)
+            keys[i] = packKey(data, i * KEY_SIZE);
 
         return new MifareKeyChain(keys);
     }
 
-    public void storeKeys(File keyFile) throws IOException {
-        if (mKeys == null)
-            return;
-
-        String state = Environment.getExternalStorageState();
-
-        if (!Environment.MEDIA_MOUNTED.equals(state) || Environment.MEDIA_MOUNTED_READ_ONLY.equals(state))
-            throw new IOException("Can't access external storage. Write access required.");
-
-        OutputStream os = new FileOutputStream(keyFile);
-
-        byte[][][] keys = mKeys; // Local variable optimization
-        for (int sector = 0; sector < keys.length; ++sector) {
-            os.write(keys[sector][A_KEY]);
-            os.write(keys[sector][B_KEY]);
+    /**
+     * @return The key chain in the key file format, see fromByteArray.
+     * @throws IOException
+     *             If a key is missing.
+     */
+    public byte[] toByteArray() throws IOException {
+        long[] keys = mKeys; // Local variable optimization
+        byte[] data = new byte[keys.length * KEY_SIZE];
+        for (int i = 0; i < keys.length; ++i) {
+            if (keys[i] == NO_KEY)
+                throw new IOException("Incomplete key chain");
+            unpackKey(keys[i], data, i * KEY_SIZE);
         }
 
-        os.close();
+        return data;
     }
 
-    @Override
-    public int describeContents() {
-        return 0;
-    }
-
-    @Override
-    public void writeToParcel(Parcel dest, int flags) {
-        dest.writeInt(mKeys.length);
-        for (byte[][] keyPair : mKeys) {
-            dest.writeByteArray(keyPair[A_KEY]);
-            dest.writeByteArray(keyPair[B_KEY]);
-        }
+    /**
+     * @return A copy of the packed keys, in the order [Sector 0 A key] [Sector
+     *         0 B key] [Sector 1 A key] ...
+     */
+    long[] toLongArray() {
+        return mKeys.clone();
     }
-
-    public static final Parcelable.Creator<MifareKeyChain> CREATOR = new Parcelable.Creator<MifareKeyChain>() {
-        public MifareKeyChain createFromParcel(Parcel in) {
-            int sectors = in.readInt();
-
-            MifareKeyChain keys = new MifareKeyChain(sectors);
-            for (int i = 0; i < sectors; ++i) {
-                keys.mKeys[i][A_KEY] = in.createByteArray();
-                keys.mKeys[i][B_KEY] = in.createByteArray();
-            }
-
-            return keys;
-        }
-
-        public MifareKeyChain[] newArray(int size) {
-            return new MifareKeyChain[size];
-        }
-    };
 }
@@ -0,0 +1,59 @@
+/**
+ * Copyright (c) 2011 Anders Sundman <anders@4zm.org>
+ *
+ * This file is part of SLURP.
+ *
+ * SLURP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SLURP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with SLURP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sparvnastet.slurp;
+
+import java.io.IOException;
+
+/**
+ * The MifareClassic operations used by the key search and the tag reader.
+ *
+ * Keys are packed (see MifareKeyChain.packKey). This interface doesn't depend
+ * on Android, so the search and read code can be driven by a recorded trace
+ * or a simulated tag on a desktop JVM.
+ */
+public interface MifareTag {
+    byte[] getUid();
+
+    /**
+     * @return The SAK sent during anticollision, no communication needed.
+     */
+    int getSak();
+
+    /**
+     * @return The ATQA (2 bytes) sent during anticollision.
+     */
+    byte[] getAtqa();
+
+    void connect() throws IOException;
+
+    void close() throws IOException;
+
+    int getSectorCount();
+
+    int getBlockCountInSector(int sector);
+
+    int sectorToBlock(int sector);
+
+    boolean authenticateSectorWithKeyA(int sector, long key) throws IOException;
+
+    boolean authenticateSectorWithKeyB(int sector, long key) throws IOException;
+
+    byte[] readBlock(int block) throws IOException;
+}
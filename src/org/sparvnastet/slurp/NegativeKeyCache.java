@@ -0,0 +1,342 @@
+/**
+ * Copyright (c) 2011 Anders Sundman <anders@4zm.org>
+ *
+ * This file is part of SLURP.
+ *
+ * SLURP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SLURP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with SLURP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sparvnastet.slurp;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Remembers the keys a tag has rejected, so they aren't tried again on the
+ * same tag (UID), sector and key type.
+ *
+ * Every rejected attempt is stored as a 64 bit fingerprint of (UID, sector,
+ * key type, key). The fingerprint depends on the key itself and not on its
+ * position in the dictionary, so the cache stays valid when the dictionary is
+ * reordered or extended. For a given UID, sector and key type the fingerprint
+ * is a bijection of the key, so two different keys never share an entry. A
+ * Bloom filter would be smaller, but a false positive would hide the right
+ * key for good.
+ *
+ * A failed authentication isn't always a wrong key, on Android it may just as
+ * well be a transient RF error. So rejections are only added from searches
+ * that completed, a key is only skipped after it has been rejected in
+ * CONFIRMATIONS searches, an entry is dropped when the key is accepted after
+ * all, and entries expire after EXPIRY_DAYS.
+ *
+ * The entries are kept in sorted arrays, 12 bytes per entry and no empty
+ * slots, so a full cache is 768 KB.
+ *
+ * The cache can be used from the search thread and the UI thread.
+ */
+public class NegativeKeyCache {
+    /**
+     * Max number of entries. When the cache is full the entries with the
+     * oldest rejections are dropped to make room for new ones.
+     */
+    public final static int MAX_ENTRIES = 1 << 16;
+
+    /**
+     * Number of searches that must have had a key rejected before it's
+     * skipped.
+     */
+    public final static int CONFIRMATIONS = 2;
+
+    /**
+     * Days after the last rejection an entry is dropped.
+     */
+    public final static int EXPIRY_DAYS = 30;
+
+    // File format: [Magic|4 Bytes] then the entries, sorted on fingerprint:
+    // [Fingerprint|8 Bytes] [Stamp|4 Bytes]
+    private final static int MAGIC = 0x4e4b4332;
+    private final static int HEADER_SIZE = 4;
+    private final static int ENTRY_SIZE = 12;
+
+    // A stamp is [Day of the last rejection|30 Bits] [Rejections|2 Bits]
+    private final static int STRIKE_BITS = 2;
+    private final static int MAX_STRIKES = (1 << STRIKE_BITS) - 1;
+    private final static long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+
+    private long[] mEntries = new long[0];
+    private int[] mStamps = new int[0];
+    private int mSize;
+    private boolean mDirty;
+
+    public boolean isRejected(byte[] uid, int sector, boolean keyB, long key) {
+        return isRejected(uid, sector, keyB, key, today());
+    }
+
+    synchronized boolean isRejected(byte[] uid, int sector, boolean keyB, long key, int today) {
+        int i = Arrays.binarySearch(mEntries, 0, mSize, fingerprint(uid, sector, keyB, key));
+        return i >= 0 && getStrikes(mStamps[i]) >= CONFIRMATIONS && !isExpired(mStamps[i], today);
+    }
+
+    /**
+     * Add the result of a completed search.
+     *
+     * @param uid
+     * @param rejected
+     *            The rejected attempts, see KeySearch.attempt.
+     * @param accepted
+     *            The attempts that succeeded. Entries for them are dropped.
+     */
+    public void addSearch(byte[] uid, LongKeySet rejected, LongKeySet accepted) {
+        addSearch(uid, rejected, accepted, today());
+    }
+
+    /**
+     * @param today
+     *            Days since the epoch.
+     */
+    synchronized void addSearch(byte[] uid, LongKeySet rejected, LongKeySet accepted, int today) {
+        for (long attempt : accepted.toArray()) {
+            int i = find(uid, attempt);
+            if (i >= 0) {
+                mStamps[i] = 0; // Expired, dropped below
+                mDirty = true;
+            }
+        }
+
+        long[] added = new long[rejected.size()];
+        int n = 0;
+        for (long attempt : rejected.toArray()) {
+            int i = find(uid, attempt);
+            if (i >= 0) {
+                // An expired rejection doesn't count towards the confirmations
+                int strikes = isExpired(mStamps[i], today) ? 1 : Math.min(MAX_STRIKES, getStrikes(mStamps[i]) + 1);
+                mStamps[i] = stamp(today, strikes);
+            } else {
+                added[n++] = fingerprint(uid, KeySearch.getSector(attempt), KeySearch.isKeyB(attempt),
+                        KeySearch.getKey(attempt));
+            }
+            mDirty = true;
+        }
+
+        Arrays.sort(added, 0, n);
+        int[] stamps = new int[n];
+        Arrays.fill(stamps, stamp(today, 1));
+        prune(today);
+        merge(added, stamps, n);
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * @return true if entries have been changed since the last call to
+     *         toByteArray.
+     */
+    public synchronized boolean isDirty() {
+        return mDirty;
+    }
+
+    public synchronized void clear() {
+        mEntries = new long[0];
+        mStamps = new int[0];
+        mSize = 0;
+        mDirty = true;
+    }
+
+    /**
+     * Add the entries from a saved cache. Expired entries are skipped.
+     *
+     * @param data
+     *            The content of a cache file, see toByteArray.
+     * @throws IOException
+     *             If the data isn't a cache file, e.g. one in the old format
+     *             without confirmation counts.
+     */
+    public synchronized void load(byte[] data) throws IOException {
+        if (data.length < HEADER_SIZE || readInt(data, 0) != MAGIC || (data.length - HEADER_SIZE) % ENTRY_SIZE != 0)
+            throw new IOException("Invalid format of negative key cache");
+
+        int count = (data.length - HEADER_SIZE) / ENTRY_SIZE;
+        long[] entries = new long[count];
+        int[] stamps = new int[count];
+        int today = today();
+        int n = 0;
+        for (int offset = HEADER_SIZE; offset < data.length; offset += ENTRY_SIZE) {
+            long entry = (long) readInt(data, offset) << 32 | (readInt(data, offset + 4) & 0xffffffffL);
+            if (n > 0 && entry <= entries[n - 1])
+                throw new IOException("Unsorted negative key cache");
+
+            int stamp = readInt(data, offset + 8);
+            if (!isExpired(stamp, today)) {
+                entries[n] = entry;
+                stamps[n++] = stamp;
+            }
+        }
+
+        merge(entries, stamps, n);
+    }
+
+    /**
+     * @return The header and the entries, all big endian.
+     */
+    public synchronized byte[] toByteArray() {
+        byte[] data = new byte[HEADER_SIZE + mSize * ENTRY_SIZE];
+        writeInt(data, 0, MAGIC);
+        for (int i = 0; i < mSize; ++i) {
+            int offset = HEADER_SIZE + i * ENTRY_SIZE;
+            writeInt(data, offset, (int) (mEntries[i] >>> 32));
+            writeInt(data, offset + 4, (int) mEntries[i]);
+            writeInt(data, offset + 8, mStamps[i]);
+        }
+
+        mDirty = false;
+        return data;
+    }
+
+    private int find(byte[] uid, long attempt) {
+        long entry = fingerprint(uid, KeySearch.getSector(attempt), KeySearch.isKeyB(attempt),
+                KeySearch.getKey(attempt));
+        return Arrays.binarySearch(mEntries, 0, mSize, entry);
+    }
+
+    /**
+     * Drop the expired entries.
+     */
+    private void prune(int today) {
+        int n = 0;
+        for (int i = 0; i < mSize; ++i) {
+            if (!isExpired(mStamps[i], today)) {
+                mEntries[n] = mEntries[i];
+                mStamps[n++] = mStamps[i];
+            }
+        }
+        if (n != mSize)
+            mDirty = true;
+        mSize = n;
+    }
+
+    /**
+     * Merge sorted entries into the cache. An entry that is already in the
+     * cache keeps the most recent day and the most rejections. If there are
+     * more than MAX_ENTRIES, the oldest are dropped.
+     */
+    private void merge(long[] entries, int[] stamps, int count) {
+        if (count == 0)
+            return;
+
+        int capacity = mSize + count;
+        long[] mergedEntries = new long[capacity];
+        int[] mergedStamps = new int[capacity];
+        int n = 0;
+        int i = 0;
+        int j = 0;
+        while (i < mSize || j < count) {
+            if (j == count || (i < mSize && mEntries[i] < entries[j])) {
+                mergedEntries[n] = mEntries[i];
+                mergedStamps[n++] = mStamps[i++];
+            } else if (i < mSize && mEntries[i] == entries[j]) {
+                mergedEntries[n] = mEntries[i];
+                mergedStamps[n++] = Math.max(mStamps[i++], stamps[j++]);
+            } else {
+                mergedEntries[n] = entries[j];
+                mergedStamps[n++] = stamps[j++];
+            }
+        }
+
+        mEntries = mergedEntries;
+        mStamps = mergedStamps;
+        mSize = n;
+        if (n > MAX_ENTRIES)
+            evict(n - MAX_ENTRIES);
+    }
+
+    /**
+     * Drop the entries with the oldest rejections.
+     */
+    private void evict(int count) {
+        int[] days = new int[mSize];
+        for (int i = 0; i < mSize; ++i)
+            days[i] = mStamps[i] >>> STRIKE_BITS;
+        Arrays.sort(days);
+        int cutoff = days[count - 1];
+
+        // All entries older than the cutoff go, and enough of the ones from
+        // the cutoff day
+        int atCutoff = count;
+        for (int i = 0; i < count; ++i) {
+            if (days[i] < cutoff)
+                --atCutoff;
+        }
+
+        int n = 0;
+        for (int i = 0; i < mSize; ++i) {
+            int day = mStamps[i] >>> STRIKE_BITS;
+            if (day < cutoff || (day == cutoff && atCutoff-- > 0))
+                continue;
+            mEntries[n] = mEntries[i];
+            mStamps[n++] = mStamps[i];
+        }
+        mEntries = Arrays.copyOf(mEntries, n);
+        mStamps = Arrays.copyOf(mStamps, n);
+        mSize = n;
+        mDirty = true;
+    }
+
+    private static int stamp(int day, int strikes) {
+        return day << STRIKE_BITS | strikes;
+    }
+
+    private static int getStrikes(int stamp) {
+        return stamp & MAX_STRIKES;
+    }
+
+    private static boolean isExpired(int stamp, int today) {
+        return getStrikes(stamp) == 0 || today - (stamp >>> STRIKE_BITS) > EXPIRY_DAYS;
+    }
+
+    private static int today() {
+        return (int) (System.currentTimeMillis() / DAY_MILLIS);
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xff) << 24 | (data[offset + 1] & 0xff) << 16 | (data[offset + 2] & 0xff) << 8
+                | (data[offset + 3] & 0xff);
+    }
+
+    private static void writeInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+
+    private static long fingerprint(byte[] uid, int sector, boolean keyB, long key) {
+        // FNV-1a over the UID, sector and key type
+        long h = 0xcbf29ce484222325L;
+        for (byte b : uid)
+            h = (h ^ (b & 0xff)) * 0x100000001b3L;
+        h = (h ^ (sector << 1 | (keyB ? 1 : 0))) * 0x100000001b3L;
+
+        // Finalizer from MurmurHash3, a bijection, so different keys give
+        // different fingerprints.
+        h ^= key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
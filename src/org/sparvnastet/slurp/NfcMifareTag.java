@@ -0,0 +1,88 @@
+/**
+ * Copyright (c) 2011 Anders Sundman <anders@4zm.org>
+ *
+ * This file is part of SLURP.
+ *
+ * SLURP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SLURP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with SLURP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sparvnastet.slurp;
+
+import java.io.IOException;
+
+import android.nfc.tech.MifareClassic;
+import android.nfc.tech.NfcA;
+
+/**
+ * A MifareTag backed by a real tag. This is where packed keys are converted
+ * to the byte arrays MifareClassic wants.
+ */
+public class NfcMifareTag implements MifareTag {
+    private final MifareClassic mTag;
+    private final NfcA mNfcA;
+    private final byte[] mKeyBuffer = new byte[MifareKeyChain.KEY_SIZE];
+
+    public NfcMifareTag(MifareClassic tag) {
+        assert (tag != null);
+        mTag = tag;
+        // Every MifareClassic tag is also an NfcA tag
+        mNfcA = NfcA.get(tag.getTag());
+    }
+
+    public byte[] getUid() {
+        return mTag.getTag().getId();
+    }
+
+    public int getSak() {
+        return mNfcA.getSak();
+    }
+
+    public byte[] getAtqa() {
+        return mNfcA.getAtqa();
+    }
+
+    public void connect() throws IOException {
+        mTag.connect();
+    }
+
+    public void close() throws IOException {
+        mTag.close();
+    }
+
+    public int getSectorCount() {
+        return mTag.getSectorCount();
+    }
+
+    public int getBlockCountInSector(int sector) {
+        return mTag.getBlockCountInSector(sector);
+    }
+
+    public int sectorToBlock(int sector) {
+        return mTag.sectorToBlock(sector);
+    }
+
+    public boolean authenticateSectorWithKeyA(int sector, long key) throws IOException {
+        MifareKeyChain.unpackKey(key, mKeyBuffer, 0);
+        return mTag.authenticateSectorWithKeyA(sector, mKeyBuffer);
+    }
+
+    public boolean authenticateSectorWithKeyB(int sector, long key) throws IOException {
+        MifareKeyChain.unpackKey(key, mKeyBuffer, 0);
+        return mTag.authenticateSectorWithKeyB(sector, mKeyBuffer);
+    }
+
+    public byte[] readBlock(int block) throws IOException {
+        return mTag.readBlock(block);
+    }
+}
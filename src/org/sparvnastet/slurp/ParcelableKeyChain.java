@@ -0,0 +1,64 @@
+/**
+ * Copyright (c) 2011 Anders Sundman <anders@4zm.org>
+ *
+ * This file is part of SLURP.
+ *
+ * SLURP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SLURP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with SLURP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.sparvnastet.slurp;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * A MifareKeyChain that can be kept in a Bundle. The key chain itself is kept
+ * free of Android classes so the engine can run on a desktop JVM.
+ */
+public class ParcelableKeyChain extends MifareKeyChain implements Parcelable {
+
+    private ParcelableKeyChain(long[] keyData) {
+        super(keyData);
+    }
+
+    /**
+     * @return A parcelable copy of keyChain, null if keyChain is null.
+     */
+    public static ParcelableKeyChain from(MifareKeyChain keyChain) {
+        if (keyChain == null)
+            return null;
+        if (keyChain instanceof ParcelableKeyChain)
+            return (ParcelableKeyChain) keyChain;
+        return new ParcelableKeyChain(keyChain.toLongArray());
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeLongArray(toLongArray());
+    }
+
+    public static final Parcelable.Creator<ParcelableKeyChain> CREATOR = new Parcelable.Creator<ParcelableKeyChain>() {
+        public ParcelableKeyChain createFromParcel(Parcel in) {
+            return new ParcelableKeyChain(in.createLongArray());
+        }
+
+        public ParcelableKeyChain[] newArray(int size) {
+            return new ParcelableKeyChain[size];
+        }
+    };
+}
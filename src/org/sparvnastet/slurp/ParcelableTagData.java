@@ -0,0 +1,101 @@
+/**
+ * Copyright (c) 2011 Anders Sundman <anders@4zm.org>
+ *
+ * This file is part of SLURP.
+ *
+ * SLURP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SLURP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with SLURP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.sparvnastet.slurp;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * A TagData that can be kept in a Bundle. The tag data itself is kept free of
+ * Android classes so the engine can run on a desktop JVM.
+ */
+public class ParcelableTagData extends TagData implements Parcelable {
+
+    private ParcelableTagData(int sectors) {
+        super(sectors);
+    }
+
+    /**
+     * @return A parcelable copy of data (sharing the blocks), null if data is
+     *         null.
+     */
+    public static ParcelableTagData from(TagData data) {
+        if (data == null)
+            return null;
+        if (data instanceof ParcelableTagData)
+            return (ParcelableTagData) data;
+
+        ParcelableTagData copy = new ParcelableTagData(data.getSectorCount());
+        for (int i = 0; i < data.getSectorCount(); ++i)
+            copy.setSector(i, data.getSector(i));
+        return copy;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        int sectors = getSectorCount();
+        dest.writeInt(sectors);
+        for (int i = 0; i < sectors; ++i) {
+            byte[][] sector = getSector(i);
+            if (sector == null)
+                dest.writeInt(0);
+            else {
+                dest.writeInt(sector.length);
+                for (byte[] block : sector) {
+                    if (block == null)
+                        dest.writeInt(0);
+                    else {
+                        dest.writeInt(block.length);
+                        dest.writeByteArray(block);
+                    }
+                }
+            }
+        }
+    }
+
+    public static final Parcelable.Creator<ParcelableTagData> CREATOR = new Parcelable.Creator<ParcelableTagData>() {
+        public ParcelableTagData createFromParcel(Parcel in) {
+            int sectors = in.readInt();
+            ParcelableTagData tag = new ParcelableTagData(sectors);
+
+            for (int i = 0; i < sectors; ++i) {
+                int blocks = in.readInt();
+                byte[][] sectorData = new byte[blocks][];
+                for (int j = 0; j < blocks; ++j) {
+                    int blockLength = in.readInt();
+                    if (blockLength > 0) {
+                        sectorData[j] = in.createByteArray();
+                    }
+                }
+                tag.setSector(i, sectorData);
+            }
+
+            return tag;
+        }
+
+        public ParcelableTagData[] newArray(int size) {
+            return new ParcelableTagData[size];
+        }
+    };
+}
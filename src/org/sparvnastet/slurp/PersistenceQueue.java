@@ -0,0 +1,311 @@
+/**
+ * Copyright (c) 2011 Anders Sundman <anders@4zm.org>
+ *
+ * This file is part of SLURP.
+ *
+ * SLURP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SLURP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with SLURP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sparvnastet.slurp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Reads and writes files on the external storage on a background thread.
+ *
+ * Files are given by name, relative to the external files directory of the
+ * application. The directory is resolved on the worker thread, since that
+ * touches the storage (and creates the directory), and it may not be
+ * available at all when the storage isn't mounted.
+ *
+ * Writes are queued and flushed in batches. A write to a file that already
+ * has a pending write replaces the pending data, so saving the same file
+ * repeatedly only hits the storage once. Every file is written to a
+ * temporary file that is then renamed, so a file is never left half written.
+ *
+ * All callbacks are called on the main thread.
+ */
+public class PersistenceQueue {
+
+    public interface WriteCallback {
+        /**
+         * @param file
+         *            null if the external storage isn't available.
+         * @param error
+         *            null if the data was written.
+         */
+        void onWriteComplete(File file, IOException error);
+    }
+
+    public interface ReadCallback {
+        /**
+         * @param file
+         *            null if the external storage isn't available.
+         * @param data
+         *            The file content, null if the file doesn't exist or
+         *            couldn't be read.
+         * @param error
+         *            null if the read didn't fail.
+         */
+        void onReadComplete(File file, byte[] data, IOException error);
+    }
+
+    private final static String TMP_SUFFIX = ".tmp";
+    private final static int IDLE_TIMEOUT_SECONDS = 5;
+
+    private static class PendingWrite {
+        byte[] mData;
+        List<WriteCallback> mCallbacks = new ArrayList<WriteCallback>(1);
+    }
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ThreadPoolExecutor mExecutor;
+
+    // Guarded by this
+    private LinkedHashMap<String, PendingWrite> mPending = new LinkedHashMap<String, PendingWrite>();
+    private boolean mFlushScheduled;
+
+    /**
+     * @param context
+     *            Should be the application context, the queue may outlive
+     *            an activity.
+     */
+    public PersistenceQueue(Context context) {
+        assert (context != null);
+        mContext = context;
+
+        // A single worker, so reads and writes are executed in order. The
+        // thread goes away when the queue has been idle for a while.
+        mExecutor = new ThreadPoolExecutor(1, 1, IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queue data to be written to a file.
+     *
+     * @param name
+     *            Name of the file in the external files directory.
+     * @param data
+     *            Must not be modified after it has been queued.
+     * @param callback
+     *            May be null.
+     */
+    public void write(String name, byte[] data, WriteCallback callback) {
+        assert (name != null && data != null);
+
+        synchronized (this) {
+            PendingWrite pending = mPending.get(name);
+            if (pending == null) {
+                pending = new PendingWrite();
+                mPending.put(name, pending);
+            }
+            pending.mData = data;
+            if (callback != null)
+                pending.mCallbacks.add(callback);
+
+            if (mFlushScheduled)
+                return;
+            mFlushScheduled = true;
+        }
+
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                flush();
+            }
+        });
+    }
+
+    /**
+     * Read a file. The read is done after all writes queued before it, and a
+     * file with a pending write is read from the queue.
+     *
+     * @param name
+     *            Name of the file in the external files directory.
+     * @param callback
+     */
+    public void read(final String name, final ReadCallback callback) {
+        assert (name != null && callback != null);
+
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                byte[] data = null;
+                IOException error = null;
+
+                synchronized (PersistenceQueue.this) {
+                    PendingWrite pending = mPending.get(name);
+                    if (pending != null)
+                        data = pending.mData;
+                }
+
+                File file = getFile(name);
+                try {
+                    if (data == null && file == null)
+                        throw new IOException("Can't access external storage");
+                    if (data == null)
+                        data = readFile(file);
+                } catch (IOException e) {
+                    Log.e(SLURPActivity.LOGTAG, "Error reading " + file + ": " + e);
+                    error = e;
+                }
+
+                postReadComplete(callback, file, data, error);
+            }
+        });
+    }
+
+    /**
+     * Write everything that is queued. Runs on the worker thread.
+     */
+    private void flush() {
+        Map<String, PendingWrite> batch;
+        synchronized (this) {
+            batch = mPending;
+            mPending = new LinkedHashMap<String, PendingWrite>();
+            mFlushScheduled = false;
+        }
+
+        IOException storageError = checkStorageWritable();
+        File directory = null;
+        if (storageError == null) {
+            directory = mContext.getExternalFilesDir(null);
+            if (directory == null)
+                storageError = new IOException("Can't access external storage");
+        }
+
+        for (Map.Entry<String, PendingWrite> entry : batch.entrySet()) {
+            File file = directory != null ? new File(directory, entry.getKey()) : null;
+            IOException error = storageError;
+
+            if (error == null) {
+                try {
+                    writeFile(file, entry.getValue().mData);
+                } catch (IOException e) {
+                    Log.e(SLURPActivity.LOGTAG, "Error writing " + file + ": " + e);
+                    error = e;
+                }
+            }
+
+            for (WriteCallback callback : entry.getValue().mCallbacks)
+                postWriteComplete(callback, file, error);
+        }
+
+        Log.i(SLURPActivity.LOGTAG, "PersistenceQueue: flushed " + batch.size() + " file(s)");
+    }
+
+    /**
+     * @return The file in the external files directory, null if the storage
+     *         isn't available. Runs on the worker thread.
+     */
+    private File getFile(String name) {
+        File directory = mContext.getExternalFilesDir(null);
+        return directory != null ? new File(directory, name) : null;
+    }
+
+    private void postWriteComplete(final WriteCallback callback, final File file, final IOException error) {
+        mHandler.post(new Runnable() {
+            public void run() {
+                callback.onWriteComplete(file, error);
+            }
+        });
+    }
+
+    private void postReadComplete(final ReadCallback callback, final File file, final byte[] data,
+            final IOException error) {
+        mHandler.post(new Runnable() {
+            public void run() {
+                callback.onReadComplete(file, data, error);
+            }
+        });
+    }
+
+    private static IOException checkStorageWritable() {
+        String state = Environment.getExternalStorageState();
+
+        if (!Environment.MEDIA_MOUNTED.equals(state) || Environment.MEDIA_MOUNTED_READ_ONLY.equals(state))
+            return new IOException("Can't access external storage. Write access required.");
+
+        return null;
+    }
+
+    private static void writeFile(File file, byte[] data) throws IOException {
+        File tmpFile = new File(file.getPath() + TMP_SUFFIX);
+
+        FileOutputStream os = new FileOutputStream(tmpFile);
+        try {
+            FileChannel channel = os.getChannel();
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            os.getFD().sync();
+        } finally {
+            os.close();
+        }
+
+        if (!tmpFile.renameTo(file)) {
+            tmpFile.delete();
+            throw new IOException("Can't rename " + tmpFile + " to " + file);
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        String state = Environment.getExternalStorageState();
+
+        if (!Environment.MEDIA_MOUNTED.equals(state) && !Environment.MEDIA_MOUNTED_READ_ONLY.equals(state))
+            throw new IOException("Can't access external storage");
+
+        if (!file.exists())
+            return null;
+
+        FileInputStream is = new FileInputStream(file);
+        try {
+            FileChannel channel = is.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("File too large: " + file);
+
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0)
+                    break;
+            }
+
+            if (buffer.hasRemaining())
+                throw new IOException("Short read: " + file);
+
+            return buffer.array();
+        } finally {
+            is.close();
+        }
+    }
+}
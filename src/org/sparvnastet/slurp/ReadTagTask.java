@@ -22,54 +22,83 @@ package org.sparvnastet.slurp;
 import java.io.IOException;
 
 import android.app.ProgressDialog;
-import android.nfc.tech.MifareClassic;
 import android.os.AsyncTask;
 import android.util.Log;
 import android.widget.Toast;
 
-public class ReadTagTask extends AsyncTask<MifareClassic, Integer, TagData> {
+public class ReadTagTask extends AsyncTask<MifareTag, Integer, TagData> implements TagReader.Listener {
 
     private ProgressDialog mProgressDialog;
     SLURPActivity mActivity;
     MifareKeyChain mKeyChain;
+    private SessionMetrics mMetrics;
+
+    // UI state kept while no activity is attached
+    private int mProgress;
+    private boolean mFinished;
+    private TagData mResult;
+    private MifareTag mTag;
 
     public ReadTagTask(SLURPActivity activity, MifareKeyChain keyChain) {
         assert (activity != null && keyChain != null);
         mActivity = activity;
         mKeyChain = keyChain;
+        mMetrics = activity.getSession().getMetrics();
+    }
+
+    /**
+     * Attach a (new) activity, e.g. after a configuration change. Shows the
+     * progress again, or delivers the result if the task finished while no
+     * activity was attached.
+     *
+     * @param activity
+     */
+    public void attach(SLURPActivity activity) {
+        mActivity = activity;
+        if (mFinished)
+            deliverResult();
+        else
+            showProgress();
+    }
+
+    /**
+     * Detach from the activity. The task keeps running.
+     */
+    public void detach() {
+        if (mProgressDialog != null)
+            mProgressDialog.dismiss();
+        mProgressDialog = null;
+        mActivity = null;
     }
 
     @Override
     protected void onPreExecute() {
+        showProgress();
+    }
+
+    private void showProgress() {
         mActivity.setProgressBarIndeterminateVisibility(true);
 
         mProgressDialog = new ProgressDialog(mActivity);
         mProgressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
         mProgressDialog.setMessage("Reading tag...");
         mProgressDialog.setCancelable(false);
+        mProgressDialog.setProgress(mProgress);
         mProgressDialog.show();
     }
 
     @Override
-    protected TagData doInBackground(MifareClassic... tagParam) {
+    protected TagData doInBackground(MifareTag... tagParam) {
         if (tagParam == null || tagParam.length != 1)
             return null;
 
-        MifareClassic tag = tagParam[0];
+        mTag = tagParam[0];
         Log.i(SLURPActivity.LOGTAG, "ReadTagTask: doInBackground");
+        TagReader reader = new TagReader(mKeyChain, this);
         try {
-            tag.connect();
-
-            int sectorCount = tag.getSectorCount();
-            TagData data = new TagData(sectorCount);
-
-            for (int i = 0; i < sectorCount; ++i) {
-                data.setSector(i, readSector(tag, i, mKeyChain.getKeyA(i), mKeyChain.getKeyB(i)));
-                publishProgress((100 * (i + 1)) / sectorCount);
-            }
-
-            tag.close();
-
+            TagData data = reader.read(mTag);
+            Log.i(SLURPActivity.LOGTAG, "ReadTagTask: " + reader.getRereadCount() + " blocks read again, "
+                    + reader.getCorruptBlockCount() + " corrupt");
             return data;
         } catch (IOException e) {
             Log.e(SLURPActivity.LOGTAG, "ReadTagTask: Auth IOException");
@@ -77,18 +106,44 @@ public class ReadTagTask extends AsyncTask<MifareClassic, Integer, TagData> {
         }
     }
 
+    /** TagReader.Listener, called on the background thread */
+
+    public void onSectorRead(int sector, int sectorCount) {
+        mMetrics.mark(SessionMetrics.Event.FIRST_AUTH);
+        publishProgress((100 * (sector + 1)) / sectorCount);
+    }
+
+    public void onCorruptBlock(int block, int errors) {
+        Log.w(SLURPActivity.LOGTAG, "ReadTagTask: Corrupt block " + block + " " + DumpValidator.toString(errors));
+    }
+
     @Override
     protected void onProgressUpdate(Integer... progress) {
-        mProgressDialog.setProgress(progress[0]);
-        Log.i(SLURPActivity.LOGTAG, "TestKeysTask: progress update " + progress[0]);
+        mProgress = progress[0];
+        if (mProgressDialog != null)
+            mProgressDialog.setProgress(progress[0]);
+        Log.i(SLURPActivity.LOGTAG, "ReadTagTask: progress update " + progress[0]);
     }
 
     @Override
     protected void onPostExecute(TagData data) {
         Log.i(SLURPActivity.LOGTAG, "ReadTagTask: onPostExecute");
 
+        mResult = data;
+        mFinished = true;
+        if (mActivity != null)
+            deliverResult();
+    }
+
+    private void deliverResult() {
+        TagData data = mResult;
+
         mActivity.setProgressBarIndeterminateVisibility(false);
-        mProgressDialog.dismiss();
+        if (mProgressDialog != null)
+            mProgressDialog.dismiss();
+        mProgressDialog = null;
+
+        mActivity.getSession().onTaskFinished(this);
 
         if (data == null)
             Toast.makeText(mActivity, "Couldn't read data", Toast.LENGTH_SHORT).show();
@@ -96,40 +151,7 @@ public class ReadTagTask extends AsyncTask<MifareClassic, Integer, TagData> {
             Toast.makeText(mActivity, "Data Read", Toast.LENGTH_SHORT).show();
 
         mActivity.setTagData(data);
-    }
-
-    // TODO This function should look at the access ctrl bits to determine
-    // what keys to use.
-    private byte[][] readSector(MifareClassic tag, int sector, byte[] keyA, byte[] keyB) throws IOException {
-        byte[][] data = new byte[tag.getBlockCountInSector(sector)][];
-
-        Log.i(SLURPActivity.LOGTAG, "ReadTagTask");
-        boolean res = keyA != null && tag.authenticateSectorWithKeyA(sector, keyA);
-
-        if (res)
-            Log.i(SLURPActivity.LOGTAG, "Use Key A");
-
-        if (!res && keyB != null) {
-            Log.i(SLURPActivity.LOGTAG, "Use Key A");
-            res = tag.authenticateSectorWithKeyB(sector, keyB);
-        }
-
-        if (!res)
-            throw new IOException("READ ERROR - can't auth");
-
-        int blocks = tag.getBlockCountInSector(sector);
-        for (int i = 0; i < blocks; ++i)
-            data[i] = tag.readBlock(SLURPActivity.getBlockIndex(tag, sector, i));
-
-        // We might not have read access to the access ctrl block.
-        // just fill in the data from our known keys.
-        for (int i = 0; i < MifareKeyChain.KEY_SIZE; ++i)
-            data[blocks - 1][i] = keyA[i];
-
-        for (int i = 0; i < MifareKeyChain.KEY_SIZE; ++i)
-            data[blocks - 1][i + 10] = keyB[i];
-
-        return data;
+        mActivity.saveTrace(mTag);
     }
 
 }
\ No newline at end of file
@@ -21,18 +21,17 @@ package org.sparvnastet.slurp;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-
-import org.xmlpull.v1.XmlPullParser;
-import org.xmlpull.v1.XmlPullParserException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
 
 import android.app.Activity;
+import android.app.AlertDialog;
 import android.app.PendingIntent;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.res.Configuration;
-import android.content.res.Resources;
-import android.content.res.XmlResourceParser;
 import android.nfc.NfcAdapter;
 import android.nfc.Tag;
 import android.nfc.tech.MifareClassic;
@@ -54,6 +53,7 @@ import android.widget.Toast;
 public class SLURPActivity extends Activity {
     public static final String LOGTAG = "NFC";
     private static final String CURRENT_KEY_FILE = "current.keys";
+    private static final String REJECTED_KEYS_FILE = "rejected.keys";
     private static final String BUNDLE_KEY_CHAIN = "KEY_CHAIN";
     private static final String BUNDLE_TAG_DATA = "TAG_DATA";
 
@@ -62,12 +62,7 @@ public class SLURPActivity extends Activity {
     private IntentFilter[] mFilters;
     private String[][] mTechLists;
 
-    private TagData mTagData;
-
-    private FindKeysTask mKeysTask;
-    private ReadTagTask mReadTagTask;
-
-    private MifareKeyChain mKeyChain;
+    private SessionState mSession;
 
     private EditText mTextBoxKeys;
     private EditText mTextBoxData;
@@ -86,15 +81,37 @@ public class SLURPActivity extends Activity {
 
         mAdapter = NfcAdapter.getDefaultAdapter(this);
 
-        if (savedInstanceState == null) {
-            loadKeys();
-            setTagData(null);
-        }
-        else {
-            MifareKeyChain keyChain = savedInstanceState.getParcelable(BUNDLE_KEY_CHAIN);
-            setKeys(keyChain);
-            TagData tagData = savedInstanceState.getParcelable(BUNDLE_TAG_DATA);
-            setTagData(tagData);
+        // A session retained over a configuration change already has all
+        // the state, including the rendered text.
+        mSession = (SessionState) getLastNonConfigurationInstance();
+        if (mSession == null) {
+            mSession = new SessionState(getApplicationContext());
+            mSession.attach(this);
+
+            // Nothing that touches the storage is done here, the dictionary
+            // and the keys are prepared in the background. A tag that is
+            // detected before the keys are loaded is held until they are.
+            mSession.prepareDictionary(new DictionaryLoader(getApplicationContext()));
+            mSession.prepareDumpIndex(getApplicationContext());
+
+            // The keys and the data are kept in the bundle for when the
+            // process has been killed, a dump that wasn't saved would be lost
+            // otherwise.
+            loadRejectedKeys();
+            if (savedInstanceState == null) {
+                loadKeys(false);
+            } else {
+                setKeys((MifareKeyChain) savedInstanceState.getParcelable(BUNDLE_KEY_CHAIN));
+                setTagData((TagData) savedInstanceState.getParcelable(BUNDLE_TAG_DATA));
+                mSession.setKeysLoaded();
+            }
+        } else {
+            Log.i(LOGTAG, "onCreate: reattaching retained session");
+            mTextBoxKeys.setText(mSession.getKeysText());
+            mTextBoxData.setText(mSession.getDataText());
+            mSession.attach(this);
+            if (mSession.isKeysLoaded())
+                processPendingTag();
         }
 
         // Setup foreground processing of NFC intents
@@ -104,8 +121,12 @@ public class SLURPActivity extends Activity {
         mFilters = new IntentFilter[] { techFilter };
         mTechLists = new String[][] { new String[] { MifareClassic.class.getName() } };
 
-        Intent intent = getIntent();
-        resolveIntent(intent);
+        // A recreated activity gets the intent it was launched with again,
+        // that tag has already been handled.
+        if (savedInstanceState == null) {
+            Intent intent = getIntent();
+            resolveIntent(intent);
+        }
     }
 
     @Override
@@ -119,6 +140,19 @@ public class SLURPActivity extends Activity {
         super.onConfigurationChanged(newConfig);
     }
 
+    @Override
+    public Object onRetainNonConfigurationInstance() {
+        mSession.detach();
+        return mSession;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (mSession.getActivity() == this)
+            mSession.detach();
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         MenuInflater inflater = getMenuInflater();
@@ -126,6 +160,12 @@ public class SLURPActivity extends Activity {
         return true;
     }
 
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        menu.findItem(R.id.record_traces).setChecked(mSession.isRecordTraces());
+        return true;
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
@@ -138,27 +178,31 @@ public class SLURPActivity extends Activity {
             Toast.makeText(this, "Cleared Data", Toast.LENGTH_SHORT).show();
             break;
         case R.id.save_keys:
-            if (mKeyChain == null) {
+            if (mSession.getKeyChain() == null) {
                 Toast.makeText(this, "No keys in use", Toast.LENGTH_SHORT).show();
-            } else if (saveKeys()) {
-                Toast.makeText(this, "Keys Saved", Toast.LENGTH_SHORT).show();
-            } else {
+            } else if (!saveKeys()) {
                 Toast.makeText(this, "Save Failed", Toast.LENGTH_SHORT).show();
             }
             break;
         case R.id.load_keys:
-            loadKeys();
-            if (mKeyChain != null)
-                Toast.makeText(this, "Keys Loaded", Toast.LENGTH_SHORT).show();
-            else
-                Toast.makeText(this, "Load Failed", Toast.LENGTH_SHORT).show();
+            loadKeys(true);
+            break;
+        case R.id.clear_rejected_keys:
+            mSession.getRejectedKeys().clear();
+            saveRejectedKeys();
+            Toast.makeText(this, "Cleared Rejected Keys", Toast.LENGTH_SHORT).show();
+            break;
+        case R.id.record_traces:
+            mSession.setRecordTraces(!mSession.isRecordTraces());
+            item.setChecked(mSession.isRecordTraces());
+            break;
+        case R.id.search_dumps:
+            showSearchDialog();
             break;
         case R.id.dump_data:
-            if (mTagData == null) {
+            if (mSession.getTagData() == null) {
                 Toast.makeText(this, "No Data", Toast.LENGTH_SHORT).show();
-            } else if (saveData())
-                Toast.makeText(this, "Data Saved", Toast.LENGTH_SHORT).show();
-            else
+            } else if (!saveData())
                 Toast.makeText(this, "Save Failed", Toast.LENGTH_SHORT).show();
             break;
         }
@@ -168,8 +212,8 @@ public class SLURPActivity extends Activity {
     @Override
     public void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
-        outState.putParcelable(BUNDLE_KEY_CHAIN, mKeyChain);
-        outState.putParcelable(BUNDLE_TAG_DATA, mTagData);
+        outState.putParcelable(BUNDLE_KEY_CHAIN, ParcelableKeyChain.from(mSession.getKeyChain()));
+        outState.putParcelable(BUNDLE_TAG_DATA, ParcelableTagData.from(mSession.getTagData()));
     }
 
     @Override
@@ -177,135 +221,274 @@ public class SLURPActivity extends Activity {
         super.onPause();
         if (mAdapter != null)
             mAdapter.disableForegroundDispatch(this);
+        mSession.saveDumpIndex();
     }
 
     @Override
     public void onResume() {
         super.onResume();
+        mSession.getMetrics().mark(SessionMetrics.Event.UI_SHOWN);
         if (mAdapter != null)
             mAdapter.enableForegroundDispatch(this, mPendingIntent, mFilters, mTechLists);
     }
 
     public void setTagData(TagData data) {
-        mTagData = data;
-        mTextBoxData.setText("");
-
-        if (data != null) {
-            for (int sector = 0; sector < data.getSectorCount(); ++sector) {
-                mTextBoxData.append("Sector " + sector + ":\n");
-                for (int blockIndex = 0; blockIndex < data.getBlockInSectorCount(sector); ++blockIndex) {
-                    mTextBoxData.append(DataFormater.bytesToString(data.getSector(sector)[blockIndex]) + "\n");
-                }
-            }
-        }
+        mSession.setTagData(data);
+        mTextBoxData.setText(mSession.getDataText());
     }
 
     public void setKeys(MifareKeyChain keys) {
-        mKeyChain = keys;
-
-        mTextBoxKeys.setText("");
-        if (mKeyChain != null) {
-            for (int sector = 0; sector < keys.getSectorCount(); ++sector) {
-                mTextBoxKeys.append("Sector " + (sector < 10 ? ("0" + sector) : sector) + ": "
-                        + DataFormater.bytesToString(keys.getKeyA(sector)) + " | "
-                        + DataFormater.bytesToString(keys.getKeyB(sector)) + "\n");
-            }
-        }
+        mSession.setKeyChain(keys);
+        mTextBoxKeys.setText(mSession.getKeysText());
     }
 
-    public void readTag(MifareClassic tag) {
-        mReadTagTask = new ReadTagTask(this, mKeyChain);
-        Log.i(LOGTAG, "Starting keys thread");
+    public MifareKeyChain getKeys() {
+        return mSession.getKeyChain();
+    }
+
+    public SessionState getSession() {
+        return mSession;
+    }
 
-        mReadTagTask.execute(tag);
+    public void readTag(MifareTag tag) {
+        ReadTagTask task = new ReadTagTask(this, mSession.getKeyChain());
+        mSession.setReadTagTask(task);
+        Log.i(LOGTAG, "Starting read thread");
+        task.execute(tag);
     }
 
-    private void findKeys(MifareClassic tag) {
-        mKeysTask = new FindKeysTask(this);
+    private void findKeys(MifareTag tag) {
+        FindKeysTask task = new FindKeysTask(this);
+        mSession.setKeysTask(task);
         Log.i(LOGTAG, "Starting keys thread");
-        mKeysTask.execute(tag);
+        task.execute(tag);
     }
 
-    public byte[][] getDefaultKeys() {
-        ArrayList<byte[]> keys = new ArrayList<byte[]>();
-        keys.add(MifareClassic.KEY_DEFAULT);
-        keys.add(MifareClassic.KEY_MIFARE_APPLICATION_DIRECTORY);
-        keys.add(MifareClassic.KEY_NFC_FORUM);
+    /**
+     * Load keys from the "current" key file. The keys are set when the read
+     * completes.
+     *
+     * @param notify
+     *            Show the result to the user.
+     */
+    private void loadKeys(final boolean notify) {
+        final SessionState session = mSession;
+        session.getPersistenceQueue().read(CURRENT_KEY_FILE, new PersistenceQueue.ReadCallback() {
+            public void onReadComplete(File file, byte[] data, IOException error) {
+                MifareKeyChain keyChain = null;
+                try {
+                    if (data != null)
+                        keyChain = MifareKeyChain.fromByteArray(data);
+                } catch (IOException e) {
+                    Log.e(LOGTAG, "Error loading keys: " + e);
+                }
 
-        try {
-            final String KEY_TAG = "key";
-            Resources res = getResources();
-            XmlResourceParser xpp = res.getXml(R.xml.mifare_default_keys);
-            int eventType;
-            eventType = xpp.next();
-            while (eventType != XmlPullParser.END_DOCUMENT) {
-                if (eventType == XmlPullParser.START_TAG && xpp.getName().equals(KEY_TAG)) {
-                    eventType = xpp.next();
-                    if (eventType == XmlPullParser.TEXT) {
-                        String keyStr = xpp.getText();
-                        Log.i(LOGTAG, "Read key from resource: " + keyStr);
-                        byte[] key = DataFormater.fromHexString(keyStr);
-                        keys.add(key);
-                    }
-                } else {
-                    eventType = xpp.next();
+                // Don't replace keys found while the startup load was running
+                SLURPActivity activity = session.getActivity();
+                if (keyChain != null && (notify || session.getKeyChain() == null)) {
+                    if (activity != null)
+                        activity.setKeys(keyChain);
+                    else
+                        session.setKeyChain(keyChain);
                 }
-            }
-        } catch (XmlPullParserException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
 
-        byte[][] keysArray = new byte[keys.size()][];
-        return keys.toArray(keysArray);
+                if (notify && activity != null)
+                    Toast.makeText(activity, keyChain != null ? "Keys Loaded" : "Load Failed",
+                            Toast.LENGTH_SHORT).show();
+
+                if (!session.isKeysLoaded()) {
+                    session.setKeysLoaded();
+                    if (activity != null)
+                        activity.processPendingTag();
+                }
+            }
+        });
     }
 
-    private boolean loadKeys() {
-        // Try to load keys from the "current" key file.
-        File keyFile = new File(getExternalFilesDir(null), CURRENT_KEY_FILE);
-        try {
-            if (!keyFile.exists())
-                return false;
+    /**
+     * Load the negative key cache. Searches started before the load completes
+     * just skip fewer keys.
+     */
+    private void loadRejectedKeys() {
+        final NegativeKeyCache cache = mSession.getRejectedKeys();
+        mSession.getPersistenceQueue().read(REJECTED_KEYS_FILE, new PersistenceQueue.ReadCallback() {
+            public void onReadComplete(File file, byte[] data, IOException error) {
+                if (data == null)
+                    return;
+
+                try {
+                    cache.load(data);
+                    Log.i(LOGTAG, "Loaded " + cache.size() + " rejected keys");
+                } catch (IOException e) {
+                    Log.e(LOGTAG, "Error loading rejected keys: " + e);
+                }
+            }
+        });
+    }
 
-            setKeys(MifareKeyChain.LoadKeys(keyFile));
-        } catch (IOException e) {
-            Log.e(LOGTAG, "Error loading keys: " + e);
-            return false;
-        }
+    /**
+     * Queue the negative key cache to be saved, if it has changed.
+     */
+    void saveRejectedKeys() {
+        NegativeKeyCache cache = mSession.getRejectedKeys();
+        if (!cache.isDirty())
+            return;
 
-        return true;
+        mSession.getPersistenceQueue().write(REJECTED_KEYS_FILE, cache.toByteArray(), null);
     }
 
+    /**
+     * Queue the keys to be saved to the "current" key file.
+     *
+     * @return false if the keys can't be saved.
+     */
     private boolean saveKeys() {
-        if (mKeyChain == null)
+        if (mSession.getKeyChain() == null)
             return false;
 
-        File keyFile = new File(getExternalFilesDir(null), CURRENT_KEY_FILE);
+        byte[] data;
         try {
-            mKeyChain.storeKeys(keyFile);
+            data = mSession.getKeyChain().toByteArray();
         } catch (IOException e) {
-            Log.e(LOGTAG, "Error loading keys: " + e);
+            Log.e(LOGTAG, "Error saving keys: " + e);
             return false;
         }
 
+        mSession.getPersistenceQueue().write(CURRENT_KEY_FILE, data, new ToastWriteCallback(mSession, "Keys Saved"));
+
         return true;
     }
 
+    /**
+     * Queue the tag data to be saved to the dump store.
+     *
+     * @return false if the data can't be saved.
+     */
     private boolean saveData() {
-        if (!mTagData.isDataComplete())
+        TagData tagData = mSession.getTagData();
+        if (!tagData.isDataComplete())
             return false;
 
-        try {
-            mTagData.saveData(getExternalFilesDir(null));
-        } catch (IOException e) {
-            Log.e(LOGTAG, "Error saving data: " + e);
-            return false;
-        }
+        String name = tagData.getDumpFileName();
+        Log.i(LOGTAG, "Saving data to: " + name);
+
+        final SessionState session = mSession;
+        final byte[] dump = tagData.toDumpBytes();
+        session.getPersistenceQueue().write(name, dump,
+                new ToastWriteCallback(session, "Data Saved") {
+                    @Override
+                    public void onWriteComplete(File file, IOException error) {
+                        super.onWriteComplete(file, error);
+
+                        // Make the keys of the new dump part of the dictionary,
+                        // and the data searchable
+                        if (error == null) {
+                            session.addDumpKeys(dump);
+                            session.indexDump(file);
+                        }
+                    }
+                });
 
         return true;
     }
 
+    /**
+     * Ask for a hex pattern and list the saved dumps that contain it.
+     */
+    private void showSearchDialog() {
+        final EditText input = new EditText(this);
+        input.setHint("Hex bytes, e.g. 0a 1b 2c");
+
+        final SessionState session = mSession;
+        new AlertDialog.Builder(this).setTitle("Search Dumps").setView(input)
+                .setPositiveButton("Search", new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        byte[] pattern;
+                        try {
+                            pattern = DataFormater.fromHexString(input.getText().toString().replace(" ", ""));
+                        } catch (IllegalArgumentException e) {
+                            pattern = new byte[0];
+                        }
+
+                        SLURPActivity activity = session.getActivity();
+                        if (pattern.length == 0) {
+                            if (activity != null)
+                                Toast.makeText(activity, "Invalid pattern", Toast.LENGTH_SHORT).show();
+                            return;
+                        }
+
+                        session.searchDumps(pattern, new SessionState.SearchCallback() {
+                            public void onSearchComplete(byte[] pattern, DumpIndex.Result result) {
+                                SLURPActivity activity = session.getActivity();
+                                if (activity != null)
+                                    activity.showSearchResult(pattern, result);
+                            }
+                        });
+                    }
+                }).setNegativeButton("Cancel", null).show();
+    }
+
+    private void showSearchResult(byte[] pattern, DumpIndex.Result result) {
+        List<DumpIndex.Match> matches = result.getMatches();
+        if (matches.isEmpty() && result.isComplete()) {
+            Toast.makeText(this, "No Matches", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        StringBuilder sb = new StringBuilder();
+        for (DumpIndex.Match match : matches) {
+            sb.append(match.getUid());
+            if (match.getTimestamp() >= 0)
+                sb.append("  ").append(sdf.format(new Date(match.getTimestamp())));
+            sb.append("  block ").append(match.getBlock()).append("\n");
+        }
+        if (!result.isComplete())
+            sb.append("Only the newest ").append(result.getVerifiedCount()).append(" of ")
+                    .append(result.getCandidateCount()).append(" candidate dumps were searched\n");
+
+        new AlertDialog.Builder(this).setTitle(DataFormater.bytesToString(pattern) + ": " + matches.size())
+                .setMessage(sb).setPositiveButton("OK", null).show();
+    }
+
+    /**
+     * Queue the trace of a tag to be saved, if it was recorded.
+     *
+     * @param tag
+     *            The tag the task operated on.
+     */
+    void saveTrace(MifareTag tag) {
+        if (!(tag instanceof TraceRecorder))
+            return;
+
+        String name = DataFormater.bytesToString(tag.getUid()).replace(" ", "") + "."
+                + new SimpleDateFormat(DumpStore.DATE_FORMAT).format(new Date()) + TraceRecorder.TRACE_SUFFIX;
+        Log.i(LOGTAG, "Saving trace to: " + name);
+
+        mSession.getPersistenceQueue().write(name, ((TraceRecorder) tag).toByteArray(),
+                new ToastWriteCallback(mSession, "Trace Saved"));
+    }
+
+    /**
+     * Reports the result of a write to whatever activity is attached to the
+     * session when the write completes.
+     */
+    private static class ToastWriteCallback implements PersistenceQueue.WriteCallback {
+        private final SessionState mSession;
+        private final String mSuccessMessage;
+
+        ToastWriteCallback(SessionState session, String successMessage) {
+            mSession = session;
+            mSuccessMessage = successMessage;
+        }
+
+        public void onWriteComplete(File file, IOException error) {
+            SLURPActivity activity = mSession.getActivity();
+            if (activity != null)
+                Toast.makeText(activity, error == null ? mSuccessMessage : "Save Failed", Toast.LENGTH_SHORT).show();
+        }
+    }
+
     void resolveIntent(Intent intent) {
         Log.i(LOGTAG, "resolveIntent action=" + intent.getAction());
 
@@ -323,27 +506,45 @@ public class SLURPActivity extends Activity {
     }
 
     private void tagDetected(Tag tag) {
-        MifareClassic mifareTag = MifareClassic.get(tag);
-        if (mifareTag == null) {
+        MifareClassic mifareClassic = MifareClassic.get(tag);
+        if (mifareClassic == null) {
             Log.i(LOGTAG, "Unknown tag type found (not MifareClassic)");
             return;
         }
-        Log.i(LOGTAG, "Found MifareClassic Tag. Sector Count: " + mifareTag.getSectorCount());
+        Log.i(LOGTAG, "Found MifareClassic Tag. Sector Count: " + mifareClassic.getSectorCount());
+        mSession.getMetrics().mark(SessionMetrics.Event.TAG_DETECTED);
 
-        if (mKeyChain == null || mKeyChain.getSectorCount() != mifareTag.getSectorCount()) {
+        MifareTag mifareTag = new NfcMifareTag(mifareClassic);
+        if (mSession.isRecordTraces())
+            mifareTag = new TraceRecorder(mifareTag);
+
+        if (!mSession.isKeysLoaded()) {
+            Log.i(LOGTAG, "Keys are still loading, holding tag");
+            mSession.setPendingTag(mifareTag);
+            return;
+        }
+
+        startTagTask(mifareTag);
+    }
+
+    /**
+     * Handle a tag that was detected before the keys were loaded.
+     */
+    void processPendingTag() {
+        MifareTag tag = mSession.takePendingTag();
+        if (tag != null)
+            startTagTask(tag);
+    }
+
+    private void startTagTask(MifareTag mifareTag) {
+        MifareKeyChain keyChain = mSession.getKeyChain();
+        if (keyChain == null || keyChain.getSectorCount() != mifareTag.getSectorCount()) {
             Log.i(LOGTAG, "Keys is null, will start search");
-            mKeyChain = null;
+            setKeys(null);
             findKeys(mifareTag);
         } else {
             Log.i(LOGTAG, "Keys are pressent, will try to read data");
             readTag(mifareTag);
         }
     }
-
-    static public int getBlockIndex(MifareClassic tag, int sector, int relBlock) {
-        int blockOffset = 0;
-        for (int i = 0; i < sector; ++i)
-            blockOffset += tag.getBlockCountInSector(i);
-        return blockOffset + relBlock;
-    }
 }
@@ -0,0 +1,164 @@
+/**
+ * Copyright (c) 2011 Anders Sundman <anders@4zm.org>
+ *
+ * This file is part of SLURP.
+ *
+ * SLURP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SLURP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with SLURP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sparvnastet.slurp;
+
+import java.util.Arrays;
+
+import android.util.Log;
+
+/**
+ * Timing of the startup of a session, from the creation of the first activity
+ * to the first successful authentication with a tag, and of the attempts of
+ * the last key search.
+ *
+ * Events may be recorded from any thread. Only the first occurrence of each
+ * event is kept. The summary is logged when the first authentication happens.
+ */
+public class SessionMetrics {
+    public enum Event {
+        UI_SHOWN, KEYS_LOADED, DICTIONARY_READY, TAG_DETECTED, FIRST_AUTH
+    };
+
+    private final long mStart = System.nanoTime();
+    private final long[] mEvents = new long[Event.values().length];
+
+    // The attempts of the last key search, in order
+    private final static int MAX_ATTEMPTS = 4096;
+    private final static int SUMMARY_ATTEMPTS = 32;
+    private long[] mAttempts = new long[64];
+    private long[] mAttemptNanos = new long[64];
+    private boolean[] mAttemptFound = new boolean[64];
+    private int mAttemptCount;
+
+    /**
+     * Record an event, if it hasn't already been recorded.
+     *
+     * @param event
+     */
+    public synchronized void mark(Event event) {
+        if (mEvents[event.ordinal()] != 0)
+            return;
+
+        mEvents[event.ordinal()] = System.nanoTime();
+
+        if (event == Event.FIRST_AUTH)
+            Log.i(SLURPActivity.LOGTAG, "Startup: " + toString());
+    }
+
+    /**
+     * @return Milliseconds from the start of the session to the event, -1 if
+     *         it hasn't happened.
+     */
+    public synchronized long getMillis(Event event) {
+        long time = mEvents[event.ordinal()];
+        return time == 0 ? -1 : (time - mStart) / 1000000;
+    }
+
+    /**
+     * Forget the attempts of the previous search.
+     */
+    public synchronized void clearAttempts() {
+        mAttemptCount = 0;
+    }
+
+    /**
+     * Record an authentication attempt. Only the first MAX_ATTEMPTS attempts
+     * of a search are kept.
+     *
+     * @param attempt
+     *            See KeySearch.attempt.
+     * @param found
+     * @param nanos
+     */
+    public synchronized void addAttempt(long attempt, boolean found, long nanos) {
+        int n = mAttemptCount;
+        if (n == MAX_ATTEMPTS)
+            return;
+
+        if (n == mAttempts.length) {
+            mAttempts = Arrays.copyOf(mAttempts, 2 * n);
+            mAttemptNanos = Arrays.copyOf(mAttemptNanos, 2 * n);
+            mAttemptFound = Arrays.copyOf(mAttemptFound, 2 * n);
+        }
+
+        mAttempts[n] = attempt;
+        mAttemptNanos[n] = nanos;
+        mAttemptFound[n] = found;
+        mAttemptCount = n + 1;
+    }
+
+    public synchronized int getAttemptCount() {
+        return mAttemptCount;
+    }
+
+    public synchronized long getAttempt(int index) {
+        return mAttempts[index];
+    }
+
+    public synchronized long getAttemptNanos(int index) {
+        return mAttemptNanos[index];
+    }
+
+    public synchronized boolean isAttemptFound(int index) {
+        return mAttemptFound[index];
+    }
+
+    /**
+     * @return Number and timing of the attempts of the last search, and the
+     *         order of the first attempts (sector, key type, * if found).
+     */
+    public synchronized String getAttemptSummary() {
+        int failed = 0;
+        long foundNanos = 0, failedNanos = 0;
+        StringBuilder order = new StringBuilder();
+        for (int i = 0; i < mAttemptCount; ++i) {
+            if (mAttemptFound[i]) {
+                foundNanos += mAttemptNanos[i];
+            } else {
+                ++failed;
+                failedNanos += mAttemptNanos[i];
+            }
+
+            if (i < SUMMARY_ATTEMPTS) {
+                order.append(' ').append(KeySearch.getSector(mAttempts[i]));
+                order.append(KeySearch.isKeyB(mAttempts[i]) ? 'B' : 'A');
+                if (mAttemptFound[i])
+                    order.append('*');
+            }
+        }
+
+        int found = mAttemptCount - failed;
+        return mAttemptCount + " attempts, " + failed + " failed, " + (foundNanos + failedNanos) / 1000000
+                + " ms (found " + (found == 0 ? 0 : foundNanos / found / 1000) + " us, failed "
+                + (failed == 0 ? 0 : failedNanos / failed / 1000) + " us each). Order:" + order
+                + (mAttemptCount > SUMMARY_ATTEMPTS ? " ..." : "");
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Event event : Event.values()) {
+            if (sb.length() > 0)
+                sb.append(", ");
+            sb.append(event).append(": ").append(getMillis(event)).append(" ms");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,383 @@
+/**
+ * Copyright (c) 2011 Anders Sundman <anders@4zm.org>
+ *
+ * This file is part of SLURP.
+ *
+ * SLURP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SLURP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with SLURP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sparvnastet.slurp;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * The state of a scan session.
+ *
+ * The activity is destroyed and recreated on configuration changes. The
+ * session outlives it: it's handed over to the new activity instance as the
+ * non-configuration instance, together with the running tasks and the already
+ * rendered text of the keys and data views. Nothing has to be rendered again
+ * and running searches continue in the background. The session doesn't
+ * survive the process being killed, the keys and the tag data are still
+ * parcelled in the instance state for that.
+ */
+public class SessionState {
+    private final static String DUMP_INDEX_FILE = "dumps.index";
+
+    /**
+     * Max number of dumps a search reads to verify the candidates.
+     */
+    public final static int MAX_VERIFIED_DUMPS = 200;
+
+    /**
+     * Called on the main thread with the result of searchDumps.
+     */
+    public interface SearchCallback {
+        void onSearchComplete(byte[] pattern, DumpIndex.Result result);
+    }
+
+    private SLURPActivity mActivity;
+
+    private MifareKeyChain mKeyChain;
+    private CharSequence mKeysText = "";
+
+    private TagData mTagData;
+    private CharSequence mDataText = "";
+
+    private FindKeysTask mKeysTask;
+    private ReadTagTask mReadTagTask;
+
+    private final PersistenceQueue mPersistenceQueue;
+    private final SessionMetrics mMetrics = new SessionMetrics();
+    private final NegativeKeyCache mRejectedKeys = new NegativeKeyCache();
+    private final DumpIndex mDumpIndex = new DumpIndex();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // Background preparation of the search dictionary
+    private final ThreadPoolExecutor mExecutor;
+    private Future<KeyDictionary> mDictionary;
+
+    // The dump index has its own worker, so it never delays the dictionary.
+    // The index file is only used on that worker.
+    private final ThreadPoolExecutor mIndexExecutor;
+    private File mDumpIndexFile;
+
+    // A tag detected before the startup load of the keys completed
+    private boolean mKeysLoaded;
+    private MifareTag mPendingTag;
+    private boolean mRecordTraces;
+
+    /**
+     * @param context
+     *            Should be the application context, the session outlives
+     *            the activity.
+     */
+    public SessionState(Context context) {
+        mPersistenceQueue = new PersistenceQueue(context);
+        mExecutor = new ThreadPoolExecutor(1, 1, 5, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        mExecutor.allowCoreThreadTimeOut(true);
+        mIndexExecutor = new ThreadPoolExecutor(1, 1, 5, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        mIndexExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Attach an activity to the session. Running tasks reattach their progress
+     * dialogs and deliver results that arrived while no activity was attached.
+     *
+     * @param activity
+     */
+    public void attach(SLURPActivity activity) {
+        assert (activity != null);
+        mActivity = activity;
+
+        if (mKeysTask != null)
+            mKeysTask.attach(activity);
+        if (mReadTagTask != null)
+            mReadTagTask.attach(activity);
+    }
+
+    /**
+     * Detach the activity, e.g. because it's about to be destroyed. Tasks keep
+     * running but won't touch the UI until an activity is attached again.
+     */
+    public void detach() {
+        if (mKeysTask != null)
+            mKeysTask.detach();
+        if (mReadTagTask != null)
+            mReadTagTask.detach();
+
+        mActivity = null;
+    }
+
+    /**
+     * @return The attached activity, null if none is attached.
+     */
+    public SLURPActivity getActivity() {
+        return mActivity;
+    }
+
+    public PersistenceQueue getPersistenceQueue() {
+        return mPersistenceQueue;
+    }
+
+    public SessionMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    public NegativeKeyCache getRejectedKeys() {
+        return mRejectedKeys;
+    }
+
+    /**
+     * Start compiling the search dictionary in the background. Replaces the
+     * current dictionary, searches that already got it keep using it.
+     *
+     * @param loader
+     */
+    public void prepareDictionary(DictionaryLoader loader) {
+        FutureTask<KeyDictionary> task = new FutureTask<KeyDictionary>(loader) {
+            @Override
+            protected void done() {
+                mMetrics.mark(SessionMetrics.Event.DICTIONARY_READY);
+            }
+        };
+        mDictionary = task;
+        mExecutor.execute(task);
+    }
+
+    /**
+     * Add the keys of a newly saved dump to the dictionary, in the background.
+     * Only the dump is harvested, after the current dictionary is ready.
+     *
+     * @param dump
+     *            The saved dump, must not be modified.
+     */
+    public void addDumpKeys(final byte[] dump) {
+        final Future<KeyDictionary> previous = getDictionary();
+        FutureTask<KeyDictionary> task = new FutureTask<KeyDictionary>(new Callable<KeyDictionary>() {
+            public KeyDictionary call() throws Exception {
+                // Queued before this task on the single worker, so it's done
+                KeyDictionary dictionary = previous.get();
+
+                KeyHarvester harvester = new KeyHarvester();
+                LongKeySet keys = new LongKeySet();
+                harvester.harvest(dump, dump.length, keys);
+                return dictionary.withHarvested(keys, harvester.getFamilyKeys());
+            }
+        });
+        mDictionary = task;
+        mExecutor.execute(task);
+    }
+
+    /**
+     * Load the saved dump index and add the dumps saved since, in the
+     * background.
+     *
+     * @param context
+     *            Should be the application context.
+     */
+    public void prepareDumpIndex(final Context context) {
+        mIndexExecutor.execute(new Runnable() {
+            public void run() {
+                // Null if the external storage isn't available
+                File dumpDirectory = context.getExternalFilesDir(null);
+                if (dumpDirectory == null)
+                    return;
+
+                long start = System.nanoTime();
+                DumpStore store = new DumpStore(dumpDirectory);
+                mDumpIndexFile = new File(context.getCacheDir(), DUMP_INDEX_FILE);
+                if (mDumpIndexFile.exists()) {
+                    try {
+                        mDumpIndex.load(mDumpIndexFile, store);
+                    } catch (IOException e) {
+                        Log.e(SLURPActivity.LOGTAG, "Error loading dump index: " + e);
+                    }
+                }
+
+                int removed = mDumpIndex.removeMissing();
+                int added = mDumpIndex.addAll(store);
+                writeDumpIndex();
+                Log.i(SLURPActivity.LOGTAG, "Indexed " + added + " new dumps, dropped " + removed + " deleted, "
+                        + mDumpIndex.size() + " in total, "
+                        + mDumpIndex.getPostingBytes() / 1024 + " KB (" + (System.nanoTime() - start) / 1000000
+                        + " ms)");
+            }
+        });
+    }
+
+    /**
+     * Add a newly saved dump to the index, in the background. The index file
+     * isn't written until saveDumpIndex, rewriting it for every dump would
+     * cost more than indexing it.
+     *
+     * @param dump
+     */
+    public void indexDump(final File dump) {
+        mIndexExecutor.execute(new Runnable() {
+            public void run() {
+                mDumpIndex.add(dump);
+            }
+        });
+    }
+
+    /**
+     * Save the dump index if it has changed, in the background. Called when
+     * the activity is paused.
+     */
+    public void saveDumpIndex() {
+        mIndexExecutor.execute(new Runnable() {
+            public void run() {
+                writeDumpIndex();
+            }
+        });
+    }
+
+    /**
+     * Write the dump index if it has changed. Runs on the index worker.
+     */
+    private void writeDumpIndex() {
+        if (mDumpIndexFile == null || !mDumpIndex.isDirty())
+            return;
+
+        try {
+            mDumpIndex.save(mDumpIndexFile);
+        } catch (IOException e) {
+            Log.e(SLURPActivity.LOGTAG, "Error saving dump index: " + e);
+        }
+    }
+
+    /**
+     * Search the indexed dumps in the background.
+     *
+     * @param pattern
+     * @param callback
+     */
+    public void searchDumps(final byte[] pattern, final SearchCallback callback) {
+        mIndexExecutor.execute(new Runnable() {
+            public void run() {
+                long start = System.nanoTime();
+                final DumpIndex.Result result = mDumpIndex.search(pattern, MAX_VERIFIED_DUMPS);
+                Log.i(SLURPActivity.LOGTAG, "Searched " + mDumpIndex.size() + " dumps, "
+                        + result.getCandidateCount() + " candidates, " + result.getVerifiedCount() + " read, "
+                        + result.getMatches().size() + " matches (" + (System.nanoTime() - start) / 1000 + " us)");
+
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        callback.onSearchComplete(pattern, result);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @return The search dictionary, possibly still being compiled.
+     */
+    public Future<KeyDictionary> getDictionary() {
+        assert (mDictionary != null);
+        return mDictionary;
+    }
+
+    public boolean isKeysLoaded() {
+        return mKeysLoaded;
+    }
+
+    public void setKeysLoaded() {
+        mKeysLoaded = true;
+        mMetrics.mark(SessionMetrics.Event.KEYS_LOADED);
+    }
+
+    public void setPendingTag(MifareTag tag) {
+        mPendingTag = tag;
+    }
+
+    /**
+     * @return The pending tag, null if there is none. The pending tag is
+     *         cleared.
+     */
+    public MifareTag takePendingTag() {
+        MifareTag tag = mPendingTag;
+        mPendingTag = null;
+        return tag;
+    }
+
+    /**
+     * @return true if the operations on detected tags should be recorded, see
+     *         TraceRecorder.
+     */
+    public boolean isRecordTraces() {
+        return mRecordTraces;
+    }
+
+    public void setRecordTraces(boolean recordTraces) {
+        mRecordTraces = recordTraces;
+    }
+
+    public MifareKeyChain getKeyChain() {
+        return mKeyChain;
+    }
+
+    public CharSequence getKeysText() {
+        return mKeysText;
+    }
+
+    public void setKeyChain(MifareKeyChain keyChain) {
+        mKeyChain = keyChain;
+        mKeysText = keyChain == null ? "" : DataFormater.keyChainToString(keyChain);
+    }
+
+    public TagData getTagData() {
+        return mTagData;
+    }
+
+    public CharSequence getDataText() {
+        return mDataText;
+    }
+
+    public void setTagData(TagData tagData) {
+        mTagData = tagData;
+        mDataText = tagData == null ? "" : DataFormater.tagDataToString(tagData);
+    }
+
+    public void setKeysTask(FindKeysTask task) {
+        mKeysTask = task;
+    }
+
+    public void setReadTagTask(ReadTagTask task) {
+        mReadTagTask = task;
+    }
+
+    /**
+     * Called by the tasks when their result has been delivered.
+     */
+    void onTaskFinished(Object task) {
+        if (task == mKeysTask)
+            mKeysTask = null;
+        if (task == mReadTagTask)
+            mReadTagTask = null;
+    }
+}
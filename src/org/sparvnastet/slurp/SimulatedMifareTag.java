@@ -0,0 +1,482 @@
+/**
+ * Copyright (c) 2011 Anders Sundman <anders@4zm.org>
+ *
+ * This file is part of SLURP.
+ *
+ * SLURP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SLURP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with SLURP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sparvnastet.slurp;
+
+import java.io.IOException;
+
+/**
+ * A simulated MifareClassic tag, for benchmarking the key search on a desktop
+ * JVM.
+ *
+ * Authentication runs the real three pass protocol with Crypto1 on both the
+ * reader and the tag side: the tag sends its nonce nt, the reader answers with
+ * its encrypted nonce nr and ar = suc64(nt), and the tag, if ar decrypts
+ * correctly, answers with at = suc96(nt). With a wrong key the tag doesn't
+ * answer and halts, and the next authentication first has to reselect it.
+ * Reads are encrypted commands and responses with CRC. Parity bits, which are
+ * encrypted too on a real tag, and the encrypted nonce of nested
+ * authentications aren't modelled.
+ *
+ * Blocks can only be read in the authenticated sector, and Key A (and Key B
+ * unless the access conditions allow it) reads as zeros. No time is spent,
+ * the time of the frames on the air, the frame delays, the overhead of every
+ * exchange on the host and the timeout of a missing answer are accumulated
+ * instead.
+ */
+public class SimulatedMifareTag implements MifareTag {
+    /**
+     * Host and driver overhead of one command and answer.
+     */
+    public final static long DEFAULT_EXCHANGE_NANOS = 1500000L;
+
+    /**
+     * How long the reader waits for an answer that doesn't come.
+     */
+    public final static long DEFAULT_TIMEOUT_NANOS = 5000000L;
+
+    // One bit at 106 kbit/s is 128 carrier cycles of 13.56 MHz, every byte
+    // has a parity bit
+    private final static long BIT_NANOS = 9440L;
+    private final static long BYTE_NANOS = 9 * BIT_NANOS;
+    private final static long FRAME_DELAY_NANOS = 86000L;
+
+    private final static int CMD_READ = 0x30;
+    private final static int CRC_SIZE = 2;
+
+    private final static int[] KEY_B_READABLE = { 0, 0, 0, 1 }; // Transport configuration
+    private final static int[] KEY_B_SECRET = { 0, 0, 0, 3 };
+
+    private final byte[] mUid;
+    private final int mSak;
+    private final byte[] mAtqa;
+    private final int mSectorCount;
+    private final long[] mKeys; // [Sector 0 A key] [Sector 0 B key] ...
+    private final byte[][] mBlocks;
+    private final int mUidWord;
+
+    // Reused for every authentication and read
+    private final Crypto1 mReader = new Crypto1();
+    private final Crypto1 mCard = new Crypto1();
+    private final byte[] mFrame = new byte[DumpStore.BLOCK_SIZE + CRC_SIZE];
+    private int mTagNonce;
+    private long mTagNonceNanos;
+    private int mReaderNonce;
+
+    private long mExchangeNanos = DEFAULT_EXCHANGE_NANOS;
+    private long mTimeoutNanos = DEFAULT_TIMEOUT_NANOS;
+
+    private boolean mConnected;
+    private boolean mHalted;
+    private int mAuthSector = -1;
+
+    private int mAuthCount;
+    private int mFailedAuthCount;
+    private int mReselectCount;
+    private int mReadCount;
+    private long mNanos;
+
+    /**
+     * @param uid
+     *            A 4 byte UID.
+     * @param sak
+     * @param atqa
+     * @param keysA
+     *            Key A of every sector, also decides the number of sectors.
+     * @param keysB
+     * @param keyBReadable
+     *            If the access conditions allow Key B to be read with Key A.
+     */
+    public SimulatedMifareTag(byte[] uid, int sak, byte[] atqa, long[] keysA, long[] keysB, boolean keyBReadable) {
+        this(uid, sak, atqa, keysA.length, newBlocks(uid, sak, atqa, keysA, keysB, keyBReadable));
+        assert (keysA.length == keysB.length);
+    }
+
+    /**
+     * @param blocks
+     *            The content of every block, the keys and the access
+     *            conditions of a sector are those in its trailer. Not copied.
+     */
+    private SimulatedMifareTag(byte[] uid, int sak, byte[] atqa, int sectorCount, byte[][] blocks) {
+        assert (uid.length == 4 && atqa.length == 2);
+        assert (sectorCount > 0 && sectorCount <= DumpStore.MAX_SECTORS);
+        mUid = uid.clone();
+        mSak = sak;
+        mAtqa = atqa.clone();
+        mSectorCount = sectorCount;
+        mUidWord = (uid[0] & 0xff) << 24 | (uid[1] & 0xff) << 16 | (uid[2] & 0xff) << 8 | (uid[3] & 0xff);
+        mBlocks = blocks;
+
+        mKeys = new long[2 * sectorCount];
+        for (int i = 0; i < sectorCount; ++i) {
+            byte[] trailer = blocks[getTrailerBlock(i)];
+            mKeys[2 * i] = MifareKeyChain.packKey(trailer, MifareKeyChain.TRAILER_KEY_A_OFFSET);
+            mKeys[2 * i + 1] = MifareKeyChain.packKey(trailer, MifareKeyChain.TRAILER_KEY_B_OFFSET);
+        }
+
+        reset();
+    }
+
+    /**
+     * @return Blocks of zeros, except for block 0 and the sector trailers.
+     */
+    private static byte[][] newBlocks(byte[] uid, int sak, byte[] atqa, long[] keysA, long[] keysB,
+            boolean keyBReadable) {
+        int sectorCount = keysA.length;
+        int blockCount = DumpStore.getFirstBlock(sectorCount - 1) + DumpStore.getBlockCountInSector(sectorCount - 1);
+        byte[][] blocks = new byte[blockCount][DumpStore.BLOCK_SIZE];
+
+        System.arraycopy(uid, 0, blocks[0], 0, 4);
+        blocks[0][4] = (byte) (uid[0] ^ uid[1] ^ uid[2] ^ uid[3]);
+        blocks[0][5] = (byte) sak;
+        blocks[0][6] = atqa[0];
+        blocks[0][7] = atqa[1];
+
+        for (int i = 0; i < sectorCount; ++i) {
+            byte[] trailer = blocks[getTrailerBlock(i)];
+            MifareKeyChain.unpackKey(keysA[i], trailer, MifareKeyChain.TRAILER_KEY_A_OFFSET);
+            MifareKeyChain.unpackKey(keysB[i], trailer, MifareKeyChain.TRAILER_KEY_B_OFFSET);
+            AccessBits.setConditions(trailer, 0, keyBReadable ? KEY_B_READABLE : KEY_B_SECRET);
+        }
+        return blocks;
+    }
+
+    /**
+     * Create a tag from a saved dump. The sector count, SAK and ATQA come from
+     * the card family of the dump, the blocks, and so the keys and the access
+     * conditions of every sector, are those of the dump.
+     *
+     * @return The tag, null if the dump doesn't have a valid block 0, is too
+     *         short or a sector trailer is invalid.
+     */
+    public static SimulatedMifareTag fromDump(byte[] dump, int length) {
+        int family = CardFamily.fromDump(dump, length);
+        if (family == CardFamily.UNKNOWN)
+            return null;
+
+        int sectorCount = CardFamily.getSectorCount(family);
+        int blockCount = DumpStore.getFirstBlock(sectorCount - 1) + DumpStore.getBlockCountInSector(sectorCount - 1);
+        if (blockCount * DumpStore.BLOCK_SIZE > length)
+            return null;
+
+        for (int i = 0; i < sectorCount; ++i) {
+            if (!AccessBits.isValid(dump, DumpStore.getTrailerOffset(i)))
+                return null;
+        }
+
+        byte[][] blocks = new byte[blockCount][DumpStore.BLOCK_SIZE];
+        for (int i = 0; i < blockCount; ++i)
+            System.arraycopy(dump, i * DumpStore.BLOCK_SIZE, blocks[i], 0, DumpStore.BLOCK_SIZE);
+
+        byte[] uid = new byte[4];
+        System.arraycopy(dump, 0, uid, 0, 4);
+        return new SimulatedMifareTag(uid, CardFamily.getSak(family), CardFamily.getAtqa(family), sectorCount, blocks);
+    }
+
+    /**
+     * Set the timing of the reader.
+     *
+     * @param exchangeNanos
+     *            Host overhead of every command and answer.
+     * @param timeoutNanos
+     *            How long the reader waits for a missing answer.
+     */
+    public void setTiming(long exchangeNanos, long timeoutNanos) {
+        mExchangeNanos = exchangeNanos;
+        mTimeoutNanos = timeoutNanos;
+    }
+
+    /**
+     * @return Modelled time of a successful authentication.
+     */
+    public long getAuthNanos() {
+        return exchange(4, 4) + exchange(8, 4);
+    }
+
+    /**
+     * @return Modelled time of a failed authentication.
+     */
+    public long getFailedAuthNanos() {
+        return exchange(4, 4) + mExchangeNanos + 8 * BYTE_NANOS + mTimeoutNanos;
+    }
+
+    /**
+     * @return Modelled time of a reselect: REQA, anticollision and select.
+     */
+    public long getReselectNanos() {
+        return exchange(1, 2) + exchange(2, 5) + exchange(9, 3);
+    }
+
+    /**
+     * @return Modelled time of reading a block.
+     */
+    public long getReadNanos() {
+        return exchange(4, DumpStore.BLOCK_SIZE + CRC_SIZE);
+    }
+
+    /**
+     * Clear the counters and the modelled time.
+     */
+    public void reset() {
+        mConnected = false;
+        mHalted = false;
+        mAuthSector = -1;
+        mAuthCount = 0;
+        mFailedAuthCount = 0;
+        mReselectCount = 0;
+        mReadCount = 0;
+        mNanos = 0;
+        mTagNonce = mUidWord | 1;
+        mTagNonceNanos = 0;
+        mReaderNonce = ~mUidWord | 1;
+    }
+
+    public long getKey(int sector, boolean keyB) {
+        return mKeys[2 * sector + (keyB ? 1 : 0)];
+    }
+
+    public int getAuthCount() {
+        return mAuthCount;
+    }
+
+    public int getFailedAuthCount() {
+        return mFailedAuthCount;
+    }
+
+    public int getReselectCount() {
+        return mReselectCount;
+    }
+
+    public int getReadCount() {
+        return mReadCount;
+    }
+
+    /**
+     * @return The time the operations so far would have taken on a real tag.
+     */
+    public long getModelledNanos() {
+        return mNanos;
+    }
+
+    /** MifareTag */
+
+    public byte[] getUid() {
+        return mUid.clone();
+    }
+
+    public int getSak() {
+        return mSak;
+    }
+
+    public byte[] getAtqa() {
+        return mAtqa.clone();
+    }
+
+    public void connect() throws IOException {
+        mConnected = true;
+        mHalted = false;
+        mAuthSector = -1;
+        mNanos += mExchangeNanos + getReselectNanos();
+    }
+
+    public void close() throws IOException {
+        mConnected = false;
+    }
+
+    public int getSectorCount() {
+        return mSectorCount;
+    }
+
+    public int getBlockCountInSector(int sector) {
+        return DumpStore.getBlockCountInSector(sector);
+    }
+
+    public int sectorToBlock(int sector) {
+        return DumpStore.getFirstBlock(sector);
+    }
+
+    public boolean authenticateSectorWithKeyA(int sector, long key) throws IOException {
+        return authenticate(sector, false, key);
+    }
+
+    public boolean authenticateSectorWithKeyB(int sector, long key) throws IOException {
+        return authenticate(sector, true, key);
+    }
+
+    public byte[] readBlock(int block) throws IOException {
+        if (!mConnected)
+            throw new IOException("Not connected");
+
+        ++mReadCount;
+        int sector = getSector(block);
+        if (mHalted || sector != mAuthSector) {
+            // Without a session the tag can't decrypt the command
+            mNanos += mExchangeNanos + 4 * BYTE_NANOS + mTimeoutNanos;
+            mHalted = true;
+            mAuthSector = -1;
+            throw new IOException("Not authenticated");
+        }
+        mNanos += getReadNanos();
+
+        // The reader sends the encrypted command, the tag decrypts it
+        byte[] frame = mFrame;
+        frame[0] = (byte) CMD_READ;
+        frame[1] = (byte) block;
+        setCrc(frame, 2);
+        for (int i = 0; i < 2 + CRC_SIZE; ++i)
+            frame[i] ^= mReader.crypt8(0, false);
+        for (int i = 0; i < 2 + CRC_SIZE; ++i)
+            frame[i] ^= mCard.crypt8(0, false);
+        if (frame[0] != (byte) CMD_READ || frame[1] != (byte) block || !isCrcValid(frame, 2))
+            throw new IOException("Corrupt command");
+
+        // The tag sends the encrypted block, the reader decrypts it
+        System.arraycopy(mBlocks[block], 0, frame, 0, DumpStore.BLOCK_SIZE);
+        setCrc(frame, DumpStore.BLOCK_SIZE);
+        for (int i = 0; i < frame.length; ++i)
+            frame[i] ^= mCard.crypt8(0, false);
+        for (int i = 0; i < frame.length; ++i)
+            frame[i] ^= mReader.crypt8(0, false);
+        if (!isCrcValid(frame, DumpStore.BLOCK_SIZE))
+            throw new IOException("Corrupt answer");
+
+        byte[] data = new byte[DumpStore.BLOCK_SIZE];
+        System.arraycopy(frame, 0, data, 0, data.length);
+        if (block == getTrailerBlock(sector)) {
+            // Key A is never readable, Key B depends on the access conditions
+            for (int i = 0; i < MifareKeyChain.KEY_SIZE; ++i)
+                data[MifareKeyChain.TRAILER_KEY_A_OFFSET + i] = 0;
+            if (!AccessBits.isKeyBReadable(data, 0)) {
+                for (int i = 0; i < MifareKeyChain.KEY_SIZE; ++i)
+                    data[MifareKeyChain.TRAILER_KEY_B_OFFSET + i] = 0;
+            }
+        }
+        return data;
+    }
+
+    private boolean authenticate(int sector, boolean keyB, long key) throws IOException {
+        if (!mConnected)
+            throw new IOException("Not connected");
+
+        if (mHalted) {
+            ++mReselectCount;
+            mNanos += getReselectNanos();
+            mHalted = false;
+        }
+
+        ++mAuthCount;
+        mAuthSector = -1;
+
+        // Pass 1: the reader sends the authentication command, the tag answers
+        // with its nonce
+        int nt = nextTagNonce();
+        mNanos += exchange(4, 4);
+
+        // Pass 2: the reader answers with {nr} and {suc64(nt)}
+        Crypto1 reader = mReader;
+        reader.init(key);
+        reader.crypt32(mUidWord ^ nt, false);
+        int nr = nextReaderNonce();
+        int nrEnc = nr ^ reader.crypt32(nr, false);
+        int arEnc = Crypto1.prngSuccessor(nt, 64) ^ reader.crypt32(0, false);
+
+        // The tag checks ar with the real key, and stays silent if it's wrong
+        Crypto1 card = mCard;
+        card.init(mKeys[2 * sector + (keyB ? 1 : 0)]);
+        card.crypt32(mUidWord ^ nt, false);
+        card.crypt32(nrEnc, true);
+        if ((arEnc ^ card.crypt32(0, false)) != Crypto1.prngSuccessor(nt, 64)) {
+            ++mFailedAuthCount;
+            mHalted = true;
+            mNanos += mExchangeNanos + 8 * BYTE_NANOS + mTimeoutNanos;
+            return false;
+        }
+
+        // Pass 3: the tag answers with {suc96(nt)}, which the reader checks
+        int atEnc = Crypto1.prngSuccessor(nt, 96) ^ card.crypt32(0, false);
+        mNanos += exchange(8, 4);
+        if ((atEnc ^ reader.crypt32(0, false)) != Crypto1.prngSuccessor(nt, 96))
+            throw new IOException("Tag answer doesn't verify");
+
+        mAuthSector = sector;
+        return true;
+    }
+
+    /**
+     * The tag PRNG runs freely from power up, so the nonce depends on how much
+     * time has passed since the last one.
+     */
+    private int nextTagNonce() {
+        int steps = (int) ((mNanos - mTagNonceNanos) / BIT_NANOS % 0xffff) + 1;
+        mTagNonce = Crypto1.prngSuccessor(mTagNonce, steps);
+        mTagNonceNanos = mNanos;
+        return mTagNonce;
+    }
+
+    private int nextReaderNonce() {
+        // Xorshift, the reader nonce only has to vary
+        int x = mReaderNonce;
+        x ^= x << 13;
+        x ^= x >>> 17;
+        x ^= x << 5;
+        return mReaderNonce = x;
+    }
+
+    /**
+     * @return Time of a command of tx bytes and an answer of rx bytes.
+     */
+    private long exchange(int tx, int rx) {
+        return mExchangeNanos + tx * BYTE_NANOS + FRAME_DELAY_NANOS + rx * BYTE_NANOS;
+    }
+
+    /**
+     * ISO/IEC 14443-A CRC over the first length bytes, stored after them.
+     */
+    private static void setCrc(byte[] data, int length) {
+        int crc = crcA(data, length);
+        data[length] = (byte) crc;
+        data[length + 1] = (byte) (crc >>> 8);
+    }
+
+    private static boolean isCrcValid(byte[] data, int length) {
+        int crc = crcA(data, length);
+        return data[length] == (byte) crc && data[length + 1] == (byte) (crc >>> 8);
+    }
+
+    private static int crcA(byte[] data, int length) {
+        int crc = 0x6363;
+        for (int i = 0; i < length; ++i) {
+            int ch = (data[i] ^ crc) & 0xff;
+            ch = (ch ^ (ch << 4)) & 0xff;
+            crc = (crc >>> 8) ^ (ch << 8) ^ (ch << 3) ^ (ch >>> 4);
+        }
+        return crc & 0xffff;
+    }
+
+    private static int getTrailerBlock(int sector) {
+        return DumpStore.getFirstBlock(sector) + DumpStore.getBlockCountInSector(sector) - 1;
+    }
+
+    private int getSector(int block) {
+        int sector = 0;
+        while (sector + 1 < mSectorCount && DumpStore.getFirstBlock(sector + 1) <= block)
+            ++sector;
+        return sector;
+    }
+}
@@ -19,23 +19,18 @@
 
 package org.sparvnastet.slurp;
 
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.OutputStream;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 
-import android.os.Environment;
-import android.os.Parcel;
-import android.os.Parcelable;
-import android.util.Log;
-
 /**
  * This class represents the data of a MifareClassic tag.
+ *
+ * Doesn't depend on Android, see ParcelableTagData for keeping the data in a
+ * Bundle.
  */
-public class TagData implements Parcelable {
+public class TagData {
     private byte[][][] mData;
+    private String mDumpFileName;
 
     public TagData(int sectors) {
         assert (sectors > 0);
@@ -62,50 +57,52 @@ public class TagData implements Parcelable {
     }
 
     /**
-     * Save the tag data to the external storage.
+     * The name of the file the data is saved as in the dump store.
+     *
+     * The name is made from the UID and the time of the first call, so saving
+     * the same data again overwrites the same file instead of creating a
+     * duplicate.
      *
-     * @param directory
-     * @throws IOException
+     * @return
      */
-    public void saveData(File directory) throws IOException {
+    public String getDumpFileName() {
         assert (isDataComplete());
 
-        String state = Environment.getExternalStorageState();
-
-        if (!Environment.MEDIA_MOUNTED.equals(state) || Environment.MEDIA_MOUNTED_READ_ONLY.equals(state))
-            throw new IOException("Storage medium not writable");
+        if (mDumpFileName != null)
+            return mDumpFileName;
 
         StringBuilder sb = new StringBuilder();
         sb.append(DataFormater.bytesToString(mData[0][0]).replace(" ", ""));
         sb.append(".");
 
-        final String DATE_FORMAT = "yyyyMMdd.HHmmss";
         Calendar cal = Calendar.getInstance();
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
+        SimpleDateFormat sdf = new SimpleDateFormat(DumpStore.DATE_FORMAT);
         sb.append(sdf.format(cal.getTime()));
-        sb.append(".card");
+        sb.append(DumpStore.DUMP_SUFFIX);
 
-        String fileName = sb.toString();
-        Log.i(SLURPActivity.LOGTAG, "Trying to safe data to: " + fileName);
+        mDumpFileName = sb.toString();
+        return mDumpFileName;
+    }
 
-        File dataFile = new File(directory, fileName);
+    /**
+     * @return The content of the dump file, all blocks padded up to 4k size
+     *         (for nfc-mfclassic compatibility).
+     */
+    public byte[] toDumpBytes() {
+        assert (isDataComplete());
 
-        OutputStream os = new FileOutputStream(dataFile);
+        byte[] dump = new byte[DumpStore.DUMP_SIZE];
 
         byte[][][] data = mData; // Local variable optimization
         int totalBytes = 0;
         for (byte[][] sector : data) {
             for (byte[] block : sector) {
-                os.write(block);
+                System.arraycopy(block, 0, dump, totalBytes, block.length);
                 totalBytes += block.length;
             }
         }
 
-        // Pad up to 4k size (for nfc-mfclassic compatibility)
-        assert (4096 - totalBytes >= 0);
-        os.write(new byte[4096 - totalBytes]);
-
-        os.close();
+        return dump;
     }
 
     /**
@@ -122,55 +119,4 @@ public class TagData implements Parcelable {
         }
         return true;
     }
-
-    @Override
-    public int describeContents() {
-        return 0;
-    }
-
-    @Override
-    public void writeToParcel(Parcel dest, int flags) {
-        dest.writeInt(mData.length);
-        for (byte[][] sector : mData) {
-            if (sector == null)
-                dest.writeInt(0);
-            else {
-                dest.writeInt(sector.length);
-                for (byte[] block : sector) {
-                    if (block == null)
-                        dest.writeInt(0);
-                    else {
-                        dest.writeInt(block.length);
-                        dest.writeByteArray(block);
-                    }
-                }
-            }
-        }
-    }
-
-    public static final Parcelable.Creator<TagData> CREATOR = new Parcelable.Creator<TagData>() {
-        public TagData createFromParcel(Parcel in) {
-            int sectors = in.readInt();
-            TagData tag = new TagData(sectors);
-
-            for (int i = 0; i < sectors; ++i) {
-                int blocks = in.readInt();
-                byte[][] sectorData = new byte[blocks][];
-                for (int j = 0; j < blocks; ++j) {
-                    int blockLength = in.readInt();
-                    if (blockLength > 0) {
-                        sectorData[j] = in.createByteArray();
-                    }
-                    tag.setSector(i, sectorData);
-                }
-            }
-
-            return tag;
-        }
-
-        public TagData[] newArray(int size) {
-            return new TagData[size];
-        }
-    };
-
 }
@@ -0,0 +1,189 @@
+/**
+ * Copyright (c) 2011 Anders Sundman <anders@4zm.org>
+ *
+ * This file is part of SLURP.
+ *
+ * SLURP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SLURP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with SLURP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sparvnastet.slurp;
+
+import java.io.IOException;
+
+/**
+ * Reads all sectors of a tag with a known key chain.
+ *
+ * Every sector is validated as soon as it's read, and corrupt blocks are read
+ * again while the tag is still in the field. Blocks that are still corrupt
+ * after MAX_REREADS attempts are kept and reported, they may well be corrupt
+ * on the tag itself.
+ *
+ * Doesn't depend on Android, progress is reported through a Listener.
+ */
+public class TagReader {
+
+    /**
+     * Number of times a corrupt block is read again.
+     */
+    public final static int MAX_REREADS = 3;
+
+    public interface Listener {
+        void onSectorRead(int sector, int sectorCount);
+
+        /**
+         * A block is still corrupt after it was read again.
+         *
+         * @param block
+         * @param errors
+         *            Error flags, see DumpValidator.
+         */
+        void onCorruptBlock(int block, int errors);
+    }
+
+    private final MifareKeyChain mKeyChain;
+    private final Listener mListener;
+
+    // Flat copy of the sector being validated, and its block errors
+    private final static int MAX_SECTOR_BLOCKS = DumpStore.getBlockCountInSector(DumpStore.MAX_SECTORS - 1);
+    private final byte[] mSectorData = new byte[MAX_SECTOR_BLOCKS * DumpStore.BLOCK_SIZE];
+    private final int[] mErrors = new int[MAX_SECTOR_BLOCKS];
+    private int mUidLength; // Of the tag being read
+    private int mRereadCount;
+    private int mCorruptBlockCount;
+
+    /**
+     * @param keyChain
+     * @param listener
+     *            May be null.
+     */
+    public TagReader(MifareKeyChain keyChain, Listener listener) {
+        assert (keyChain != null);
+        mKeyChain = keyChain;
+        mListener = listener;
+    }
+
+    /**
+     * @return Number of blocks read again in the last read.
+     */
+    public int getRereadCount() {
+        return mRereadCount;
+    }
+
+    /**
+     * @return Number of blocks that were still corrupt in the last read.
+     */
+    public int getCorruptBlockCount() {
+        return mCorruptBlockCount;
+    }
+
+    /**
+     * Read the tag. The tag is connected and closed again.
+     *
+     * @param tag
+     * @return
+     * @throws IOException
+     *             If a sector can't be read.
+     */
+    public TagData read(MifareTag tag) throws IOException {
+        mRereadCount = 0;
+        mCorruptBlockCount = 0;
+        mUidLength = tag.getUid().length;
+        tag.connect();
+        try {
+            int sectorCount = tag.getSectorCount();
+            TagData data = new TagData(sectorCount);
+
+            for (int i = 0; i < sectorCount; ++i) {
+                data.setSector(i, readSector(tag, i, mKeyChain.getKeyA(i), mKeyChain.getKeyB(i)));
+                if (mListener != null)
+                    mListener.onSectorRead(i, sectorCount);
+            }
+
+            return data;
+        } finally {
+            tag.close();
+        }
+    }
+
+    /**
+     * Read a sector, authenticated with Key A, or with Key B if Key A isn't
+     * known or is rejected. The access bits of the trailer tell if the Key B
+     * read from it is the real key.
+     */
+    private byte[][] readSector(MifareTag tag, int sector, long keyA, long keyB) throws IOException {
+        byte[][] data = new byte[tag.getBlockCountInSector(sector)][];
+
+        boolean authA = keyA != MifareKeyChain.NO_KEY && tag.authenticateSectorWithKeyA(sector, keyA);
+        boolean res = authA;
+
+        if (!res && keyB != MifareKeyChain.NO_KEY)
+            res = tag.authenticateSectorWithKeyB(sector, keyB);
+
+        if (!res)
+            throw new IOException("READ ERROR - can't auth");
+
+        int blocks = tag.getBlockCountInSector(sector);
+        int firstBlock = tag.sectorToBlock(sector);
+        for (int i = 0; i < blocks; ++i)
+            data[i] = tag.readBlock(firstBlock + i);
+        validate(tag, sector, data);
+
+        // Key A is never readable and Key B only with Key A under some
+        // access conditions. Fill in the data from our known keys where the
+        // card didn't return the real key.
+        byte[] trailer = data[blocks - 1];
+        MifareKeyChain.unpackKey(keyA, trailer, MifareKeyChain.TRAILER_KEY_A_OFFSET);
+        if (!authA || !AccessBits.isKeyBReadable(trailer, 0))
+            MifareKeyChain.unpackKey(keyB, trailer, MifareKeyChain.TRAILER_KEY_B_OFFSET);
+
+        return data;
+    }
+
+    /**
+     * Validate a sector that was just read, and read the corrupt blocks again
+     * while the sector is still authenticated.
+     */
+    private void validate(MifareTag tag, int sector, byte[][] data) throws IOException {
+        byte[] flat = mSectorData; // Local variable optimization
+        int[] errors = mErrors;
+        int uidLength = mUidLength;
+        int firstBlock = tag.sectorToBlock(sector);
+
+        for (int i = 0; i < data.length; ++i)
+            System.arraycopy(data[i], 0, flat, i * DumpStore.BLOCK_SIZE, DumpStore.BLOCK_SIZE);
+        int corrupt = DumpValidator.validateSector(flat, 0, sector, uidLength, errors, 0);
+
+        for (int attempt = 0; corrupt != 0 && attempt < MAX_REREADS; ++attempt) {
+            for (int i = 0; i < data.length; ++i) {
+                if (errors[i] == 0)
+                    continue;
+                ++mRereadCount;
+                data[i] = tag.readBlock(firstBlock + i);
+                System.arraycopy(data[i], 0, flat, i * DumpStore.BLOCK_SIZE, DumpStore.BLOCK_SIZE);
+            }
+            // A new trailer can change what the data blocks are checked for
+            corrupt = DumpValidator.validateSector(flat, 0, sector, uidLength, errors, 0);
+        }
+
+        if (corrupt == 0)
+            return;
+        mCorruptBlockCount += corrupt;
+        if (mListener != null) {
+            for (int i = 0; i < data.length; ++i) {
+                if (errors[i] != 0)
+                    mListener.onCorruptBlock(firstBlock + i, errors[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,283 @@
+/**
+ * Copyright (c) 2011 Anders Sundman <anders@4zm.org>
+ *
+ * This file is part of SLURP.
+ *
+ * SLURP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SLURP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with SLURP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sparvnastet.slurp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Records every operation on a tag to a compact binary trace, see
+ * TraceReplayer for reading it back.
+ *
+ * The trace starts with a header: [Magic "SLTR"|4 Bytes] [Version|1 Byte]
+ * [UID length|1 Byte] [UID] [Sector count|1 Byte] [Blocks in sector|1 Byte per
+ * sector] [SAK|1 Byte] [ATQA|2 Bytes] [Search strategy|1 Byte]
+ * [Dictionary size|varint] [Key|6 Bytes] [Hits|varint] per dictionary key.
+ * It's followed by one record per operation: [Operation|1 Byte]
+ * [Result|1 Byte] [Sector or block|1 Byte] [Key|6 Bytes, only for
+ * authentication] [Block data|16 Bytes, only for successful reads]
+ * [Duration in ns|varint].
+ *
+ * The strategy and the dictionary partition of a key search are what decides
+ * the order of its attempts, with them the search can be replayed exactly, see
+ * setSearch. The search should also use the recorder as its clock, the replay
+ * measures the attempts with the recorded durations.
+ *
+ * Version 3 traces also had the auth costs of the search after the strategy:
+ * [Auth ns|varint] [Failed auth ns|varint] [Reselect ns|varint] [Cost
+ * samples|varint]. The costs never changed the order of the attempts and are
+ * skipped when replaying.
+ */
+public class TraceRecorder implements MifareTag, KeySearch.Clock {
+    public final static String TRACE_SUFFIX = ".trace";
+
+    final static int MAGIC = 0x534c5452; // "SLTR"
+    final static int VERSION = 4;
+
+    final static int STRATEGY_UNKNOWN = 0;
+    final static int STRATEGY_LINEAR = 1;
+    final static int STRATEGY_KEY_MAJOR = 2;
+    final static int STRATEGY_KEY_REUSE = 3; // "Cost aware" in version 3
+
+    final static int OP_CONNECT = 1;
+    final static int OP_CLOSE = 2;
+    final static int OP_AUTH_A = 3;
+    final static int OP_AUTH_B = 4;
+    final static int OP_READ = 5;
+
+    final static int RESULT_FALSE = 0;
+    final static int RESULT_OK = 1;
+    final static int RESULT_IO_ERROR = 2;
+
+    final static int BLOCK_SIZE = 16;
+
+    private final MifareTag mTag;
+    private final ByteArrayOutputStream mHeader = new ByteArrayOutputStream(64);
+    private final ByteArrayOutputStream mTrace = new ByteArrayOutputStream(4096);
+
+    // The key search, written to the header when the trace is taken
+    private int mStrategy = STRATEGY_UNKNOWN;
+    private KeyDictionary mDictionary;
+
+    private long mRecordedNanos;
+
+    /**
+     * @param tag
+     *            The tag to record the operations on.
+     */
+    public TraceRecorder(MifareTag tag) {
+        assert (tag != null);
+        mTag = tag;
+
+        writeInt(mHeader, MAGIC);
+        mHeader.write(VERSION);
+
+        byte[] uid = tag.getUid();
+        mHeader.write(uid.length);
+        mHeader.write(uid, 0, uid.length);
+
+        int sectorCount = tag.getSectorCount();
+        mHeader.write(sectorCount);
+        for (int i = 0; i < sectorCount; ++i)
+            mHeader.write(tag.getBlockCountInSector(i));
+
+        mHeader.write(tag.getSak());
+        mHeader.write(tag.getAtqa(), 0, 2);
+    }
+
+    /**
+     * Record the key search that is about to run on the tag.
+     *
+     * @param strategy
+     * @param dictionary
+     *            The dictionary of the search, the partition of the card
+     *            family of the tag is recorded.
+     */
+    public synchronized void setSearch(KeySearchStrategy strategy, KeyDictionary dictionary) {
+        if (strategy instanceof LinearKeySearchStrategy)
+            mStrategy = STRATEGY_LINEAR;
+        else if (strategy instanceof KeyMajorKeySearchStrategy)
+            mStrategy = STRATEGY_KEY_MAJOR;
+        else if (strategy instanceof KeyReuseKeySearchStrategy)
+            mStrategy = STRATEGY_KEY_REUSE;
+        else
+            mStrategy = STRATEGY_UNKNOWN;
+
+        mDictionary = dictionary.forFamily(CardFamily.fromTag(mTag));
+    }
+
+    /**
+     * @return The trace recorded so far.
+     */
+    public synchronized byte[] toByteArray() {
+        ByteArrayOutputStream os = new ByteArrayOutputStream(mHeader.size() + mTrace.size() + 64);
+        os.write(mHeader.toByteArray(), 0, mHeader.size());
+
+        os.write(mStrategy);
+
+        KeyDictionary dictionary = mDictionary; // Local variable optimization
+        int size = dictionary != null ? dictionary.size() : 0;
+        writeVarint(os, size);
+        for (int i = 0; i < size; ++i) {
+            long key = dictionary.getKey(i);
+            for (int shift = 8 * (MifareKeyChain.KEY_SIZE - 1); shift >= 0; shift -= 8)
+                os.write((int) (key >>> shift));
+            writeVarint(os, dictionary.getHits(i));
+        }
+
+        os.write(mTrace.toByteArray(), 0, mTrace.size());
+        return os.toByteArray();
+    }
+
+    /** KeySearch.Clock */
+
+    /**
+     * @return Total duration of the recorded operations.
+     */
+    public synchronized long nanoTime() {
+        return mRecordedNanos;
+    }
+
+    /** MifareTag */
+
+    public byte[] getUid() {
+        return mTag.getUid();
+    }
+
+    public int getSak() {
+        return mTag.getSak();
+    }
+
+    public byte[] getAtqa() {
+        return mTag.getAtqa();
+    }
+
+    public int getSectorCount() {
+        return mTag.getSectorCount();
+    }
+
+    public int getBlockCountInSector(int sector) {
+        return mTag.getBlockCountInSector(sector);
+    }
+
+    public int sectorToBlock(int sector) {
+        return mTag.sectorToBlock(sector);
+    }
+
+    public void connect() throws IOException {
+        long start = System.nanoTime();
+        try {
+            mTag.connect();
+        } catch (IOException e) {
+            record(OP_CONNECT, RESULT_IO_ERROR, 0, MifareKeyChain.NO_KEY, null, start);
+            throw e;
+        }
+        record(OP_CONNECT, RESULT_OK, 0, MifareKeyChain.NO_KEY, null, start);
+    }
+
+    public void close() throws IOException {
+        long start = System.nanoTime();
+        try {
+            mTag.close();
+        } catch (IOException e) {
+            record(OP_CLOSE, RESULT_IO_ERROR, 0, MifareKeyChain.NO_KEY, null, start);
+            throw e;
+        }
+        record(OP_CLOSE, RESULT_OK, 0, MifareKeyChain.NO_KEY, null, start);
+    }
+
+    public boolean authenticateSectorWithKeyA(int sector, long key) throws IOException {
+        long start = System.nanoTime();
+        boolean res;
+        try {
+            res = mTag.authenticateSectorWithKeyA(sector, key);
+        } catch (IOException e) {
+            record(OP_AUTH_A, RESULT_IO_ERROR, sector, key, null, start);
+            throw e;
+        }
+        record(OP_AUTH_A, res ? RESULT_OK : RESULT_FALSE, sector, key, null, start);
+        return res;
+    }
+
+    public boolean authenticateSectorWithKeyB(int sector, long key) throws IOException {
+        long start = System.nanoTime();
+        boolean res;
+        try {
+            res = mTag.authenticateSectorWithKeyB(sector, key);
+        } catch (IOException e) {
+            record(OP_AUTH_B, RESULT_IO_ERROR, sector, key, null, start);
+            throw e;
+        }
+        record(OP_AUTH_B, res ? RESULT_OK : RESULT_FALSE, sector, key, null, start);
+        return res;
+    }
+
+    public byte[] readBlock(int block) throws IOException {
+        long start = System.nanoTime();
+        byte[] data;
+        try {
+            data = mTag.readBlock(block);
+        } catch (IOException e) {
+            record(OP_READ, RESULT_IO_ERROR, block, MifareKeyChain.NO_KEY, null, start);
+            throw e;
+        }
+        record(OP_READ, RESULT_OK, block, MifareKeyChain.NO_KEY, data, start);
+        return data;
+    }
+
+    private synchronized void record(int op, int result, int arg, long key, byte[] data, long start) {
+        long duration = System.nanoTime() - start;
+        mRecordedNanos += duration;
+
+        mTrace.write(op);
+        mTrace.write(result);
+        mTrace.write(arg);
+
+        if (op == OP_AUTH_A || op == OP_AUTH_B) {
+            for (int shift = 8 * (MifareKeyChain.KEY_SIZE - 1); shift >= 0; shift -= 8)
+                mTrace.write((int) (key >>> shift));
+        }
+
+        if (data != null) {
+            assert (data.length == BLOCK_SIZE);
+            mTrace.write(data, 0, BLOCK_SIZE);
+        }
+
+        writeVarint(mTrace, duration);
+    }
+
+    /**
+     * Unsigned LEB128
+     */
+    private static void writeVarint(ByteArrayOutputStream os, long value) {
+        while ((value & ~0x7fL) != 0) {
+            os.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        os.write((int) value);
+    }
+
+    private static void writeInt(ByteArrayOutputStream os, int value) {
+        os.write(value >>> 24);
+        os.write(value >>> 16);
+        os.write(value >>> 8);
+        os.write(value);
+    }
+}
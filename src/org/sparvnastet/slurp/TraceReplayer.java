@@ -0,0 +1,526 @@
+/**
+ * Copyright (c) 2011 Anders Sundman <anders@4zm.org>
+ *
+ * This file is part of SLURP.
+ *
+ * SLURP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SLURP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with SLURP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sparvnastet.slurp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * A MifareTag that replays a trace written by TraceRecorder.
+ *
+ * Calls that match the next recorded operation (same operation, sector or
+ * block and key) get the recorded result and duration. If the code under test
+ * makes calls that weren't recorded (e.g. a different key order), the replayer
+ * answers from a model built from the whole trace: only the keys that
+ * succeeded in the trace authenticate, blocks read in the trace can be read,
+ * and the duration is the mean of the recorded operations of the same kind and
+ * result. The number of matching and diverging calls tells how closely the
+ * replay followed the recording.
+ *
+ * No time is actually spent waiting, the tag time is accumulated so the code
+ * can run as fast as possible while the modelled tag time is reported. The
+ * replayer is also the clock of the search, so the listener of the search sees
+ * the recorded times.
+ *
+ * Traces from version 3 have the strategy and dictionary of the recorded
+ * search, a search set up with them makes the same attempts. Older traces are
+ * replayed with the linear strategy over the tried keys.
+ *
+ * Doesn't depend on Android and can be run on a desktop JVM through main(),
+ * with only the app classes on the class path.
+ */
+public class TraceReplayer implements MifareTag, KeySearch.Clock {
+    private final static int MAX_RESYNC = 64;
+    private final static int OP_COUNT = TraceRecorder.OP_READ + 1;
+    private final static int RESULT_COUNT = TraceRecorder.RESULT_IO_ERROR + 1;
+
+    private byte[] mUid;
+    private int mSak;
+    private byte[] mAtqa = new byte[2];
+    private int[] mBlockCounts;
+    private int[] mFirstBlocks;
+
+    // The recorded key search
+    private int mStrategy = TraceRecorder.STRATEGY_UNKNOWN;
+    private long[] mDictionaryKeys;
+    private int[] mDictionaryHits;
+
+    // The recorded operations
+    private int mCount;
+    private byte[] mOps;
+    private byte[] mResults;
+    private int[] mArgs;
+    private long[] mKeys;
+    private byte[][] mData;
+    private long[] mDurations;
+
+    // The model, for calls that weren't recorded
+    private long[] mKeyA;
+    private long[] mKeyB;
+    private byte[][] mBlocks;
+    private long[] mMeanNanos = new long[OP_COUNT * RESULT_COUNT];
+
+    // Replay state
+    private int mCursor;
+    private int mMatched;
+    private int mDiverged;
+    private int mSkipped;
+    private long mTagNanos;
+
+    private TraceReplayer() {
+    }
+
+    /**
+     * Parse a trace.
+     *
+     * @param trace
+     * @return
+     * @throws IOException
+     *             If the trace is malformed.
+     */
+    public static TraceReplayer parse(byte[] trace) throws IOException {
+        TraceReplayer replayer = new TraceReplayer();
+        try {
+            replayer.parseTrace(trace);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Truncated trace");
+        }
+        return replayer;
+    }
+
+    /**
+     * Start the replay from the beginning again.
+     */
+    public void rewind() {
+        mCursor = 0;
+        mMatched = 0;
+        mDiverged = 0;
+        mSkipped = 0;
+        mTagNanos = 0;
+    }
+
+    /**
+     * @return The recorded strategy, see TraceRecorder.STRATEGY_*.
+     */
+    public int getStrategy() {
+        return mStrategy;
+    }
+
+    /**
+     * @return A new strategy of the recorded kind, the linear strategy if it
+     *         isn't known.
+     */
+    public KeySearchStrategy newStrategy() {
+        switch (mStrategy) {
+        case TraceRecorder.STRATEGY_KEY_MAJOR:
+            return new KeyMajorKeySearchStrategy();
+        case TraceRecorder.STRATEGY_KEY_REUSE:
+            return new KeyReuseKeySearchStrategy();
+        default:
+            return new LinearKeySearchStrategy();
+        }
+    }
+
+    /**
+     * @return The recorded dictionary, or the tried keys if the trace
+     *         doesn't have one.
+     */
+    public KeyDictionary getDictionary() {
+        if (mDictionaryKeys == null)
+            return new KeyDictionary(getTriedKeys());
+        return new KeyDictionary(mDictionaryKeys, mDictionaryHits);
+    }
+
+    /**
+     * @return The keys tried in the trace, in the order they were first
+     *         tried. Used as dictionary, a search with the same strategy
+     *         tries the keys in the recorded order.
+     */
+    public long[] getTriedKeys() {
+        LongKeySet seen = new LongKeySet(mCount);
+        long[] keys = new long[mCount];
+        int n = 0;
+        for (int i = 0; i < mCount; ++i) {
+            if (mKeys[i] != MifareKeyChain.NO_KEY && seen.add(mKeys[i]))
+                keys[n++] = mKeys[i];
+        }
+
+        long[] result = new long[n];
+        System.arraycopy(keys, 0, result, 0, n);
+        return result;
+    }
+
+    public int getOperationCount() {
+        return mCount;
+    }
+
+    /**
+     * @return Number of calls that matched a recorded operation.
+     */
+    public int getMatchedCount() {
+        return mMatched;
+    }
+
+    /**
+     * @return Number of calls that weren't recorded.
+     */
+    public int getDivergedCount() {
+        return mDiverged;
+    }
+
+    /**
+     * @return Number of recorded operations the replay didn't make.
+     */
+    public int getSkippedCount() {
+        return mSkipped + (mCount - mCursor);
+    }
+
+    /**
+     * @return Total time the tag spent on the replayed calls.
+     */
+    public long getTagNanos() {
+        return mTagNanos;
+    }
+
+    /** KeySearch.Clock */
+
+    public long nanoTime() {
+        return mTagNanos;
+    }
+
+    /**
+     * @return Total time of all recorded operations.
+     */
+    public long getRecordedNanos() {
+        long total = 0;
+        for (int i = 0; i < mCount; ++i)
+            total += mDurations[i];
+        return total;
+    }
+
+    /** MifareTag */
+
+    public byte[] getUid() {
+        return mUid.clone();
+    }
+
+    public int getSak() {
+        return mSak;
+    }
+
+    public byte[] getAtqa() {
+        return mAtqa.clone();
+    }
+
+    public int getSectorCount() {
+        return mBlockCounts.length;
+    }
+
+    public int getBlockCountInSector(int sector) {
+        return mBlockCounts[sector];
+    }
+
+    public int sectorToBlock(int sector) {
+        return mFirstBlocks[sector];
+    }
+
+    public void connect() throws IOException {
+        replay(TraceRecorder.OP_CONNECT, 0, MifareKeyChain.NO_KEY, TraceRecorder.RESULT_OK);
+    }
+
+    public void close() throws IOException {
+        replay(TraceRecorder.OP_CLOSE, 0, MifareKeyChain.NO_KEY, TraceRecorder.RESULT_OK);
+    }
+
+    public boolean authenticateSectorWithKeyA(int sector, long key) throws IOException {
+        int modelResult = key == mKeyA[sector] ? TraceRecorder.RESULT_OK : TraceRecorder.RESULT_FALSE;
+        return replay(TraceRecorder.OP_AUTH_A, sector, key, modelResult) == TraceRecorder.RESULT_OK;
+    }
+
+    public boolean authenticateSectorWithKeyB(int sector, long key) throws IOException {
+        int modelResult = key == mKeyB[sector] ? TraceRecorder.RESULT_OK : TraceRecorder.RESULT_FALSE;
+        return replay(TraceRecorder.OP_AUTH_B, sector, key, modelResult) == TraceRecorder.RESULT_OK;
+    }
+
+    public byte[] readBlock(int block) throws IOException {
+        int modelResult = mBlocks[block] != null ? TraceRecorder.RESULT_OK : TraceRecorder.RESULT_IO_ERROR;
+        int index = mCursor;
+        replay(TraceRecorder.OP_READ, block, MifareKeyChain.NO_KEY, modelResult);
+
+        // A matching record has its own data, otherwise use the model
+        if (index < mCursor && mData[mCursor - 1] != null)
+            return mData[mCursor - 1].clone();
+        return mBlocks[block].clone();
+    }
+
+    /**
+     * Replay one call.
+     *
+     * @return The result of the call.
+     * @throws IOException
+     *             If the result is an IO error.
+     */
+    private int replay(int op, int arg, long key, int modelResult) throws IOException {
+        int result;
+        int match = findMatch(op, arg, key);
+        if (match >= 0) {
+            mSkipped += match - mCursor;
+            mCursor = match + 1;
+            ++mMatched;
+            mTagNanos += mDurations[match];
+            result = mResults[match];
+        } else {
+            ++mDiverged;
+            mTagNanos += mMeanNanos[op * RESULT_COUNT + modelResult];
+            result = modelResult;
+        }
+
+        if (result == TraceRecorder.RESULT_IO_ERROR)
+            throw new IOException("Replayed IO error");
+        return result;
+    }
+
+    /**
+     * @return Index of the next matching record, -1 if there is none within
+     *         MAX_RESYNC records.
+     */
+    private int findMatch(int op, int arg, long key) {
+        int end = Math.min(mCount, mCursor + MAX_RESYNC);
+        for (int i = mCursor; i < end; ++i) {
+            if (mOps[i] == op && mArgs[i] == arg && mKeys[i] == key)
+                return i;
+        }
+        return -1;
+    }
+
+    private void parseTrace(byte[] trace) throws IOException {
+        int pos = 0;
+        int magic = (trace[0] & 0xff) << 24 | (trace[1] & 0xff) << 16 | (trace[2] & 0xff) << 8 | (trace[3] & 0xff);
+        pos += 4;
+        int version = trace[pos++];
+        if (magic != TraceRecorder.MAGIC || version < 1 || version > TraceRecorder.VERSION)
+            throw new IOException("Not a trace (or unsupported version)");
+
+        int uidLength = trace[pos++] & 0xff;
+        mUid = new byte[uidLength];
+        System.arraycopy(trace, pos, mUid, 0, uidLength);
+        pos += uidLength;
+
+        int sectorCount = trace[pos++] & 0xff;
+        mBlockCounts = new int[sectorCount];
+        mFirstBlocks = new int[sectorCount];
+        int blockCount = 0;
+        for (int i = 0; i < sectorCount; ++i) {
+            mBlockCounts[i] = trace[pos++] & 0xff;
+            mFirstBlocks[i] = blockCount;
+            blockCount += mBlockCounts[i];
+        }
+
+        // Version 1 traces don't have SAK and ATQA
+        if (version >= 2) {
+            mSak = trace[pos++] & 0xff;
+            mAtqa[0] = trace[pos++];
+            mAtqa[1] = trace[pos++];
+        }
+
+        long[] value = new long[1];
+        if (version >= 3) {
+            mStrategy = trace[pos++] & 0xff;
+
+            // Version 3 auth costs, see TraceRecorder
+            if (version == 3) {
+                for (int i = 0; i < 4; ++i)
+                    pos = readVarint(trace, pos, value);
+            }
+
+            pos = readVarint(trace, pos, value);
+            int size = (int) value[0];
+            if (size < 0 || size > (trace.length - pos) / (MifareKeyChain.KEY_SIZE + 1))
+                throw new IOException("Invalid trace dictionary");
+            mDictionaryKeys = new long[size];
+            mDictionaryHits = new int[size];
+            for (int i = 0; i < size; ++i) {
+                mDictionaryKeys[i] = MifareKeyChain.packKey(trace, pos);
+                pos += MifareKeyChain.KEY_SIZE;
+                pos = readVarint(trace, pos, value);
+                mDictionaryHits[i] = (int) value[0];
+            }
+        }
+
+        // Every record is at least 4 bytes
+        int capacity = (trace.length - pos) / 4;
+        mOps = new byte[capacity];
+        mResults = new byte[capacity];
+        mArgs = new int[capacity];
+        mKeys = new long[capacity];
+        mData = new byte[capacity][];
+        mDurations = new long[capacity];
+
+        mKeyA = new long[sectorCount];
+        mKeyB = new long[sectorCount];
+        Arrays.fill(mKeyA, MifareKeyChain.NO_KEY);
+        Arrays.fill(mKeyB, MifareKeyChain.NO_KEY);
+        mBlocks = new byte[blockCount][];
+
+        long[] totalNanos = new long[OP_COUNT * RESULT_COUNT];
+        int[] counts = new int[OP_COUNT * RESULT_COUNT];
+
+        int n = 0;
+        while (pos < trace.length) {
+            int op = trace[pos++];
+            int result = trace[pos++];
+            int arg = trace[pos++] & 0xff;
+            if (op < TraceRecorder.OP_CONNECT || op > TraceRecorder.OP_READ || result < 0
+                    || result >= RESULT_COUNT)
+                throw new IOException("Invalid trace record");
+
+            long key = MifareKeyChain.NO_KEY;
+            if (op == TraceRecorder.OP_AUTH_A || op == TraceRecorder.OP_AUTH_B) {
+                key = MifareKeyChain.packKey(trace, pos);
+                pos += MifareKeyChain.KEY_SIZE;
+
+                if (result == TraceRecorder.RESULT_OK) {
+                    if (op == TraceRecorder.OP_AUTH_A)
+                        mKeyA[arg] = key;
+                    else
+                        mKeyB[arg] = key;
+                }
+            }
+
+            byte[] data = null;
+            if (op == TraceRecorder.OP_READ && result == TraceRecorder.RESULT_OK) {
+                data = new byte[TraceRecorder.BLOCK_SIZE];
+                System.arraycopy(trace, pos, data, 0, data.length);
+                pos += data.length;
+                mBlocks[arg] = data;
+            }
+
+            pos = readVarint(trace, pos, value);
+            long duration = value[0];
+
+            mOps[n] = (byte) op;
+            mResults[n] = (byte) result;
+            mArgs[n] = arg;
+            mKeys[n] = key;
+            mData[n] = data;
+            mDurations[n] = duration;
+            ++n;
+
+            totalNanos[op * RESULT_COUNT + result] += duration;
+            ++counts[op * RESULT_COUNT + result];
+        }
+        mCount = n;
+
+        for (int i = 0; i < counts.length; ++i)
+            mMeanNanos[i] = counts[i] == 0 ? 0 : totalNanos[i] / counts[i];
+    }
+
+    /**
+     * Read an unsigned LEB128 value.
+     *
+     * @return The position after the value.
+     */
+    private static int readVarint(byte[] trace, int pos, long[] value) {
+        long result = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = trace[pos++];
+            result |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+
+        value[0] = result;
+        return pos;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        InputStream is = new FileInputStream(file);
+        try {
+            byte[] data = new byte[(int) file.length()];
+            int read = 0;
+            int n;
+            while (read < data.length && (n = is.read(data, read, data.length - read)) > 0)
+                read += n;
+            if (read != data.length)
+                throw new IOException("Short read: " + file);
+            return data;
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Replay traces through the key search and tag reader and print how long
+     * the code and the (modelled) tag took.
+     *
+     * Usage: TraceReplayer [-n iterations] trace...
+     */
+    public static void main(String[] args) throws IOException {
+        int iterations = 1;
+        int first = 0;
+        if (args.length >= 2 && args[0].equals("-n")) {
+            iterations = Integer.parseInt(args[1]);
+            first = 2;
+        }
+
+        if (first >= args.length) {
+            System.err.println("Usage: TraceReplayer [-n iterations] trace...");
+            System.exit(1);
+        }
+
+        for (int i = first; i < args.length; ++i) {
+            TraceReplayer replayer = parse(readFile(new File(args[i])));
+            KeyDictionary dictionary = replayer.getDictionary();
+
+            long codeNanos = 0;
+            boolean keysFound = false;
+            boolean dataRead = false;
+            for (int iteration = 0; iteration < iterations; ++iteration) {
+                replayer.rewind();
+                long start = System.nanoTime();
+
+                MifareKeyChain keyChain = null;
+                try {
+                    KeySearch search = new KeySearch(dictionary, new NegativeKeyCache(), replayer.newStrategy(),
+                            null);
+                    search.setClock(replayer);
+                    keyChain = search.search(replayer);
+                    keysFound = keyChain != null;
+                    dataRead = keysFound && new TagReader(keyChain, null).read(replayer) != null;
+                } catch (IOException e) {
+                    dataRead = false;
+                }
+
+                codeNanos += System.nanoTime() - start;
+            }
+
+            System.out.println(args[i] + ": " + replayer.getOperationCount() + " ops, matched "
+                    + replayer.getMatchedCount() + ", diverged " + replayer.getDivergedCount() + ", skipped "
+                    + replayer.getSkippedCount() + ", keys " + (keysFound ? "found" : "not found") + ", data "
+                    + (dataRead ? "read" : "not read") + ", tag time " + replayer.getTagNanos() / 1000000
+                    + " ms (recorded " + replayer.getRecordedNanos() / 1000000 + " ms), code time "
+                    + codeNanos / iterations / 1000 + " us/replay");
+        }
+    }
+}
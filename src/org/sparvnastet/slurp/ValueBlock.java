@@ -0,0 +1,83 @@
+/**
+ * Copyright (c) 2011 Anders Sundman <anders@4zm.org>
+ *
+ * This file is part of SLURP.
+ *
+ * SLURP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SLURP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with SLURP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sparvnastet.slurp;
+
+/**
+ * Decoding of value blocks.
+ *
+ * A value block stores a signed 32 bit value three times, once inverted, and
+ * an address byte four times, twice inverted: [Value|4 Bytes] [~Value|4 Bytes]
+ * [Value|4 Bytes] [Addr|1 Byte] [~Addr|1 Byte] [Addr|1 Byte] [~Addr|1 Byte].
+ * The value is little endian.
+ */
+public class ValueBlock {
+
+    /**
+     * Check that a block has the value block format.
+     *
+     * @param data
+     *            Buffer containing the block.
+     * @param offset
+     *            Offset of the block in the buffer.
+     * @return true if the value and address copies match.
+     */
+    public static boolean isValid(byte[] data, int offset) {
+        for (int i = 0; i < 4; ++i) {
+            byte b = data[offset + i];
+            if (data[offset + 4 + i] != (byte) ~b || data[offset + 8 + i] != b)
+                return false;
+        }
+
+        byte addr = data[offset + 12];
+        return data[offset + 13] == (byte) ~addr && data[offset + 14] == addr && data[offset + 15] == (byte) ~addr;
+    }
+
+    /**
+     * Check if a block is a damaged value block: it isn't valid, but either
+     * the inverted value or the address bytes still match. A bit error breaks
+     * at most one of them, while raw data (e.g. an empty block) practically
+     * never has either.
+     *
+     * @param data
+     *            Buffer containing the block.
+     * @param offset
+     *            Offset of the block in the buffer.
+     * @return true if the block looks like a value block, but isn't valid.
+     */
+    public static boolean isCorrupt(byte[] data, int offset) {
+        boolean valueInverted = true;
+        for (int i = 0; i < 4; ++i)
+            valueInverted &= data[offset + 4 + i] == (byte) ~data[offset + i];
+
+        byte addr = data[offset + 12];
+        boolean addrValid = data[offset + 13] == (byte) ~addr && data[offset + 14] == addr
+                && data[offset + 15] == (byte) ~addr;
+
+        return (valueInverted || addrValid) && !isValid(data, offset);
+    }
+
+    /**
+     * @return The value of a (valid) value block.
+     */
+    public static int getValue(byte[] data, int offset) {
+        return (data[offset] & 0xff) | (data[offset + 1] & 0xff) << 8 | (data[offset + 2] & 0xff) << 16
+                | (data[offset + 3] & 0xff) << 24;
+    }
+}
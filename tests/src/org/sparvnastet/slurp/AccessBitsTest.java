@@ -0,0 +1,86 @@
+/**
+ * Copyright (c) 2011 Anders Sundman <anders@4zm.org>
+ *
+ * This file is part of SLURP.
+ *
+ * SLURP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SLURP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with SLURP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.sparvnastet.slurp;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class AccessBitsTest extends TestCase {
+
+    private static byte[] trailer(int[] conditions) {
+        byte[] trailer = new byte[16];
+        AccessBits.setConditions(trailer, 0, conditions);
+        return trailer;
+    }
+
+    public void testTransportConfiguration() {
+        byte[] trailer = new byte[16];
+        trailer[6] = (byte) 0xff;
+        trailer[7] = (byte) 0x07;
+        trailer[8] = (byte) 0x80;
+
+        assertTrue(AccessBits.isValid(trailer, 0));
+        for (int group = 0; group < AccessBits.TRAILER_GROUP; ++group)
+            assertEquals(0, AccessBits.getCondition(trailer, 0, group));
+        assertEquals(1, AccessBits.getCondition(trailer, 0, AccessBits.TRAILER_GROUP));
+        assertTrue(AccessBits.isKeyBReadable(trailer, 0));
+        assertTrue(Arrays.equals(trailer, trailer(new int[] { 0, 0, 0, 1 })));
+    }
+
+    public void testAllConditionsRoundTrip() {
+        int[] conditions = new int[4];
+        for (int all = 0; all < 1 << 12; ++all) {
+            for (int group = 0; group < 4; ++group)
+                conditions[group] = all >> (3 * group) & 7;
+
+            byte[] trailer = trailer(conditions);
+            assertTrue(AccessBits.isValid(trailer, 0));
+            for (int group = 0; group < 4; ++group)
+                assertEquals(conditions[group], AccessBits.getCondition(trailer, 0, group));
+
+            int condition = conditions[AccessBits.TRAILER_GROUP];
+            assertEquals(condition == 0 || condition == 1 || condition == 2, AccessBits.isKeyBReadable(trailer, 0));
+        }
+    }
+
+    public void testBitFlipInvalidates() {
+        byte[] trailer = trailer(new int[] { 0, 0, 0, 1 });
+        for (int bit = 0; bit < 24; ++bit) {
+            trailer[AccessBits.OFFSET + bit / 8] ^= 1 << (bit % 8);
+            assertFalse(AccessBits.isValid(trailer, 0));
+            assertFalse(AccessBits.isKeyBReadable(trailer, 0));
+            trailer[AccessBits.OFFSET + bit / 8] ^= 1 << (bit % 8);
+        }
+        assertTrue(AccessBits.isValid(trailer, 0));
+    }
+
+    public void testZerosInvalid() {
+        assertFalse(AccessBits.isValid(new byte[16], 0));
+    }
+
+    public void testOffset() {
+        byte[] data = new byte[64];
+        AccessBits.setConditions(data, 48, new int[] { 4, 0, 0, 3 });
+        assertTrue(AccessBits.isValid(data, 48));
+        assertEquals(4, AccessBits.getCondition(data, 48, 0));
+        assertFalse(AccessBits.isKeyBReadable(data, 48));
+        assertFalse(AccessBits.isValid(data, 0));
+    }
+}
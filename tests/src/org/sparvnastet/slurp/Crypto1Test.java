@@ -0,0 +1,86 @@
+/**
+ * Copyright (c) 2011 Anders Sundman <anders@4zm.org>
+ *
+ * This file is part of SLURP.
+ *
+ * SLURP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SLURP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with SLURP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.sparvnastet.slurp;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class Crypto1Test extends TestCase {
+    // A sniffed authentication, the sample of mfkey64
+    private final static long SAMPLE_KEY = 0xffffffffffffL;
+    private final static int SAMPLE_UID = 0x9c599b32;
+    private final static int SAMPLE_NT = 0x82a4166c;
+    private final static int SAMPLE_NR = 0xa1e458ce; // Encrypted
+    private final static int SAMPLE_AR = 0x6eea41e0; // Encrypted
+    private final static int SAMPLE_AT = 0x5cadf439; // Encrypted
+
+    public void testSampleAuthentication() {
+        Crypto1 cipher = new Crypto1();
+        cipher.init(SAMPLE_KEY);
+        cipher.crypt32(SAMPLE_UID ^ SAMPLE_NT, false);
+        cipher.crypt32(SAMPLE_NR, true);
+        assertEquals(Crypto1.prngSuccessor(SAMPLE_NT, 64), SAMPLE_AR ^ cipher.crypt32(0, false));
+        assertEquals(Crypto1.prngSuccessor(SAMPLE_NT, 96), SAMPLE_AT ^ cipher.crypt32(0, false));
+    }
+
+    public void testWrongKeyFails() {
+        Crypto1 cipher = new Crypto1();
+        cipher.init(SAMPLE_KEY ^ 1);
+        cipher.crypt32(SAMPLE_UID ^ SAMPLE_NT, false);
+        cipher.crypt32(SAMPLE_NR, true);
+        assertFalse(Crypto1.prngSuccessor(SAMPLE_NT, 64) == (SAMPLE_AR ^ cipher.crypt32(0, false)));
+    }
+
+    public void testStateIsKeyAfterInit() {
+        Crypto1 cipher = new Crypto1();
+        Random random = new Random(1);
+        for (int i = 0; i < 1000; ++i) {
+            long key = random.nextLong() & 0xffffffffffffL;
+            cipher.init(key);
+            assertEquals(key, cipher.getState());
+        }
+    }
+
+    public void testDecryptsOwnStream() {
+        Crypto1 reader = new Crypto1();
+        Crypto1 tag = new Crypto1();
+        reader.init(SAMPLE_KEY);
+        tag.init(SAMPLE_KEY);
+        for (int i = 0; i < 256; ++i)
+            assertEquals(i, (i ^ reader.crypt8(0, false)) ^ tag.crypt8(0, false));
+
+        // Feeding an encrypted nonce in keeps both sides in step
+        int nr = 0x12345678;
+        int nrEnc = nr ^ reader.crypt32(nr, false);
+        tag.crypt32(nrEnc, true);
+        assertEquals(reader.getState(), tag.getState());
+    }
+
+    public void testPrngComposes() {
+        int x = SAMPLE_NT;
+        assertEquals(Crypto1.prngSuccessor(x, 96), Crypto1.prngSuccessor(Crypto1.prngSuccessor(x, 64), 32));
+        assertEquals(x, Crypto1.prngSuccessor(x, 0));
+
+        // The 16 bit LFSR has a period of 65535
+        int y = SAMPLE_NT & 0xffff0000 | (SAMPLE_NT >>> 16 & 0xffff);
+        y = Crypto1.prngSuccessor(y, 16);
+        assertEquals(y, Crypto1.prngSuccessor(y, 65535));
+    }
+}
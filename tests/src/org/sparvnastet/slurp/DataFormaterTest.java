@@ -0,0 +1,46 @@
+/**
+ * Copyright (c) 2011 Anders Sundman <anders@4zm.org>
+ *
+ * This file is part of SLURP.
+ *
+ * SLURP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SLURP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with SLURP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.sparvnastet.slurp;
+
+import junit.framework.TestCase;
+
+public class DataFormaterTest extends TestCase {
+
+    public void testKeyRoundTrip() {
+        assertEquals(0xa0a1a2a3a4a5L, DataFormater.keyFromHexString("A0A1A2A3A4A5"));
+        assertEquals(0xa0a1a2a3a4a5L, DataFormater.keyFromHexString("a0a1a2a3a4a5"));
+        assertEquals(0L, DataFormater.keyFromHexString("000000000000"));
+        assertEquals("ff ff ff ff ff ff", DataFormater.keyToString(DataFormater.keyFromHexString("ffffffffffff"))
+                .toLowerCase());
+        assertEquals("-- -- -- -- -- --", DataFormater.keyToString(MifareKeyChain.NO_KEY));
+    }
+
+    public void testInvalidKeysRejected() {
+        String[] invalid = { "", "a0a1a2a3a4", "a0a1a2a3a4a5a6", "-00000000001", "+a0a1a2a3a4a", "a0a1a2a3a4ag",
+                "a0a1a2 a3a4a" };
+        for (String key : invalid) {
+            try {
+                DataFormater.keyFromHexString(key);
+                fail("Parsed \"" + key + "\"");
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright (c) 2011 Anders Sundman <anders@4zm.org>
+ *
+ * This file is part of SLURP.
+ *
+ * SLURP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SLURP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with SLURP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sparvnastet.slurp;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.TestCase;
+
+public class DumpCorpusTest extends TestCase {
+    private final static int COUNTER_BLOCK = 5;
+
+    private File mDirectory;
+    private File[] mDumps;
+
+    /**
+     * Three dumps of tag A, where byte 100 and a counter change, and two of
+     * tag B, where byte 200 changes. Byte 300 differs between the tags.
+     */
+    @Override
+    protected void setUp() throws Exception {
+        mDirectory = TestDumps.createDirectory();
+        mDumps = new File[5];
+        for (int i = 0; i < 3; ++i) {
+            byte[] dump = new byte[1024];
+            dump[100] = (byte) i;
+            writeValue(dump, COUNTER_BLOCK * DumpStore.BLOCK_SIZE, 10 - i);
+            mDumps[i] = TestDumps.write(mDirectory, "0a0a0a0a", "2011010" + (i + 1) + ".120000", dump);
+        }
+        for (int i = 0; i < 2; ++i) {
+            byte[] dump = new byte[1024];
+            dump[200] = (byte) i;
+            dump[300] = 1;
+            writeValue(dump, COUNTER_BLOCK * DumpStore.BLOCK_SIZE, 3);
+            // Saved between the dumps of tag A
+            mDumps[3 + i] = TestDumps.write(mDirectory, "0b0b0b0b", "2011010" + (i + 1) + ".130000", dump);
+        }
+    }
+
+    @Override
+    protected void tearDown() {
+        TestDumps.deleteDirectory(mDirectory);
+    }
+
+    private static void writeValue(byte[] data, int offset, int value) {
+        for (int i = 0; i < 4; ++i) {
+            data[offset + i] = data[offset + 8 + i] = (byte) (value >>> 8 * i);
+            data[offset + 4 + i] = (byte) ~(value >>> 8 * i);
+        }
+        data[offset + 12] = data[offset + 14] = 0;
+        data[offset + 13] = data[offset + 15] = (byte) 0xff;
+    }
+
+    private void assertCounts(DumpCorpus corpus) {
+        assertEquals(5, corpus.size());
+        assertEquals(2, corpus.getChangeCount(100));
+        assertEquals(1, corpus.getChangeCount(200));
+        assertEquals(0, corpus.getChangeCount(300));
+
+        int flags = corpus.getBlockFlags(COUNTER_BLOCK);
+        assertEquals(DumpCorpus.FLAG_CHANGED | DumpCorpus.FLAG_VALUE_BLOCK | DumpCorpus.FLAG_COUNTER, flags);
+        assertEquals(0, corpus.getBlockFlags(300 / DumpStore.BLOCK_SIZE));
+
+        // Grouped by tag, in the order they were saved
+        for (int i = 0; i < 3; ++i)
+            assertEquals(mDumps[i].getName(), corpus.getDumpName(i));
+        assertEquals(mDumps[3].getName(), corpus.getDumpName(3));
+        assertEquals(mDumps[4].getName(), corpus.getDumpName(4));
+    }
+
+    public void testPairsOnlyDumpsOfSameTag() {
+        DumpCorpus corpus = new DumpCorpus(null);
+        assertEquals(5, corpus.addAll(mDumps));
+        assertCounts(corpus);
+
+        long[] bits = corpus.getChangedBits(3);
+        for (long word : bits)
+            assertEquals(0, word);
+        bits = corpus.getChangedBits(4);
+        assertEquals(1L << (200 & 63), bits[200 >> 6]);
+    }
+
+    public void testIncremental() {
+        DumpCorpus corpus = new DumpCorpus(null);
+        int[] order = { 2, 4, 0, 3, 1 };
+        for (int i : order)
+            assertTrue(corpus.add(mDumps[i]));
+        assertFalse(corpus.add(mDumps[0]));
+        assertCounts(corpus);
+    }
+
+    public void testParallel() {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            DumpCorpus corpus = new DumpCorpus(executor);
+            corpus.addAll(mDumps);
+            assertCounts(corpus);
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/**
+ * Copyright (c) 2011 Anders Sundman <anders@4zm.org>
+ *
+ * This file is part of SLURP.
+ *
+ * SLURP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SLURP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with SLURP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sparvnastet.slurp;
+
+import java.io.File;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class DumpIndexTest extends TestCase {
+    private final static byte[] PATTERN = { 0x12, 0x34, 0x56, 0x78, (byte) 0x9a, (byte) 0xbc };
+
+    private File mDirectory;
+    private Random mRandom = new Random(1);
+
+    @Override
+    protected void setUp() throws Exception {
+        mDirectory = TestDumps.createDirectory();
+    }
+
+    @Override
+    protected void tearDown() {
+        TestDumps.deleteDirectory(mDirectory);
+    }
+
+    private File write(String uid, String time, boolean withPattern) throws Exception {
+        byte[] dump = TestDumps.randomDump(mRandom);
+        if (withPattern)
+            System.arraycopy(PATTERN, 0, dump, 100, PATTERN.length);
+        return TestDumps.write(mDirectory, uid, time, dump);
+    }
+
+    public void testFindsPattern() throws Exception {
+        write("01020304", "20110101.100000", true);
+        write("01020305", "20110101.110000", false);
+        write("01020306", "20110101.120000", true);
+
+        DumpIndex index = new DumpIndex();
+        assertEquals(3, index.addAll(new DumpStore(mDirectory)));
+        assertEquals(0, index.addAll(new DumpStore(mDirectory)));
+
+        DumpIndex.Result result = index.search(PATTERN, 10);
+        assertTrue(result.isComplete());
+        List<DumpIndex.Match> matches = result.getMatches();
+        assertEquals(2, matches.size());
+        assertEquals("01020304", matches.get(0).getUid());
+        assertEquals("01020306", matches.get(1).getUid());
+        assertEquals(100, matches.get(0).getOffset());
+        assertEquals(6, matches.get(0).getBlock());
+    }
+
+    public void testShortPattern() throws Exception {
+        byte[] dump = new byte[1024];
+        dump[500] = 0x42;
+        TestDumps.write(mDirectory, "01020304", "20110101.100000", dump);
+        TestDumps.write(mDirectory, "01020305", "20110101.110000", new byte[1024]);
+
+        DumpIndex index = new DumpIndex();
+        index.addAll(new DumpStore(mDirectory));
+        DumpIndex.Result result = index.search(new byte[] { 0x42 }, 10);
+        assertEquals(2, result.getCandidateCount());
+        assertEquals(1, result.getMatches().size());
+        assertEquals(500, result.getMatches().get(0).getOffset());
+    }
+
+    public void testLongPostingLists() throws Exception {
+        // Ids more than a varint byte apart, with many dumps in between
+        DumpIndex index = new DumpIndex();
+        for (int i = 0; i < 300; ++i) {
+            boolean withPattern = i == 0 || i == 150 || i == 299;
+            index.add(write(String.format("%08x", i), String.format("20110101.%06d", i), withPattern));
+        }
+
+        DumpIndex.Result result = index.search(PATTERN, 300);
+        assertEquals(3, result.getMatches().size());
+        assertTrue(result.getCandidateCount() < 10);
+    }
+
+    public void testVerifiesNewestFirst() throws Exception {
+        // Indexed in another order than they were saved
+        String[] times = { "20110103.100000", "20110101.100000", "20110105.100000", "20110102.100000",
+                "20110104.100000" };
+        DumpIndex index = new DumpIndex();
+        for (int i = 0; i < times.length; ++i)
+            index.add(write(String.format("0000000%d", i), times[i], true));
+
+        DumpIndex.Result result = index.search(PATTERN, 2);
+        assertFalse(result.isComplete());
+        assertEquals(5, result.getCandidateCount());
+        assertEquals(2, result.getVerifiedCount());
+        List<DumpIndex.Match> matches = result.getMatches();
+        assertEquals(2, matches.size());
+        assertEquals("00000004", matches.get(0).getUid());
+        assertEquals("00000002", matches.get(1).getUid());
+    }
+
+    public void testSaveAndLoad() throws Exception {
+        write("01020304", "20110101.100000", true);
+        write("01020305", "20110101.110000", false);
+
+        DumpStore store = new DumpStore(mDirectory);
+        DumpIndex index = new DumpIndex();
+        index.addAll(store);
+        assertTrue(index.isDirty());
+
+        File file = new File(mDirectory, "index");
+        index.save(file);
+        assertFalse(index.isDirty());
+
+        DumpIndex loaded = new DumpIndex();
+        loaded.load(file, store);
+        assertFalse(loaded.isDirty());
+        assertEquals(2, loaded.size());
+        assertEquals(index.getPostingBytes(), loaded.getPostingBytes());
+        assertEquals(1, loaded.search(PATTERN, 10).getMatches().size());
+
+        // Dumps saved since aren't indexed again
+        write("01020306", "20110101.120000", true);
+        assertEquals(1, loaded.addAll(store));
+        assertEquals(2, loaded.search(PATTERN, 10).getMatches().size());
+    }
+
+    public void testDropsDeletedDumps() throws Exception {
+        File first = write("01020304", "20110101.100000", true);
+        File second = write("01020305", "20110101.110000", true);
+        write("01020306", "20110101.120000", true);
+
+        DumpIndex index = new DumpIndex();
+        index.addAll(new DumpStore(mDirectory));
+        index.save(new File(mDirectory, "index"));
+
+        assertTrue(first.delete());
+        DumpIndex.Result result = index.search(PATTERN, 10);
+        assertEquals(2, result.getCandidateCount());
+        assertEquals(2, result.getMatches().size());
+        assertEquals(2, index.size());
+        assertTrue(index.isDirty());
+
+        assertTrue(second.delete());
+        assertEquals(1, index.removeMissing());
+        assertEquals(1, index.size());
+        result = index.search(PATTERN, 10);
+        assertEquals(1, result.getCandidateCount());
+        assertEquals("01020306", result.getMatches().get(0).getUid());
+    }
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright (c) 2011 Anders Sundman <anders@4zm.org>
+ *
+ * This file is part of SLURP.
+ *
+ * SLURP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SLURP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with SLURP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sparvnastet.slurp;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class DumpValidatorTest extends TestCase {
+    private final static int SECTORS = 16;
+    private final static byte[] UID = { 0x01, 0x02, 0x03, 0x04 };
+    // Access conditions with value operations on block group 1
+    private final static int[] VALUE_CONDITIONS = { 0, 6, 0, 1 };
+
+    private byte[] mDump;
+    private int[] mErrors;
+
+    /**
+     * A 1K tag in the transport configuration.
+     */
+    @Override
+    protected void setUp() {
+        mDump = new byte[DumpStore.DUMP_SIZE];
+        mErrors = new int[DumpStore.DUMP_SIZE / DumpStore.BLOCK_SIZE];
+
+        System.arraycopy(UID, 0, mDump, 0, UID.length);
+        mDump[4] = (byte) (UID[0] ^ UID[1] ^ UID[2] ^ UID[3]);
+        for (int sector = 0; sector < SECTORS; ++sector) {
+            int trailer = DumpStore.getTrailerOffset(sector);
+            Arrays.fill(mDump, trailer, trailer + 6, (byte) 0xff);
+            AccessBits.setConditions(mDump, trailer, new int[] { 0, 0, 0, 1 });
+            Arrays.fill(mDump, trailer + 10, trailer + 16, (byte) 0xff);
+        }
+    }
+
+    private static void writeValueBlock(byte[] data, int offset, int value, int addr) {
+        for (int i = 0; i < 4; ++i) {
+            data[offset + i] = (byte) (value >>> 8 * i);
+            data[offset + 4 + i] = (byte) ~(value >>> 8 * i);
+            data[offset + 8 + i] = (byte) (value >>> 8 * i);
+        }
+        data[offset + 12] = data[offset + 14] = (byte) addr;
+        data[offset + 13] = data[offset + 15] = (byte) ~addr;
+    }
+
+    public void testTransportConfiguration() {
+        assertEquals(0, DumpValidator.validate(mDump, SECTORS, UID.length, mErrors));
+        int trailer = DumpStore.getTrailerOffset(0);
+        assertEquals((byte) 0xff, mDump[trailer + 6]);
+        assertEquals((byte) 0x07, mDump[trailer + 7]);
+        assertEquals((byte) 0x80, mDump[trailer + 8]);
+    }
+
+    public void testBcc() {
+        mDump[4] ^= 1;
+        assertEquals(1, DumpValidator.validate(mDump, SECTORS, 4, mErrors));
+        assertEquals(DumpValidator.ERROR_BCC, mErrors[0]);
+
+        // Only 4 byte UIDs have a BCC
+        assertEquals(0, DumpValidator.validate(mDump, SECTORS, 7, mErrors));
+        assertEquals(0, DumpValidator.validate(mDump, SECTORS, 0, mErrors));
+    }
+
+    public void testAccessBits() {
+        int trailer = DumpStore.getTrailerOffset(2);
+        mDump[trailer + 7] ^= 0x10;
+        assertEquals(1, DumpValidator.validate(mDump, SECTORS, 4, mErrors));
+        assertEquals(DumpValidator.ERROR_ACCESS_BITS, mErrors[11]);
+    }
+
+    public void testValueBlocks() {
+        int trailer = DumpStore.getTrailerOffset(1);
+        AccessBits.setConditions(mDump, trailer, VALUE_CONDITIONS);
+        int block = DumpStore.getFirstBlock(1) + 1;
+        int offset = block * DumpStore.BLOCK_SIZE;
+
+        writeValueBlock(mDump, offset, 1234, block);
+        assertTrue(ValueBlock.isValid(mDump, offset));
+        assertEquals(1234, ValueBlock.getValue(mDump, offset));
+        assertEquals(0, DumpValidator.validate(mDump, SECTORS, 4, mErrors));
+
+        for (int bit = 0; bit < 8 * DumpStore.BLOCK_SIZE; ++bit) {
+            mDump[offset + bit / 8] ^= 1 << (bit & 7);
+            assertEquals("Bit " + bit, 1, DumpValidator.validate(mDump, SECTORS, 4, mErrors));
+            assertEquals(DumpValidator.ERROR_VALUE_BLOCK, mErrors[block]);
+            mDump[offset + bit / 8] ^= 1 << (bit & 7);
+        }
+    }
+
+    public void testRawDataInValueBlockGroup() {
+        int trailer = DumpStore.getTrailerOffset(1);
+        AccessBits.setConditions(mDump, trailer, VALUE_CONDITIONS);
+        int offset = (DumpStore.getFirstBlock(1) + 1) * DumpStore.BLOCK_SIZE;
+
+        // The conditions allow value operations, but don't require them
+        assertEquals(0, DumpValidator.validate(mDump, SECTORS, 4, mErrors));
+        Arrays.fill(mDump, offset, offset + DumpStore.BLOCK_SIZE, (byte) 0xff);
+        assertEquals(0, DumpValidator.validate(mDump, SECTORS, 4, mErrors));
+
+        Random random = new Random(1);
+        byte[] block = new byte[DumpStore.BLOCK_SIZE];
+        for (int i = 0; i < 1000; ++i) {
+            random.nextBytes(block);
+            System.arraycopy(block, 0, mDump, offset, block.length);
+            assertEquals(0, DumpValidator.validate(mDump, SECTORS, 4, mErrors));
+        }
+    }
+
+    public void testValidateSector() {
+        byte[] sector = new byte[4 * DumpStore.BLOCK_SIZE];
+        System.arraycopy(mDump, DumpStore.getFirstBlock(3) * DumpStore.BLOCK_SIZE, sector, 0, sector.length);
+        sector[3 * DumpStore.BLOCK_SIZE + 8] ^= 1;
+
+        int[] errors = new int[6];
+        assertEquals(1, DumpValidator.validateSector(sector, 0, 3, 4, errors, 2));
+        assertEquals(DumpValidator.ERROR_ACCESS_BITS, errors[5]);
+        assertEquals(0, errors[2]);
+    }
+}
@@ -0,0 +1,154 @@
+/**
+ * Copyright (c) 2011 Anders Sundman <anders@4zm.org>
+ *
+ * This file is part of SLURP.
+ *
+ * SLURP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SLURP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with SLURP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sparvnastet.slurp;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class KeyDictionaryTest extends TestCase {
+    private final static long KEY_FF = 0xffffffffffffL;
+    private final static long KEY_A0 = 0xa0a1a2a3a4a5L;
+    private final static long KEY_B0 = 0xb0b1b2b3b4b5L;
+    private final static long KEY_D3 = 0xd3f7d3f7d3f7L;
+    private final static long KEY_1 = 0x111111111111L;
+    private final static long KEY_2 = 0x222222222222L;
+
+    private final static byte[] UID = { 0x01, 0x02, 0x03, 0x04 };
+    private final static int SAK_1K = 0x08;
+    private final static int SAK_OTHER = 0x88;
+
+    private static long[] keys(KeyDictionary dictionary) {
+        long[] keys = new long[dictionary.size()];
+        for (int i = 0; i < keys.length; ++i)
+            keys[i] = dictionary.getKey(i);
+        return keys;
+    }
+
+    private static long[] fill(long key) {
+        long[] keys = new long[16];
+        Arrays.fill(keys, key);
+        return keys;
+    }
+
+    private static byte[] dump(int sak, long keyA, long keyB) {
+        return TestDumps.tagDump(UID, sak, fill(keyA), fill(keyB));
+    }
+
+    public void testDuplicatesRemoved() {
+        KeyDictionary dictionary = new KeyDictionary(new long[] { KEY_FF, KEY_A0, KEY_FF, KEY_B0 });
+        assertTrue(Arrays.equals(new long[] { KEY_FF, KEY_A0, KEY_B0 }, keys(dictionary)));
+    }
+
+    public void testMergeOrdersByHits() {
+        KeyDictionary dictionary = new KeyDictionary(new long[] { KEY_FF, KEY_A0, KEY_B0 });
+        LongKeySet harvested = new LongKeySet();
+        harvested.add(KEY_B0, 2);
+        harvested.add(KEY_1, 3);
+        harvested.add(KEY_A0, 1);
+        dictionary.merge(harvested);
+
+        // Keys with the same hit count keep their order
+        assertTrue(Arrays.equals(new long[] { KEY_1, KEY_B0, KEY_A0, KEY_FF }, keys(dictionary)));
+        assertEquals(3, dictionary.getHits(0));
+        assertEquals(0, dictionary.getHits(3));
+    }
+
+    public void testPartitions() {
+        KeyDictionary dictionary = new KeyDictionary(new long[] { KEY_FF, KEY_A0, KEY_B0, KEY_D3 });
+        KeyHarvester harvester = new KeyHarvester();
+        LongKeySet harvested = new LongKeySet();
+        harvester.harvest(dump(SAK_1K, KEY_D3, KEY_B0), 1024, harvested);
+        harvester.harvest(dump(SAK_1K, KEY_D3, KEY_1), 1024, harvested);
+        harvester.harvest(dump(SAK_OTHER, KEY_2, KEY_2), 1024, harvested);
+        dictionary.merge(harvested);
+        dictionary.addPartitions(harvester.getFamilyKeys());
+        assertEquals(2, dictionary.getPartitionCount());
+
+        int family = CardFamily.fromDump(dump(SAK_1K, KEY_FF, KEY_FF), 1024);
+        KeyDictionary partition = dictionary.forFamily(family);
+        assertNotSame(dictionary, partition);
+        assertEquals(dictionary.size(), partition.size());
+        assertEquals(KEY_D3, partition.getKey(0));
+        long[] familyKeys = { partition.getKey(1), partition.getKey(2) };
+        Arrays.sort(familyKeys);
+        assertTrue(Arrays.equals(new long[] { KEY_1, KEY_B0 }, familyKeys));
+        assertEquals(KEY_2, partition.getKey(3));
+
+        assertSame(dictionary, dictionary.forFamily(CardFamily.UNKNOWN));
+    }
+
+    public void testWithHarvestedMatchesFullHarvest() {
+        long[] defaults = { KEY_FF, KEY_A0, KEY_B0 };
+        byte[][] dumps = { dump(SAK_1K, KEY_D3, KEY_B0), dump(SAK_OTHER, KEY_2, KEY_2),
+                dump(SAK_1K, KEY_1, KEY_1), dump(SAK_1K, KEY_1, KEY_D3) };
+
+        KeyDictionary full = new KeyDictionary(defaults);
+        KeyHarvester harvester = new KeyHarvester();
+        LongKeySet harvested = new LongKeySet();
+        for (byte[] dump : dumps)
+            harvester.harvest(dump, 1024, harvested);
+        full.merge(harvested);
+        full.addPartitions(harvester.getFamilyKeys());
+
+        KeyDictionary incremental = new KeyDictionary(defaults);
+        harvester = new KeyHarvester();
+        harvested = new LongKeySet();
+        harvester.harvest(dumps[0], 1024, harvested);
+        incremental.merge(harvested);
+        incremental.addPartitions(harvester.getFamilyKeys());
+        for (int i = 1; i < dumps.length; ++i) {
+            harvester = new KeyHarvester();
+            harvested = new LongKeySet();
+            harvester.harvest(dumps[i], 1024, harvested);
+            KeyDictionary next = incremental.withHarvested(harvested, harvester.getFamilyKeys());
+            assertNotSame(incremental, next);
+            incremental = next;
+        }
+
+        // Keys with the same hit count may be in another order
+        assertTrue(Arrays.equals(hitsByKey(full), hitsByKey(incremental)));
+        for (int i = 1; i < incremental.size(); ++i)
+            assertTrue(incremental.getHits(i - 1) >= incremental.getHits(i));
+        assertEquals(full.getPartitionCount(), incremental.getPartitionCount());
+        for (byte[] dump : dumps) {
+            int family = CardFamily.fromDump(dump, 1024);
+            assertTrue(Arrays.equals(hitsByKey(full.forFamily(family)), hitsByKey(incremental.forFamily(family))));
+            assertEquals(full.forFamily(family).getKey(0), incremental.forFamily(family).getKey(0));
+        }
+    }
+
+    /**
+     * @return Key and hit count pairs, sorted on the key.
+     */
+    private static long[] hitsByKey(KeyDictionary dictionary) {
+        long[] pairs = new long[2 * dictionary.size()];
+        long[] keys = keys(dictionary);
+        Arrays.sort(keys);
+        for (int i = 0; i < keys.length; ++i) {
+            pairs[2 * i] = keys[i];
+            for (int j = 0; j < dictionary.size(); ++j) {
+                if (dictionary.getKey(j) == keys[i])
+                    pairs[2 * i + 1] = dictionary.getHits(j);
+            }
+        }
+        return pairs;
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright (c) 2011 Anders Sundman <anders@4zm.org>
+ *
+ * This file is part of SLURP.
+ *
+ * SLURP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SLURP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with SLURP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.sparvnastet.slurp;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import junit.framework.TestCase;
+
+public class KeyHarvesterTest extends TestCase {
+    private final static byte[] UID = { 0x01, 0x02, 0x03, 0x04 };
+    private final static long KEY_A = 0xa0a1a2a3a4a5L;
+    private final static long KEY_B = 0xb0b1b2b3b4b5L;
+
+    private static byte[] dump(long keyA, long keyB) {
+        long[] keysA = new long[16];
+        long[] keysB = new long[16];
+        Arrays.fill(keysA, keyA);
+        Arrays.fill(keysB, keyB);
+        keysA[5] = 0x050505050505L;
+        return TestDumps.tagDump(UID, 0x08, keysA, keysB);
+    }
+
+    public void testHarvestTrailerKeys() {
+        KeyHarvester harvester = new KeyHarvester();
+        LongKeySet keys = new LongKeySet();
+        harvester.harvest(dump(KEY_A, KEY_B), 1024, keys);
+
+        assertEquals(1, harvester.getDumpCount());
+        assertEquals(16, harvester.getTrailerCount());
+        assertEquals(3, keys.size());
+        assertEquals(15, keys.getCount(KEY_A));
+        assertEquals(16, keys.getCount(KEY_B));
+        assertEquals(1, keys.getCount(0x050505050505L));
+    }
+
+    public void testPaddingAndInvalidTrailersSkipped() {
+        byte[] buffer = new byte[DumpStore.DUMP_SIZE];
+        byte[] dump = dump(KEY_A, KEY_B);
+        dump[DumpStore.getTrailerOffset(3) + AccessBits.OFFSET] ^= 0x10;
+        System.arraycopy(dump, 0, buffer, 0, dump.length);
+
+        KeyHarvester harvester = new KeyHarvester();
+        LongKeySet keys = new LongKeySet();
+        harvester.harvest(buffer, buffer.length, keys);
+        assertEquals(15, harvester.getTrailerCount());
+        assertEquals(15, keys.getCount(KEY_B));
+        assertFalse(keys.contains(0));
+    }
+
+    public void testFamilyKeys() {
+        KeyHarvester harvester = new KeyHarvester();
+        LongKeySet keys = new LongKeySet();
+        harvester.harvest(dump(KEY_A, KEY_B), 1024, keys);
+
+        // Without a valid block 0 the keys are only in the global set
+        byte[] unknown = dump(0x222222222222L, KEY_B);
+        unknown[4] ^= 0x01;
+        harvester.harvest(unknown, 1024, keys);
+
+        HashMap<Integer, LongKeySet> families = harvester.getFamilyKeys();
+        assertEquals(1, families.size());
+        LongKeySet familyKeys = families.get(CardFamily.fromDump(dump(KEY_A, KEY_B), 1024));
+        assertEquals(16, familyKeys.getCount(KEY_B));
+        assertFalse(familyKeys.contains(0x222222222222L));
+        assertEquals(2, harvester.getDumpCount());
+        assertEquals(32, keys.getCount(KEY_B));
+        assertTrue(keys.contains(0x222222222222L));
+    }
+
+    public void testLongKeySetGrows() {
+        LongKeySet keys = new LongKeySet(1);
+        for (long key = 0; key < 1000; ++key)
+            assertTrue(keys.add(key * 0x10001L));
+        assertFalse(keys.add(0));
+        assertEquals(1000, keys.size());
+        assertEquals(2, keys.getCount(0));
+        assertEquals(0, keys.getCount(1));
+
+        long[] all = keys.toArray();
+        Arrays.sort(all);
+        for (int i = 0; i < all.length; ++i)
+            assertEquals(i * 0x10001L, all[i]);
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright (c) 2011 Anders Sundman <anders@4zm.org>
+ *
+ * This file is part of SLURP.
+ *
+ * SLURP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SLURP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with SLURP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.sparvnastet.slurp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class KeyReuseKeySearchStrategyTest extends TestCase {
+    private final static long[] KEYS = { 0x111111111111L, 0x222222222222L, 0x333333333333L, 0x444444444444L,
+            0x555555555555L, 0x666666666666L };
+
+    /**
+     * Run a search against the given sector keys.
+     *
+     * @return The attempts in the order they were made.
+     */
+    private static List<Long> search(KeyDictionary dictionary, long[] keysA, long[] keysB) {
+        KeySearchStrategy strategy = new KeyReuseKeySearchStrategy();
+        strategy.start(dictionary, keysA.length);
+
+        List<Long> attempts = new ArrayList<Long>();
+        long attempt;
+        while ((attempt = strategy.next()) != KeySearch.NO_ATTEMPT) {
+            assertTrue(attempts.size() < 1000);
+            attempts.add(attempt);
+            int sector = KeySearch.getSector(attempt);
+            long key = KeySearch.isKeyB(attempt) ? keysB[sector] : keysA[sector];
+            strategy.onResult(attempt, KeySearch.getKey(attempt) == key);
+        }
+        return attempts;
+    }
+
+    private static long[] fill(int sectors, long key) {
+        long[] keys = new long[sectors];
+        Arrays.fill(keys, key);
+        return keys;
+    }
+
+    public void testFoundKeyReusedFirst() {
+        List<Long> attempts = search(new KeyDictionary(KEYS), fill(4, KEYS[3]), fill(4, KEYS[3]));
+
+        // The dictionary in order on the first sector, then only the found key
+        for (int i = 0; i < 4; ++i)
+            assertEquals(KeySearch.attempt(0, false, KEYS[i]), (long) attempts.get(i));
+        assertEquals(KeySearch.attempt(1, false, KEYS[3]), (long) attempts.get(4));
+        assertEquals(4 + 3 + 4, attempts.size());
+    }
+
+    public void testKeyABeforeKeyB() {
+        long[] keysA = { KEYS[0], KEYS[1], KEYS[2] };
+        long[] keysB = { KEYS[5], KEYS[4], KEYS[3] };
+        List<Long> attempts = search(new KeyDictionary(KEYS), keysA, keysB);
+
+        boolean keyB = false;
+        for (long attempt : attempts) {
+            assertTrue(!keyB || KeySearch.isKeyB(attempt));
+            keyB = KeySearch.isKeyB(attempt);
+        }
+        assertTrue(keyB);
+    }
+
+    public void testLikelyDictionaryKeyBeatsReusedKey() {
+        // The first key opened nearly every tag the dictionary was made from
+        int[] hits = { 100, 0, 0, 0, 0, 0 };
+        long[] keysA = { KEYS[1], KEYS[0] };
+        List<Long> attempts = search(new KeyDictionary(KEYS, hits), keysA, keysA);
+
+        assertEquals(KeySearch.attempt(0, false, KEYS[0]), (long) attempts.get(0));
+        assertEquals(KeySearch.attempt(0, false, KEYS[1]), (long) attempts.get(1));
+        assertEquals(KeySearch.attempt(1, false, KEYS[0]), (long) attempts.get(2));
+    }
+
+    public void testReusedKeyFallsBackAfterFailure() {
+        int[] hits = { 10, 0, 0, 0, 0, 0 };
+        long[] keysA = { KEYS[1], KEYS[1], KEYS[2], KEYS[3] };
+        List<Long> attempts = search(new KeyDictionary(KEYS, hits), keysA, keysA);
+
+        // The reused key goes ahead of the first dictionary key once it opened
+        // two sectors, and falls behind it again after failing on one
+        long[] expected = { KeySearch.attempt(0, false, KEYS[0]), KeySearch.attempt(0, false, KEYS[1]),
+                KeySearch.attempt(1, false, KEYS[0]), KeySearch.attempt(1, false, KEYS[1]),
+                KeySearch.attempt(2, false, KEYS[1]), KeySearch.attempt(2, false, KEYS[0]),
+                KeySearch.attempt(2, false, KEYS[1]), KeySearch.attempt(2, false, KEYS[2]),
+                KeySearch.attempt(3, false, KEYS[0]), KeySearch.attempt(3, false, KEYS[2]),
+                KeySearch.attempt(3, false, KEYS[1]) };
+        for (int i = 0; i < expected.length; ++i)
+            assertEquals(expected[i], (long) attempts.get(i));
+    }
+
+    public void testStopsWithoutKey() {
+        long[] keysA = { KEYS[0], 0x777777777777L };
+        List<Long> attempts = search(new KeyDictionary(KEYS), keysA, keysA);
+
+        // Every key on the second sector, then give up. The found key is also
+        // in the dictionary, KeySearch skips such repeated attempts.
+        assertEquals(KeySearch.attempt(1, false, KEYS[0]), (long) attempts.get(1));
+        assertEquals(1 + 1 + KEYS.length, attempts.size());
+        assertEquals(1 + KEYS.length, new HashSet<Long>(attempts).size());
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright (c) 2011 Anders Sundman <anders@4zm.org>
+ *
+ * This file is part of SLURP.
+ *
+ * SLURP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SLURP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with SLURP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.sparvnastet.slurp;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class MifareKeyChainTest extends TestCase {
+
+    public void testPackKey() {
+        byte[] data = { 0x00, (byte) 0xa0, (byte) 0xa1, (byte) 0xa2, (byte) 0xa3, (byte) 0xa4, (byte) 0xa5 };
+        long key = MifareKeyChain.packKey(data, 1);
+        assertEquals(0xa0a1a2a3a4a5L, key);
+        assertTrue(Arrays.equals(Arrays.copyOfRange(data, 1, 7), MifareKeyChain.unpackKey(key)));
+
+        byte[] trailer = new byte[16];
+        MifareKeyChain.unpackKey(0xffffffffffffL, trailer, MifareKeyChain.TRAILER_KEY_B_OFFSET);
+        assertEquals(0xffffffffffffL, MifareKeyChain.packKey(trailer, MifareKeyChain.TRAILER_KEY_B_OFFSET));
+        assertEquals(0, MifareKeyChain.packKey(trailer, MifareKeyChain.TRAILER_KEY_A_OFFSET));
+        assertTrue(MifareKeyChain.packKey(trailer, MifareKeyChain.TRAILER_KEY_B_OFFSET) != MifareKeyChain.NO_KEY);
+    }
+
+    public void testByteArrayRoundTrip() throws IOException {
+        MifareKeyChain keys = new MifareKeyChain(2);
+        assertEquals(2, keys.getSectorCount());
+        assertEquals(MifareKeyChain.NO_KEY, keys.getKeyA(1));
+        keys.setKeyA(0, 0xa0a1a2a3a4a5L);
+        keys.setKeyB(0, 0xb0b1b2b3b4b5L);
+        keys.setKeyA(1, 0);
+        try {
+            keys.toByteArray();
+            fail("Wrote an incomplete key chain");
+        } catch (IOException e) {
+            // Expected
+        }
+
+        keys.setKeyB(1, 0xffffffffffffL);
+        byte[] data = keys.toByteArray();
+        assertEquals(4 * MifareKeyChain.KEY_SIZE, data.length);
+        MifareKeyChain read = MifareKeyChain.fromByteArray(data);
+        assertEquals(2, read.getSectorCount());
+        assertEquals(0xa0a1a2a3a4a5L, read.getKeyA(0));
+        assertEquals(0xb0b1b2b3b4b5L, read.getKeyB(0));
+        assertEquals(0L, read.getKeyA(1));
+        assertEquals(0xffffffffffffL, read.getKeyB(1));
+    }
+
+    public void testInvalidKeyFileRejected() {
+        for (int length : new int[] { 0, 6, 18 }) {
+            try {
+                MifareKeyChain.fromByteArray(new byte[length]);
+                fail("Read a key file of " + length + " bytes");
+            } catch (IOException e) {
+                // Expected
+            }
+        }
+    }
+}
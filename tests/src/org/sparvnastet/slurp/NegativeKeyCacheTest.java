@@ -0,0 +1,123 @@
+/**
+ * Copyright (c) 2011 Anders Sundman <anders@4zm.org>
+ *
+ * This file is part of SLURP.
+ *
+ * SLURP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SLURP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with SLURP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sparvnastet.slurp;
+
+import junit.framework.TestCase;
+
+public class NegativeKeyCacheTest extends TestCase {
+    private final static byte[] UID = { 0x01, 0x02, 0x03, 0x04 };
+    private final static long KEY = 0xa0a1a2a3a4a5L;
+    private final static int DAY = 15000;
+
+    private NegativeKeyCache mCache;
+
+    @Override
+    protected void setUp() {
+        mCache = new NegativeKeyCache();
+    }
+
+    private static LongKeySet attempts(long... attempts) {
+        LongKeySet set = new LongKeySet();
+        for (long attempt : attempts)
+            set.add(attempt);
+        return set;
+    }
+
+    private void reject(long attempt, int day) {
+        mCache.addSearch(UID, attempts(attempt), attempts(), day);
+    }
+
+    public void testSkippedAfterConfirmations() {
+        long attempt = KeySearch.attempt(3, false, KEY);
+        reject(attempt, DAY);
+        assertFalse(mCache.isRejected(UID, 3, false, KEY, DAY));
+
+        reject(attempt, DAY + 1);
+        assertTrue(mCache.isRejected(UID, 3, false, KEY, DAY + 1));
+        assertFalse(mCache.isRejected(UID, 3, true, KEY, DAY + 1));
+        assertFalse(mCache.isRejected(UID, 4, false, KEY, DAY + 1));
+        assertFalse(mCache.isRejected(new byte[] { 0x01, 0x02, 0x03, 0x05 }, 3, false, KEY, DAY + 1));
+    }
+
+    public void testExpires() {
+        long attempt = KeySearch.attempt(0, true, KEY);
+        reject(attempt, DAY);
+        reject(attempt, DAY);
+        assertTrue(mCache.isRejected(UID, 0, true, KEY, DAY + NegativeKeyCache.EXPIRY_DAYS));
+        assertFalse(mCache.isRejected(UID, 0, true, KEY, DAY + NegativeKeyCache.EXPIRY_DAYS + 1));
+    }
+
+    public void testExpiredRejectionNotConfirmed() {
+        long attempt = KeySearch.attempt(1, false, KEY);
+        reject(attempt, DAY);
+        reject(attempt, DAY + 40);
+        assertFalse(mCache.isRejected(UID, 1, false, KEY, DAY + 40));
+
+        reject(attempt, DAY + 41);
+        assertTrue(mCache.isRejected(UID, 1, false, KEY, DAY + 41));
+    }
+
+    public void testAcceptedDropsEntry() {
+        long attempt = KeySearch.attempt(2, false, KEY);
+        reject(attempt, DAY);
+        reject(attempt, DAY);
+        mCache.addSearch(UID, attempts(), attempts(attempt), DAY);
+        assertFalse(mCache.isRejected(UID, 2, false, KEY, DAY));
+        assertEquals(0, mCache.size());
+    }
+
+    public void testFullCacheEvictsOldest() {
+        int count = NegativeKeyCache.MAX_ENTRIES;
+        LongKeySet old = new LongKeySet(count);
+        for (int i = 0; i < count; ++i)
+            old.add(KeySearch.attempt(i & 15, false, i));
+        mCache.addSearch(UID, old, attempts(), DAY);
+        assertEquals(count, mCache.size());
+
+        long attempt = KeySearch.attempt(0, false, KEY);
+        reject(attempt, DAY + 1);
+        reject(attempt, DAY + 2);
+        assertEquals(count, mCache.size());
+        assertTrue(mCache.isRejected(UID, 0, false, KEY, DAY + 2));
+    }
+
+    public void testSaveAndLoad() throws Exception {
+        long attempt = KeySearch.attempt(5, true, KEY);
+        long today = System.currentTimeMillis() / (24 * 60 * 60 * 1000L);
+        reject(attempt, (int) today);
+        reject(attempt, (int) today);
+        assertTrue(mCache.isDirty());
+
+        byte[] data = mCache.toByteArray();
+        assertFalse(mCache.isDirty());
+        NegativeKeyCache loaded = new NegativeKeyCache();
+        loaded.load(data);
+        assertEquals(1, loaded.size());
+        assertTrue(loaded.isRejected(UID, 5, true, KEY));
+    }
+
+    public void testLoadRejectsOtherFormat() {
+        try {
+            new NegativeKeyCache().load(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+            fail();
+        } catch (java.io.IOException e) {
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright (c) 2011 Anders Sundman <anders@4zm.org>
+ *
+ * This file is part of SLURP.
+ *
+ * SLURP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SLURP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with SLURP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.sparvnastet.slurp;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class SimulatedMifareTagTest extends TestCase {
+    private final static byte[] UID = { 0x01, 0x02, 0x03, 0x04 };
+    private final static int SECTORS = 16;
+    private final static int[] KEY_B_SECRET = { 0, 0, 0, 3 };
+
+    private static byte[] dump() {
+        long[] keysA = new long[SECTORS];
+        long[] keysB = new long[SECTORS];
+        for (int i = 0; i < SECTORS; ++i) {
+            keysA[i] = 0xa0a1a2a3a400L + i;
+            keysB[i] = 0xb0b1b2b3b400L + i;
+        }
+        byte[] dump = TestDumps.tagDump(UID, 0x08, keysA, keysB);
+
+        // Data in every block but block 0 and the trailers
+        for (int block = 1; block < 64; ++block) {
+            if (block % 4 != 3)
+                Arrays.fill(dump, block * 16, block * 16 + 16, (byte) block);
+        }
+        // Key B of the odd sectors can't be read
+        for (int sector = 1; sector < SECTORS; sector += 2)
+            AccessBits.setConditions(dump, DumpStore.getTrailerOffset(sector), KEY_B_SECRET);
+        return dump;
+    }
+
+    public void testFromDumpKeepsBlocks() throws IOException {
+        byte[] dump = dump();
+        SimulatedMifareTag tag = SimulatedMifareTag.fromDump(dump, dump.length);
+        assertNotNull(tag);
+        assertEquals(SECTORS, tag.getSectorCount());
+        assertTrue(Arrays.equals(UID, tag.getUid()));
+
+        tag.connect();
+        for (int sector = 0; sector < SECTORS; ++sector) {
+            assertEquals(0xa0a1a2a3a400L + sector, tag.getKey(sector, false));
+            assertEquals(0xb0b1b2b3b400L + sector, tag.getKey(sector, true));
+            assertTrue(tag.authenticateSectorWithKeyA(sector, tag.getKey(sector, false)));
+
+            int first = tag.sectorToBlock(sector);
+            for (int block = first; block < first + 3; ++block)
+                assertTrue(Arrays.equals(Arrays.copyOfRange(dump, block * 16, block * 16 + 16), tag.readBlock(block)));
+
+            // Key A reads as zeros, Key B only if the trailer allows it
+            byte[] trailer = tag.readBlock(first + 3);
+            assertEquals(0, MifareKeyChain.packKey(trailer, MifareKeyChain.TRAILER_KEY_A_OFFSET));
+            long keyB = MifareKeyChain.packKey(trailer, MifareKeyChain.TRAILER_KEY_B_OFFSET);
+            assertEquals(sector % 2 == 0 ? tag.getKey(sector, true) : 0, keyB);
+            assertTrue(Arrays.equals(Arrays.copyOfRange(dump, (first + 3) * 16 + 6, (first + 3) * 16 + 10),
+                    Arrays.copyOfRange(trailer, 6, 10)));
+        }
+        tag.close();
+    }
+
+    public void testFromDumpDoesNotShareDump() throws IOException {
+        byte[] dump = dump();
+        SimulatedMifareTag tag = SimulatedMifareTag.fromDump(dump, dump.length);
+        Arrays.fill(dump, 16, 32, (byte) 0x55);
+
+        tag.connect();
+        assertTrue(tag.authenticateSectorWithKeyA(0, tag.getKey(0, false)));
+        assertEquals(1, tag.readBlock(1)[0]);
+    }
+
+    public void testFromDumpRejectsInvalidDumps() {
+        byte[] dump = dump();
+        assertNull(SimulatedMifareTag.fromDump(dump, 512));
+
+        // Inconsistent access bits in the last trailer
+        dump[DumpStore.getTrailerOffset(SECTORS - 1) + 6] ^= 0x01;
+        assertNull(SimulatedMifareTag.fromDump(dump, dump.length));
+    }
+
+    public void testWrongKeyHaltsTag() throws IOException {
+        byte[] dump = dump();
+        SimulatedMifareTag tag = SimulatedMifareTag.fromDump(dump, dump.length);
+        tag.connect();
+        assertFalse(tag.authenticateSectorWithKeyB(2, tag.getKey(2, false)));
+        assertTrue(tag.authenticateSectorWithKeyB(2, tag.getKey(2, true)));
+        assertEquals(2, tag.getAuthCount());
+        assertEquals(1, tag.getFailedAuthCount());
+        assertEquals(1, tag.getReselectCount());
+        try {
+            tag.readBlock(4 * 3);
+            fail("Read a block of another sector");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright (c) 2011 Anders Sundman <anders@4zm.org>
+ *
+ * This file is part of SLURP.
+ *
+ * SLURP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SLURP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with SLURP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sparvnastet.slurp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Dump files for the tests, in a temporary directory.
+ */
+class TestDumps {
+    private TestDumps() {
+    }
+
+    static File createDirectory() throws IOException {
+        File directory = File.createTempFile("slurp", "");
+        if (!directory.delete() || !directory.mkdir())
+            throw new IOException("Can't create " + directory);
+        return directory;
+    }
+
+    static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        directory.delete();
+    }
+
+    /**
+     * @return A 1K dump of random data.
+     */
+    static byte[] randomDump(Random random) {
+        byte[] dump = new byte[1024];
+        random.nextBytes(dump);
+        return dump;
+    }
+
+    /**
+     * @return A 1K dump with a 4 byte UID, the given keys and the transport
+     *         access conditions.
+     */
+    static byte[] tagDump(byte[] uid, int sak, long[] keysA, long[] keysB) {
+        byte[] dump = new byte[1024];
+        System.arraycopy(uid, 0, dump, 0, 4);
+        dump[4] = (byte) (uid[0] ^ uid[1] ^ uid[2] ^ uid[3]);
+        dump[5] = (byte) sak;
+        dump[6] = 0x04;
+
+        for (int sector = 0; sector < keysA.length; ++sector) {
+            int trailer = DumpStore.getTrailerOffset(sector);
+            writeKey(dump, trailer, keysA[sector]);
+            AccessBits.setConditions(dump, trailer, new int[] { 0, 0, 0, 1 });
+            writeKey(dump, trailer + 10, keysB[sector]);
+        }
+        return dump;
+    }
+
+    private static void writeKey(byte[] data, int offset, long key) {
+        for (int i = 0; i < 6; ++i)
+            data[offset + i] = (byte) (key >>> 8 * (5 - i));
+    }
+
+    /**
+     * Write a dump named like the app names them, [UID].[Date].[Time].card.
+     */
+    static File write(File directory, String uid, String time, byte[] dump) throws IOException {
+        File file = new File(directory, uid + "." + time + DumpStore.DUMP_SUFFIX);
+        FileOutputStream os = new FileOutputStream(file);
+        try {
+            os.write(dump);
+        } finally {
+            os.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ * Copyright (c) 2011 Anders Sundman <anders@4zm.org>
+ *
+ * This file is part of SLURP.
+ *
+ * SLURP is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * SLURP is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with SLURP.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.sparvnastet.slurp;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class TraceReplayerTest extends TestCase {
+    private final static byte[] UID = { 0x01, 0x02, 0x03, 0x04 };
+    private final static byte[] ATQA = { 0x04, 0x00 };
+    private final static int SECTORS = 16;
+
+    private final static long[] DICTIONARY = { 0xffffffffffffL, 0xa0a1a2a3a4a5L, 0xb0b1b2b3b4b5L, 0xd3f7d3f7d3f7L,
+            0x000000000000L, 0x111111111111L };
+
+    private static SimulatedMifareTag newTag(boolean keyBReadable) {
+        long[] keysA = new long[SECTORS];
+        long[] keysB = new long[SECTORS];
+        for (int i = 0; i < SECTORS; ++i) {
+            keysA[i] = DICTIONARY[i % DICTIONARY.length];
+            keysB[i] = DICTIONARY[(3 * i + 1) % DICTIONARY.length];
+        }
+        return new SimulatedMifareTag(UID, 0x08, ATQA, keysA, keysB, keyBReadable);
+    }
+
+    private static MifareKeyChain search(MifareTag tag, KeySearchStrategy strategy, KeySearch.Clock clock)
+            throws IOException {
+        KeySearch search = new KeySearch(new KeyDictionary(DICTIONARY), new NegativeKeyCache(), strategy, null);
+        search.setClock(clock);
+        return search.search(tag);
+    }
+
+    /**
+     * Record a search and a read, replay them and check that the replay made
+     * exactly the recorded calls.
+     */
+    private void checkRoundTrip(KeySearchStrategy strategy, int kind, boolean keyBReadable) throws IOException {
+        TraceRecorder recorder = new TraceRecorder(newTag(keyBReadable));
+        recorder.setSearch(strategy, new KeyDictionary(DICTIONARY));
+        MifareKeyChain recorded = search(recorder, strategy, recorder);
+        assertNotNull(recorded);
+        TagData recordedData = new TagReader(recorded, null).read(recorder);
+
+        checkReplay(TraceReplayer.parse(recorder.toByteArray()), kind, recorded, recordedData);
+    }
+
+    private void checkReplay(TraceReplayer replayer, int kind, MifareKeyChain recorded, TagData recordedData)
+            throws IOException {
+        assertEquals(kind, replayer.getStrategy());
+        assertTrue(Arrays.equals(UID, replayer.getUid()));
+        assertEquals(SECTORS, replayer.getSectorCount());
+
+        KeySearch search = new KeySearch(replayer.getDictionary(), new NegativeKeyCache(), replayer.newStrategy(),
+                null);
+        search.setClock(replayer);
+        MifareKeyChain replayed = search.search(replayer);
+        assertNotNull(replayed);
+        TagData replayedData = new TagReader(replayed, null).read(replayer);
+
+        assertTrue(Arrays.equals(recorded.toByteArray(), replayed.toByteArray()));
+        assertTrue(Arrays.equals(recordedData.toDumpBytes(), replayedData.toDumpBytes()));
+        assertEquals(replayer.getOperationCount(), replayer.getMatchedCount());
+        assertEquals(0, replayer.getDivergedCount());
+        assertEquals(0, replayer.getSkippedCount());
+        assertEquals(replayer.getRecordedNanos(), replayer.getTagNanos());
+    }
+
+    public void testLinearRoundTrip() throws IOException {
+        checkRoundTrip(new LinearKeySearchStrategy(), TraceRecorder.STRATEGY_LINEAR, false);
+    }
+
+    public void testKeyMajorRoundTrip() throws IOException {
+        checkRoundTrip(new KeyMajorKeySearchStrategy(), TraceRecorder.STRATEGY_KEY_MAJOR, true);
+    }
+
+    public void testKeyReuseRoundTrip() throws IOException {
+        checkRoundTrip(new KeyReuseKeySearchStrategy(), TraceRecorder.STRATEGY_KEY_REUSE, false);
+    }
+
+    public void testVersion3TraceReplayed() throws IOException {
+        KeySearchStrategy strategy = new KeyReuseKeySearchStrategy();
+        TraceRecorder recorder = new TraceRecorder(newTag(false));
+        recorder.setSearch(strategy, new KeyDictionary(DICTIONARY));
+        MifareKeyChain recorded = search(recorder, strategy, recorder);
+        TagData recordedData = new TagReader(recorded, null).read(recorder);
+
+        // Version 3 has four auth cost varints after the strategy, which
+        // follows the 30 bytes of tag header of a 1K tag with a 4 byte UID
+        byte[] trace = recorder.toByteArray();
+        byte[] version3 = new byte[trace.length + 4];
+        System.arraycopy(trace, 0, version3, 0, 31);
+        version3[4] = 3;
+        Arrays.fill(version3, 31, 35, (byte) 1);
+        System.arraycopy(trace, 31, version3, 35, trace.length - 31);
+
+        checkReplay(TraceReplayer.parse(version3), TraceRecorder.STRATEGY_KEY_REUSE, recorded, recordedData);
+    }
+
+    public void testDivergingSearchIsCounted() throws IOException {
+        SimulatedMifareTag tag = newTag(false);
+        TraceRecorder recorder = new TraceRecorder(tag);
+        recorder.setSearch(new LinearKeySearchStrategy(), new KeyDictionary(DICTIONARY));
+        assertNotNull(search(recorder, new LinearKeySearchStrategy(), recorder));
+
+        // Another order still finds the keys from the model of the trace
+        TraceReplayer replayer = TraceReplayer.parse(recorder.toByteArray());
+        assertNotNull(search(replayer, new KeyMajorKeySearchStrategy(), replayer));
+        assertTrue(replayer.getDivergedCount() > 0);
+    }
+
+    public void testTruncatedTraceRejected() throws IOException {
+        TraceRecorder recorder = new TraceRecorder(newTag(false));
+        recorder.setSearch(new LinearKeySearchStrategy(), new KeyDictionary(DICTIONARY));
+        search(recorder, new LinearKeySearchStrategy(), recorder);
+        byte[] trace = recorder.toByteArray();
+
+        // The durations are measured, only the last byte is surely in the
+        // middle of a record
+        TraceReplayer.parse(trace);
+        for (int length : new int[] { 0, 4, 12, trace.length - 1 }) {
+            try {
+                TraceReplayer.parse(Arrays.copyOf(trace, length));
+                fail("Parsed a trace of " + length + " bytes");
+            } catch (IOException e) {
+                // Expected
+            }
+        }
+    }
+}